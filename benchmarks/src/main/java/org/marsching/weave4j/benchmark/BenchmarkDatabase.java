@@ -0,0 +1,324 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.benchmark;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.hibernate.SessionFactory;
+import org.marsching.weave4j.dbo.WeaveBasicObject;
+import org.marsching.weave4j.dbo.WeaveStorageDAOImpl;
+import org.marsching.weave4j.dbo.WeaveUser;
+import org.marsching.weave4j.dbo.WeaveUserDAOImpl;
+import org.marsching.weave4j.web.PasswordHelper;
+import org.marsching.weave4j.web.TransactionManager;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.orm.hibernate3.HibernateTransactionManager;
+import org.springframework.orm.hibernate3.LocalSessionFactoryBean;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory HSQLDB database with the same Hibernate setup as the web application, populated with generated
+ * data. The generated data resembles the data stored by Firefox Sync: most WBOs are history entries, followed by
+ * bookmarks, and there are a few clients with a large tabs record each. All payloads have the shape of encrypted
+ * Weave payloads.
+ *
+ * @author Sebastian Marsching
+ */
+public class BenchmarkDatabase {
+
+    /**
+     * Name of the user whose data is generated.
+     */
+    public static final String USERNAME = "benchmark";
+
+    /**
+     * Password of the user whose data is generated.
+     */
+    public static final String PASSWORD = "benchmark-password";
+
+    /**
+     * Number of clients (and tabs records) of the user.
+     */
+    public static final int CLIENT_COUNT = 5;
+
+    /**
+     * Number of bookmark folders of the user.
+     */
+    public static final int FOLDER_COUNT = 50;
+
+    /**
+     * Timestamp of the newest generated WBO in centiseconds.
+     */
+    public static final long NEWEST_MODIFIED = 130000000000L;
+
+    /**
+     * Time span in seconds the modification timestamps of the generated WBOs are spread over.
+     */
+    public static final int MODIFIED_SPAN = 90 * 24 * 3600;
+
+    private static final AtomicInteger databaseCounter = new AtomicInteger();
+
+    private static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final BasicDataSource dataSource;
+    private final SessionFactory sessionFactory;
+    private final HibernateTransactionManager platformTransactionManager;
+    private final TransactionManager transactionManager;
+    private final WeaveUserDAOImpl userDAO;
+    private final WeaveStorageDAOImpl storageDAO;
+    private final Random random = new Random(4711);
+    private WeaveUser user;
+
+    /**
+     * Creates a new, empty database.
+     *
+     * @throws Exception if the database cannot be created
+     */
+    public BenchmarkDatabase() throws Exception {
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.hsqldb.jdbcDriver");
+        dataSource.setUrl("jdbc:hsqldb:mem:weave4j-benchmark-" + databaseCounter.incrementAndGet());
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+
+        LocalSessionFactoryBean sessionFactoryBean = new LocalSessionFactoryBean();
+        sessionFactoryBean.setDataSource(dataSource);
+        sessionFactoryBean.setConfigLocation(new ClassPathResource("hibernate.cfg.xml"));
+        Properties hibernateProperties = new Properties();
+        hibernateProperties.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect");
+        hibernateProperties.setProperty("hibernate.hbm2ddl.auto", "update");
+        hibernateProperties.setProperty("hibernate.jdbc.batch_size", "50");
+        hibernateProperties.setProperty("hibernate.order_inserts", "true");
+        hibernateProperties.setProperty("hibernate.order_updates", "true");
+        sessionFactoryBean.setHibernateProperties(hibernateProperties);
+        sessionFactoryBean.afterPropertiesSet();
+        sessionFactory = (SessionFactory) sessionFactoryBean.getObject();
+
+        platformTransactionManager = new HibernateTransactionManager(sessionFactory);
+        transactionManager = new TransactionManager();
+        transactionManager.setPlatformTransactionManager(platformTransactionManager);
+
+        userDAO = new WeaveUserDAOImpl();
+        userDAO.setSessionFactory(sessionFactory);
+        storageDAO = new WeaveStorageDAOImpl();
+        storageDAO.setSessionFactory(sessionFactory);
+    }
+
+    /**
+     * Creates the benchmark user and generates its data.
+     *
+     * @param wboCount total number of WBOs to generate
+     */
+    public void populate(int wboCount) {
+        inTransaction(false, new TransactionCallback<Object>() {
+            public Object doInTransaction(TransactionStatus status) {
+                userDAO.createUser(USERNAME, PasswordHelper.cryptPasswordSSHA(PASSWORD), "benchmark@example.com");
+                return null;
+            }
+        });
+        user = inTransaction(true, new TransactionCallback<WeaveUser>() {
+            public WeaveUser doInTransaction(TransactionStatus status) {
+                return userDAO.findUser(USERNAME);
+            }
+        });
+
+        int remaining = Math.max(wboCount - 2 * CLIENT_COUNT, 0);
+        int bookmarkCount = remaining / 4;
+        int historyCount = remaining - bookmarkCount;
+
+        List<WeaveBasicObject> clients = new ArrayList<WeaveBasicObject>();
+        List<WeaveBasicObject> tabs = new ArrayList<WeaveBasicObject>();
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            clients.add(createWBO(clientId(i), 150, null));
+            tabs.add(createWBO(clientId(i), 4000, null));
+        }
+        insert("clients", clients);
+        insert("tabs", tabs);
+
+        List<WeaveBasicObject> bookmarks = new ArrayList<WeaveBasicObject>();
+        for (int i = 0; i < bookmarkCount; i++) {
+            WeaveBasicObject wbo = createWBO(bookmarkId(i), 600, i);
+            wbo.setParentId(folderId(i % FOLDER_COUNT));
+            if (i >= FOLDER_COUNT) {
+                wbo.setPredecessorId(bookmarkId(i - FOLDER_COUNT));
+            }
+            bookmarks.add(wbo);
+        }
+        insert("bookmarks", bookmarks);
+
+        List<WeaveBasicObject> history = new ArrayList<WeaveBasicObject>();
+        for (int i = 0; i < historyCount; i++) {
+            history.add(createWBO(historyId(i), 350, random.nextInt(2000)));
+        }
+        insert("history", history);
+    }
+
+    private void insert(final String collection, List<WeaveBasicObject> wbos) {
+        // The WBOs are inserted in chunks, so that the session does not grow too large.
+        for (int i = 0; i < wbos.size(); i += 1000) {
+            final List<WeaveBasicObject> chunk = wbos.subList(i, Math.min(i + 1000, wbos.size()));
+            inTransaction(false, new TransactionCallback<Object>() {
+                public Object doInTransaction(TransactionStatus status) {
+                    storageDAO.insertWBOs(user, collection, chunk);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates a WBO with a random payload and modification timestamp.
+     *
+     * @param id identifier of the WBO
+     * @param ciphertextLength length of the ciphertext within the payload
+     * @param sortIndex sort index of the WBO (may be <code>null</code>)
+     * @return new WBO, not stored in the database
+     */
+    public WeaveBasicObject createWBO(String id, int ciphertextLength, Integer sortIndex) {
+        WeaveBasicObject wbo = new WeaveBasicObject();
+        wbo.setId(id);
+        wbo.setModified(NEWEST_MODIFIED - random.nextInt(MODIFIED_SPAN * 100));
+        wbo.setSortIndex(sortIndex);
+        wbo.setPayload(createPayload(ciphertextLength));
+        return wbo;
+    }
+
+    private String createPayload(int ciphertextLength) {
+        StringBuilder sb = new StringBuilder(ciphertextLength + 120);
+        sb.append("{\"ciphertext\":\"");
+        appendRandomBase64(sb, ciphertextLength);
+        sb.append("\",\"IV\":\"");
+        appendRandomBase64(sb, 24);
+        sb.append("\",\"hmac\":\"");
+        for (int i = 0; i < 64; i++) {
+            sb.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        sb.append("\"}");
+        return sb.toString();
+    }
+
+    private void appendRandomBase64(StringBuilder sb, int length) {
+        for (int i = 0; i < length; i++) {
+            sb.append(BASE64_CHARS[random.nextInt(BASE64_CHARS.length)]);
+        }
+    }
+
+    /**
+     * Returns the identifier of a generated history WBO.
+     *
+     * @param index index of the WBO
+     * @return WBO identifier
+     */
+    public static String historyId(int index) {
+        return "history-" + index;
+    }
+
+    /**
+     * Returns the identifier of a generated bookmark WBO.
+     *
+     * @param index index of the WBO
+     * @return WBO identifier
+     */
+    public static String bookmarkId(int index) {
+        return "bookmark-" + index;
+    }
+
+    /**
+     * Returns the identifier of a bookmark folder.
+     *
+     * @param index index of the folder
+     * @return folder identifier
+     */
+    public static String folderId(int index) {
+        return "folder-" + index;
+    }
+
+    /**
+     * Returns the identifier of a generated client WBO.
+     *
+     * @param index index of the client
+     * @return WBO identifier
+     */
+    public static String clientId(int index) {
+        return "client-" + index;
+    }
+
+    /**
+     * Runs a callback within a transaction.
+     *
+     * @param readOnly if <code>true</code>, a read-only transaction is used
+     * @param callback callback to run
+     * @param <T> type of the result
+     * @return result of the callback
+     */
+    public <T> T inTransaction(boolean readOnly, TransactionCallback<T> callback) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(platformTransactionManager);
+        transactionTemplate.setReadOnly(readOnly);
+        return transactionTemplate.execute(callback);
+    }
+
+    /**
+     * Returns the current time as a timestamp for the TTL checks.
+     *
+     * @return current time in seconds
+     */
+    public static long currentTime() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Closes the database.
+     *
+     * @throws Exception if the database cannot be closed
+     */
+    public void close() throws Exception {
+        sessionFactory.close();
+        // In-memory databases are only released when they are shut down.
+        Connection connection = dataSource.getConnection();
+        try {
+            connection.createStatement().execute("SHUTDOWN");
+        } finally {
+            connection.close();
+        }
+        dataSource.close();
+    }
+
+    public TransactionManager getTransactionManager() {
+        return transactionManager;
+    }
+
+    public WeaveUserDAOImpl getUserDAO() {
+        return userDAO;
+    }
+
+    public WeaveStorageDAOImpl getStorageDAO() {
+        return storageDAO;
+    }
+
+    public WeaveUser getUser() {
+        return user;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.benchmark;
+
+import org.marsching.weave4j.dbo.WeaveBasicObject;
+import org.marsching.weave4j.web.JSONHelper;
+import org.marsching.weave4j.web.JSONListWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for writing lists of WBOs with {@link JSONHelper} in the three content types supported by Weave.
+ *
+ * @author Sebastian Marsching
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JSONHelperBenchmark {
+
+    /**
+     * Content type requested by the client.
+     */
+    @Param({"application/json", "application/newlines", "application/whoisi"})
+    public String contentType;
+
+    /**
+     * Number of WBOs in the list.
+     */
+    @Param({"100", "1000"})
+    public int wboCount;
+
+    private BenchmarkDatabase database;
+    private List<WeaveBasicObject> wbos;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // The database is only used to generate the WBOs, nothing is stored.
+        database = new BenchmarkDatabase();
+        wbos = new ArrayList<WeaveBasicObject>(wboCount);
+        for (int i = 0; i < wboCount; i++) {
+            wbos.add(database.createWBO(BenchmarkDatabase.historyId(i), 350, i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Benchmark
+    public MockHttpServletResponse writeJSON() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader("Accept", contentType);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        JSONListWriter listWriter = JSONHelper.createListWriter(request, response);
+        for (WeaveBasicObject wbo : wbos) {
+            listWriter.write(wbo, true, 1300000000L);
+        }
+        listWriter.close();
+        return response;
+    }
+}
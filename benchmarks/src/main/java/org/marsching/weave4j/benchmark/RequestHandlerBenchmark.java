@@ -0,0 +1,132 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.benchmark;
+
+import org.apache.commons.codec.binary.Base64;
+import org.marsching.weave4j.web.CaptchaSettings;
+import org.marsching.weave4j.web.CredentialCache;
+import org.marsching.weave4j.web.WeaveHttpRequestHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link WeaveHttpRequestHandler}. The requests are passed to the handler directly, so the
+ * benchmarks include authentication, transaction handling and JSON serialization, but not the servlet container.
+ *
+ * @author Sebastian Marsching
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestHandlerBenchmark {
+
+    /**
+     * Total number of WBOs stored for the user.
+     */
+    @Param({"10000"})
+    public int wboCount;
+
+    /**
+     * Time to live of the credential cache in seconds, 0 disables the cache.
+     */
+    @Param({"0", "300"})
+    public int credentialCacheTimeToLive;
+
+    private BenchmarkDatabase database;
+    private WeaveHttpRequestHandler handler;
+    private String authorization;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase();
+        database.populate(wboCount);
+        CredentialCache credentialCache = new CredentialCache();
+        credentialCache.setTimeToLive(credentialCacheTimeToLive);
+        handler = new WeaveHttpRequestHandler();
+        handler.setTransactionManager(database.getTransactionManager());
+        handler.setUserDAO(database.getUserDAO());
+        handler.setStorageDAO(database.getStorageDAO());
+        handler.setCaptchaSettings(new CaptchaSettings());
+        handler.setCredentialCache(credentialCache);
+        authorization = "Basic " + new String(Base64.encodeBase64((BenchmarkDatabase.USERNAME + ":" + BenchmarkDatabase.PASSWORD).getBytes("utf-8")), "utf-8");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    private MockHttpServletResponse request(String method, String path, String query) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        request.setServletPath(path);
+        request.addHeader("Authorization", authorization);
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                String[] nameAndValue = parameter.split("=", 2);
+                request.addParameter(nameAndValue[0], nameAndValue.length > 1 ? nameAndValue[1] : "");
+            }
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        handler.handleRequest(request, response);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse getInfoCollections() throws Exception {
+        return request("GET", "/1.1/" + BenchmarkDatabase.USERNAME + "/info/collections", null);
+    }
+
+    @Benchmark
+    public MockHttpServletResponse getCollectionIds() throws Exception {
+        return request("GET", "/1.1/" + BenchmarkDatabase.USERNAME + "/storage/bookmarks", null);
+    }
+
+    @Benchmark
+    public MockHttpServletResponse getCollectionFull() throws Exception {
+        return request("GET", "/1.1/" + BenchmarkDatabase.USERNAME + "/storage/history", "full=1&sort=newest&limit=100");
+    }
+
+    @Benchmark
+    public MockHttpServletResponse pollCollection() throws Exception {
+        // An incremental sync that finds only the newest WBOs
+        return request("GET", "/1.1/" + BenchmarkDatabase.USERNAME + "/storage/history", "full=1&newer=" + BenchmarkDatabase.NEWEST_MODIFIED / 100 + ".00");
+    }
+
+    @Benchmark
+    public MockHttpServletResponse getWBO() throws Exception {
+        return request("GET", "/1.1/" + BenchmarkDatabase.USERNAME + "/storage/tabs/" + BenchmarkDatabase.clientId(0), null);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.benchmark;
+
+import org.marsching.weave4j.dbo.WeaveBasicObject;
+import org.marsching.weave4j.dbo.WeaveCollection;
+import org.marsching.weave4j.dbo.WeaveStorageDAO;
+import org.marsching.weave4j.dbo.WeaveStorageDAO.SortOrder;
+import org.marsching.weave4j.dbo.WeaveUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link org.marsching.weave4j.dbo.WeaveStorageDAOImpl}. Each query benchmark runs in its own
+ * read-only transaction, like a request would.
+ *
+ * @author Sebastian Marsching
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageDAOBenchmark {
+
+    /**
+     * Total number of WBOs stored for the user.
+     */
+    @Param({"1000", "10000", "100000"})
+    public int wboCount;
+
+    private BenchmarkDatabase database;
+    private WeaveStorageDAO storageDAO;
+    private WeaveUser user;
+    private List<String> historyIds;
+    private long recentlyModified;
+    private int insertCounter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchmarkDatabase();
+        database.populate(wboCount);
+        storageDAO = database.getStorageDAO();
+        user = database.getUser();
+        historyIds = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            historyIds.add(BenchmarkDatabase.historyId(i * 7));
+        }
+        // About one percent of the WBOs has been modified after this timestamp, as for an incremental sync.
+        recentlyModified = BenchmarkDatabase.NEWEST_MODIFIED - BenchmarkDatabase.MODIFIED_SPAN;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    /**
+     * Removes the WBOs inserted by the insert benchmarks, so that every iteration starts with the same data.
+     */
+    @Setup(Level.Iteration)
+    public void clearInsertedWBOs() {
+        database.inTransaction(false, new TransactionCallback<Object>() {
+            public Object doInTransaction(TransactionStatus status) {
+                storageDAO.deleteCollection(user, "forms", BenchmarkDatabase.NEWEST_MODIFIED);
+                return null;
+            }
+        });
+    }
+
+    private List<WeaveBasicObject> query(final String collection, final List<String> ids, final String parentId, final Long modifiedBefore, final Long modifiedSince, final Integer sortIndexAbove, final Integer limit, final Integer offset, final SortOrder sortOrder) {
+        final long timestamp = BenchmarkDatabase.currentTime();
+        return database.inTransaction(true, new TransactionCallback<List<WeaveBasicObject>>() {
+            public List<WeaveBasicObject> doInTransaction(TransactionStatus status) {
+                return storageDAO.getWBOsFromCollection(user, collection, ids, null, parentId, modifiedBefore, modifiedSince, sortIndexAbove, null, limit, offset, null, sortOrder, timestamp);
+            }
+        });
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getCollectionFull() {
+        return query("bookmarks", null, null, null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getByIds() {
+        return query("history", historyIds, null, null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getByParentId() {
+        return query("bookmarks", null, BenchmarkDatabase.folderId(3), null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getNewer() {
+        return query("history", null, null, null, recentlyModified, null, null, null, null);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getOlder() {
+        return query("history", null, null, recentlyModified, null, null, 100, null, SortOrder.NEWEST);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getIndexAbove() {
+        return query("history", null, null, null, null, 1980, null, null, SortOrder.INDEX);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getSortOldest() {
+        return query("history", null, null, null, null, null, 100, null, SortOrder.OLDEST);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getSortNewest() {
+        return query("history", null, null, null, null, null, 100, null, SortOrder.NEWEST);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getSortIndex() {
+        return query("history", null, null, null, null, null, 100, null, SortOrder.INDEX);
+    }
+
+    @Benchmark
+    public List<WeaveBasicObject> getLimitOffset() {
+        return query("history", null, null, null, null, null, 100, wboCount / 4, SortOrder.NEWEST);
+    }
+
+    @Benchmark
+    public List<WeaveCollection> getInfoCollections() {
+        return database.inTransaction(true, new TransactionCallback<List<WeaveCollection>>() {
+            public List<WeaveCollection> doInTransaction(TransactionStatus status) {
+                return storageDAO.getCollections(user);
+            }
+        });
+    }
+
+    @Benchmark
+    public void insertSingle() {
+        final WeaveBasicObject wbo = database.createWBO("form-" + (insertCounter++), 200, null);
+        database.inTransaction(false, new TransactionCallback<Object>() {
+            public Object doInTransaction(TransactionStatus status) {
+                storageDAO.insertWBO(user, "forms", wbo);
+                return null;
+            }
+        });
+    }
+
+    @Benchmark
+    public void insertBatch() {
+        final List<WeaveBasicObject> wbos = new ArrayList<WeaveBasicObject>(100);
+        for (int i = 0; i < 100; i++) {
+            wbos.add(database.createWBO("form-" + (insertCounter++), 200, null));
+        }
+        database.inTransaction(false, new TransactionCallback<Object>() {
+            public Object doInTransaction(TransactionStatus status) {
+                storageDAO.insertWBOs(user, "forms", wbos);
+                return null;
+            }
+        });
+    }
+}
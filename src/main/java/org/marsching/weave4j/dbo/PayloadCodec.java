@@ -0,0 +1,127 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.dbo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes payloads in the compressed storage format. The first byte of an encoded payload is a format marker, so
+ * that further formats can be added without migrating the stored data. The only format at the moment is
+ * {@link #FORMAT_DEFLATE}: the UTF-8 representation of the payload, compressed with the deflate algorithm.
+ *
+ * @author Sebastian Marsching
+ */
+public final class PayloadCodec {
+
+    /**
+     * Format marker for payloads compressed with the deflate algorithm.
+     */
+    public static final byte FORMAT_DEFLATE = 1;
+
+    /**
+     * Maximum length of an encoded payload. It matches the length of the database column.
+     */
+    public static final int MAX_ENCODED_LENGTH = 262144;
+
+    /**
+     * Minimum length of a payload that is compressed. Shorter payloads hardly ever get shorter when compressed.
+     */
+    public static final int MIN_PAYLOAD_LENGTH = 64;
+
+    private static final String CHARSET = "UTF-8";
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * Compresses a payload. The payload is only compressed if it is at least {@link #MIN_PAYLOAD_LENGTH} characters
+     * long and the encoded form is shorter than the payload and fits into the database column.
+     *
+     * @param payload payload to compress
+     * @return encoded payload or <code>null</code> if the payload should be stored uncompressed
+     */
+    public static byte[] encode(String payload) {
+        if (payload.length() < MIN_PAYLOAD_LENGTH) {
+            return null;
+        }
+        byte[] data = toBytes(payload);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            out.write(FORMAT_DEFLATE);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= payload.length() || out.size() > MAX_ENCODED_LENGTH) {
+                    // Compressing does not pay off, so there is no need to finish.
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a payload encoded by {@link #encode(String)}.
+     *
+     * @param encoded encoded payload
+     * @return payload
+     * @throws IllegalStateException if the encoded payload uses an unknown format or is corrupt
+     */
+    public static String decode(byte[] encoded) {
+        if (encoded.length == 0 || encoded[0] != FORMAT_DEFLATE) {
+            throw new IllegalStateException("Unknown payload format " + (encoded.length == 0 ? "(empty)" : Byte.toString(encoded[0])));
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, 1, encoded.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed payload is truncated");
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), CHARSET);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed payload is corrupt", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(CHARSET + " is not supported", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] toBytes(String payload) {
+        try {
+            return payload.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(CHARSET + " is not supported", e);
+        }
+    }
+}
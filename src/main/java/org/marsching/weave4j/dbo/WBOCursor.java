@@ -0,0 +1,163 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.dbo;
+
+import org.apache.commons.codec.binary.Base64;
+import org.marsching.weave4j.dbo.WeaveStorageDAO.SortOrder;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Position within the list of WBOs of a collection, used for keyset pagination. A cursor stores the sort key of
+ * the last WBO of a page, so that the next page can be selected with a condition on the sort key instead of
+ * skipping rows. The identifier of the WBO is part of the sort key, so that the order is unique.
+ *
+ * @author Sebastian Marsching
+ */
+public class WBOCursor {
+
+    /**
+     * Prefix of encoded cursors. It ensures that an encoded cursor can be distinguished from a numeric offset.
+     */
+    private static final String TOKEN_PREFIX = "k";
+
+    private final SortOrder sortOrder;
+    private final Long modified;
+    private final Integer sortIndex;
+    private final String id;
+
+    /**
+     * Creates a cursor.
+     *
+     * @param sortOrder sort order the cursor belongs to (<code>null</code> for the order by identifier)
+     * @param modified modification timestamp of the last WBO in centiseconds (only used for {@link SortOrder#OLDEST} and
+     *  {@link SortOrder#NEWEST})
+     * @param sortIndex sort index of the last WBO (only used for {@link SortOrder#INDEX})
+     * @param id identifier of the last WBO
+     */
+    public WBOCursor(SortOrder sortOrder, Long modified, Integer sortIndex, String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Identifier of cursor must not be null");
+        }
+        if ((sortOrder == SortOrder.OLDEST || sortOrder == SortOrder.NEWEST) && modified == null) {
+            throw new IllegalArgumentException("Modification timestamp of cursor must not be null for sort order " + sortOrder);
+        }
+        this.sortOrder = sortOrder;
+        this.modified = sortOrder == SortOrder.OLDEST || sortOrder == SortOrder.NEWEST ? modified : null;
+        this.sortIndex = sortOrder == SortOrder.INDEX ? sortIndex : null;
+        this.id = id;
+    }
+
+    /**
+     * Creates a cursor pointing after a WBO.
+     *
+     * @param sortOrder sort order the cursor belongs to
+     * @param wbo last WBO of a page
+     * @return cursor
+     */
+    public static WBOCursor after(SortOrder sortOrder, WeaveBasicObject wbo) {
+        return new WBOCursor(sortOrder, wbo.getModified(), wbo.getSortIndex(), wbo.getId());
+    }
+
+    /**
+     * Returns whether a string is an encoded cursor (in contrast to a numeric offset).
+     *
+     * @param token string to check
+     * @return <code>true</code> if the string has the form of an encoded cursor
+     */
+    public static boolean isToken(String token) {
+        return token != null && token.startsWith(TOKEN_PREFIX);
+    }
+
+    /**
+     * Encodes the cursor as an opaque string that can be passed to a client.
+     *
+     * @return encoded cursor
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(sortOrder == null ? "" : sortOrder.name());
+        sb.append('|');
+        if (modified != null) {
+            sb.append(modified.longValue());
+        } else if (sortIndex != null) {
+            sb.append(sortIndex.intValue());
+        }
+        sb.append('|');
+        sb.append(id);
+        try {
+            return TOKEN_PREFIX + Base64.encodeBase64URLSafeString(sb.toString().getBytes("utf-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Decodes a cursor encoded by {@link #encode()}.
+     *
+     * @param token encoded cursor
+     * @return cursor
+     * @throws IllegalArgumentException if the token is not a valid cursor
+     */
+    public static WBOCursor decode(String token) {
+        if (!isToken(token)) {
+            throw new IllegalArgumentException("Invalid cursor: " + token);
+        }
+        String decoded;
+        try {
+            decoded = new String(Base64.decodeBase64(token.substring(TOKEN_PREFIX.length())), "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+        String[] parts = decoded.split("\\|", 3);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid cursor: " + token);
+        }
+        try {
+            SortOrder sortOrder = parts[0].length() == 0 ? null : SortOrder.valueOf(parts[0]);
+            Long modified = null;
+            Integer sortIndex = null;
+            if (parts[1].length() != 0) {
+                if (sortOrder == SortOrder.INDEX) {
+                    sortIndex = Integer.valueOf(parts[1]);
+                } else {
+                    modified = Long.valueOf(parts[1]);
+                }
+            }
+            return new WBOCursor(sortOrder, modified, sortIndex, parts[2]);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + token, e);
+        }
+    }
+
+    public SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    public Long getModified() {
+        return modified;
+    }
+
+    public Integer getSortIndex() {
+        return sortIndex;
+    }
+
+    public String getId() {
+        return id;
+    }
+}
@@ -17,9 +17,6 @@
 
 package org.marsching.weave4j.dbo;
 
-import java.math.BigDecimal;
-import java.math.BigInteger;
-
 /**
  * Weave Basic Object. This is the smallest entity stored by the Weave server.
  * 
@@ -32,10 +29,13 @@ public class WeaveBasicObject {
     private String id;
     private String parentId;
     private String predecessorId;
-    private BigDecimal modified;
-    private BigInteger ttl;
+    private long modified;
+    private Long ttl;
     private Integer sortIndex;
     private String payload;
+    private byte[] compressedPayload;
+    private Integer payloadSize;
+    private transient String decodedPayload;
 
     private WeaveCollection collection;
 
@@ -130,12 +130,13 @@ public class WeaveBasicObject {
     }
 
     /**
-     * Returns the time this WBO has been last modified in seconds since
-     * 01/01/1970.
+     * Returns the time this WBO has been last modified in centiseconds since
+     * 01/01/1970. The protocol represents timestamps as decimal seconds, the
+     * conversion is done when the WBO is serialized.
      * 
      * @return timestamp this WBO has been last modified
      */
-    public BigDecimal getModified() {
+    public long getModified() {
         return modified;
     }
 
@@ -144,12 +145,37 @@ public class WeaveBasicObject {
      * time a WBO is created or modified.
      * 
      * @param modified
-     *            timestamp of the last modification in seconds since 01/01/1970
+     *            timestamp of the last modification in centiseconds since
+     *            01/01/1970
      */
-    public void setModified(BigDecimal modified) {
+    public void setModified(long modified) {
         this.modified = modified;
     }
 
+    /**
+     * Returns the timestamp of the last modification in seconds with two
+     * decimal places. Earlier versions stored the timestamp in this form in
+     * the column modified. The column is still written, so that an earlier
+     * version can be used with the database again.
+     * 
+     * @return timestamp this WBO has been last modified in seconds
+     */
+    @SuppressWarnings("unused")
+    private java.math.BigDecimal getLegacyModified() {
+        return java.math.BigDecimal.valueOf(modified, 2);
+    }
+
+    /**
+     * Ignores the timestamp read from the column written by earlier versions.
+     * The timestamp in centiseconds is read from its own column.
+     * 
+     * @param legacyModified
+     *            timestamp of the last modification in seconds
+     */
+    @SuppressWarnings("unused")
+    private void setLegacyModified(java.math.BigDecimal legacyModified) {
+    }
+
     /**
      * Returns the time to live (TTL). The TTL is the point in time after which
      * this WBO will be automatically deleted. This means, that the WBO will
@@ -160,7 +186,7 @@ public class WeaveBasicObject {
      * 
      * @return time to live (TTL)
      */
-    public BigInteger getTtl() {
+    public Long getTtl() {
         return ttl;
     }
 
@@ -173,7 +199,7 @@ public class WeaveBasicObject {
      * @param ttl
      *            time to live (TTL)
      */
-    public void setTtl(BigInteger ttl) {
+    public void setTtl(Long ttl) {
         this.ttl = ttl;
     }
 
@@ -198,22 +224,75 @@ public class WeaveBasicObject {
     }
 
     /**
-     * Returns the payload of this WBO.
+     * Returns the payload of this WBO. A compressed payload is decompressed
+     * when it is requested for the first time.
      * 
      * @return payload
      */
     public String getPayload() {
+        if (payload == null && compressedPayload != null) {
+            if (decodedPayload == null) {
+                decodedPayload = PayloadCodec.decode(compressedPayload);
+            }
+            return decodedPayload;
+        }
         return payload;
     }
 
     /**
-     * Sets the payload of the WBO. This can be an arbitrary string.
+     * Sets the payload of the WBO. This can be an arbitrary string. The
+     * payload is stored uncompressed until {@link #compressPayload()} is
+     * called.
      * 
      * @param payload
      *            arbitrary string representing the data stored in this WBO
      */
     public void setPayload(String payload) {
         this.payload = payload;
+        this.compressedPayload = null;
+        this.decodedPayload = null;
+        this.payloadSize = payload == null ? 0 : payload.length();
+    }
+
+    /**
+     * Returns the length of the payload in characters. The length is stored
+     * with the WBO, so that the payload does not have to be decompressed.
+     * 
+     * @return length of the payload or <code>0</code> if the WBO has no
+     *         payload
+     */
+    public int getPayloadLength() {
+        return payloadSize == null ? 0 : payloadSize;
+    }
+
+    /**
+     * Tells whether the payload is stored in compressed form.
+     * 
+     * @return <code>true</code> if the payload is compressed
+     */
+    public boolean isPayloadCompressed() {
+        return payload == null && compressedPayload != null;
+    }
+
+    /**
+     * Compresses the payload for storage, if compression makes it shorter.
+     * The payload stays available through {@link #getPayload()} without
+     * being decompressed again.
+     * 
+     * @return <code>true</code> if the payload has been compressed
+     */
+    public boolean compressPayload() {
+        if (payload == null) {
+            return false;
+        }
+        byte[] encoded = PayloadCodec.encode(payload);
+        if (encoded == null) {
+            return false;
+        }
+        decodedPayload = payload;
+        compressedPayload = encoded;
+        payload = null;
+        return true;
     }
 
     /**
@@ -30,6 +30,10 @@ public class WeaveCollection {
 
     private String type;
     private WeaveUser user;
+
+    private Long lastModified;
+    private Integer wboCount;
+    private Long payloadSize;
     
     private Set<WeaveBasicObject> weaveBasicObjects = new HashSet<WeaveBasicObject>();
 
@@ -89,6 +93,69 @@ public class WeaveCollection {
         this.user = user;
     }
 
+    /**
+     * Returns the timestamp of the latest modification of this collection. This
+     * is the timestamp of the latest creation, modification or deletion of a WBO
+     * stored within the collection. The value is maintained by the DAO and is
+     * <code>null</code> for collections that have been created by an older version
+     * and whose metadata has not been recomputed yet.
+     *
+     * @return timestamp of the last modification in centiseconds since 01/01/1970
+     */
+    public Long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Sets the timestamp of the latest modification of this collection.
+     *
+     * @param lastModified timestamp of the last modification in centiseconds since 01/01/1970
+     */
+    public void setLastModified(Long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the number of WBOs stored within this collection. This number
+     * includes WBOs whose TTL has expired, but that have not been removed yet.
+     * The value is maintained by the DAO and is <code>null</code> for collections
+     * whose metadata has not been computed yet.
+     *
+     * @return number of WBOs stored within this collection
+     */
+    public Integer getWboCount() {
+        return wboCount;
+    }
+
+    /**
+     * Sets the number of WBOs stored within this collection.
+     *
+     * @param wboCount number of WBOs stored within this collection
+     */
+    public void setWboCount(Integer wboCount) {
+        this.wboCount = wboCount;
+    }
+
+    /**
+     * Returns the sum of the payload lengths of all WBOs stored within this
+     * collection. The value is maintained by the DAO and is <code>null</code>
+     * for collections whose metadata has not been computed yet.
+     *
+     * @return size of the payloads stored within this collection
+     */
+    public Long getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Sets the sum of the payload lengths of all WBOs stored within this collection.
+     *
+     * @param payloadSize size of the payloads stored within this collection
+     */
+    public void setPayloadSize(Long payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
     /**
      * Returns all WBOs that are stored within this collection.
      *
@@ -17,12 +17,13 @@
 
 package org.marsching.weave4j.dbo;
 
-import java.math.BigDecimal;
-import java.math.BigInteger;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Provides methods to access WBOs and collections in the database.
+ * Provides methods to access WBOs and collections in the database. Modification timestamps are passed as whole
+ * centiseconds since 01/01/1970, while the timestamps used for checking the TTL of WBOs are whole seconds.
  *
  * @author Sebastian Marsching
  */
@@ -35,46 +36,62 @@ public interface WeaveStorageDAO {
         OLDEST, NEWEST, INDEX
     }
 
+    /**
+     * Callback that processes WBOs one at a time.
+     */
+    public interface WBOCallback {
+
+        /**
+         * Processes a WBO. The WBO is detached from the session after this method returns, so changes to the
+         * WBO are not persisted.
+         *
+         * @param wbo Weave Basic Object
+         */
+        void processWBO(WeaveBasicObject wbo);
+    }
+
     /**
      * Returns the timestamp a collection has been last modified.
-     * This is the the timestamp of the latest modification of any WBO stored within the collection.
-     * If no WBO is stored within the collection, <code>null</code> is returned.
+     * This is the the timestamp of the latest creation, modification or deletion of any WBO stored within the
+     * collection. The value is read from the metadata stored with the collection. If the collection does not
+     * exist, <code>0</code> is returned.
      *
      * @param user Weave user
      * @param collection type of the collection
-     * @param timestamp the timestamp to use for checking the TTL of WBOs
-     * @return the timestamp of the last modification of this WBO or <code>null</code>
+     * @return the timestamp of the last modification or <code>0</code> if the collection does not exist
      */
-    BigDecimal getLastModified(WeaveUser user, String collection, BigInteger timestamp);
+    long getLastModified(WeaveUser user, String collection);
 
     /**
-     * Returns the number of WBOs stored within a collection.
+     * Returns the timestamp the storage of a user or a single collection has been last modified. Unlike
+     * {@link #getLastModified(WeaveUser, String)}, the deletion of collections is taken into account,
+     * so the timestamp can be used to decide whether a client's copy of the data is still up to date.
      *
      * @param user Weave user
-     * @param collection type of the collection
-     * @param timestamp the timestamp to use for checking the TTL of WBOs
-     * @return number of WBOs stored within the collection
+     * @param collection type of the collection or <code>null</code> for all collections of the user
+     * @return timestamp of the last modification or <code>0</code> if the storage has never been modified
      */
-    int getWBOCount(WeaveUser user, String collection, BigInteger timestamp);
+    long getStorageLastModified(WeaveUser user, String collection);
 
     /**
-     * Returns the size of the data stored in a collection.
-     * 
+     * Returns all collections of a user using a single query. The metadata stored with the collections
+     * (timestamp of the last modification, number of WBOs and size of the payloads) provides the information
+     * needed for the info requests, so the WBOs do not have to be read.
+     *
      * @param user Weave user
-     * @param collection type of the collection
-     * @param timestamp the timestamp to use for checking the TTL of WBOs
-     * @return the size of the data in the collection in kilobytes
+     * @return collections of the user
      */
-    long getCollectionSize(WeaveUser user, String collection, BigInteger timestamp);
+    List<WeaveCollection> getCollections(WeaveUser user);
 
     /**
-     * Returns the size of the data stored for a user.
-     * 
+     * Returns the timestamp collections of a user have been last deleted. Together with the timestamps stored
+     * with the collections (see {@link #getCollections(WeaveUser)}), this is the timestamp the storage of the user
+     * has been last modified.
+     *
      * @param user Weave user
-     * @param timestamp the timestamp to use for checking the TTL of WBOs
-     * @return the size of the data stored for a user in kilobytes
+     * @return timestamp of the last deletion or <code>0</code> if no collection has been deleted yet
      */
-    long getTotalSize(WeaveUser user, BigInteger timestamp);
+    long getStorageModified(WeaveUser user);
 
     /**
      * Returns the WBO identified by the specified parameters or <code>null</code> if none such WBO is found.
@@ -85,7 +102,20 @@ public interface WeaveStorageDAO {
      * @param timestamp the timestamp to use for checking the TTL of WBOs
      * @return the Weave Basic Object identified by the parameters
      */
-    WeaveBasicObject getWBO(WeaveUser user, String collection, String id, BigInteger timestamp);
+    WeaveBasicObject getWBO(WeaveUser user, String collection, String id, long timestamp);
+
+    /**
+     * Returns the WBOs identified by the specified identifiers using a single query. In contrast to
+     * {@link #getWBO(WeaveUser, String, String, long)}, WBOs whose TTL has expired but that have not been
+     * removed from the database yet are returned as well, so that the caller can reuse them instead of trying to
+     * insert a WBO with the same identifier.
+     *
+     * @param user Weave user
+     * @param collection type of the collection
+     * @param ids identifiers of the WBOs
+     * @return map from the identifier to the WBO, identifiers for which no WBO exists are not contained
+     */
+    Map<String, WeaveBasicObject> getWBOs(WeaveUser user, String collection, Collection<String> ids);
 
     /**
      * Retuns all WBOs from a collection that satisfy the specified predicates.
@@ -102,6 +132,8 @@ public interface WeaveStorageDAO {
      * @param sortIndexBelow return WBOs that have a sort index below the given value (optional)
      * @param limit limit the number of WBOs returned (optional)
      * @param offset skip the number of WBOs returned (from the beginning of the list) (optional)
+     * @param after return WBOs that come after this cursor in the sort order (optional), the cursor has to
+     *  belong to the same sort order
      * @param sortOrder order in which the returned WBOs are sorted (optional)
      * @param timestamp the timestamp to use for checking the TTL of WBOs
      * @return list of WBOs matching the predicates
@@ -112,14 +144,106 @@ public interface WeaveStorageDAO {
             List<String> ids,
             String predecessorId,
             String parentId,
-            BigDecimal modifiedBefore,
-            BigDecimal modifiedSince,
+            Long modifiedBefore,
+            Long modifiedSince,
+            Integer sortIndexAbove,
+            Integer sortIndexBelow,
+            Integer limit,
+            Integer offset,
+            WBOCursor after,
+            SortOrder sortOrder,
+            long timestamp);
+
+    /**
+     * Returns a cursor pointing after a WBO, which can be passed to {@link #getWBOsFromCollection} and related
+     * methods in order to select the WBOs following this WBO.
+     *
+     * @param user Weave user
+     * @param collection type of the collection
+     * @param id identifier of the WBO
+     * @param sortOrder sort order the cursor belongs to (optional)
+     * @return cursor or <code>null</code> if the WBO does not exist
+     */
+    WBOCursor getCursor(WeaveUser user, String collection, String id, SortOrder sortOrder);
+
+    /**
+     * Passes all WBOs from a collection that satisfy the specified predicates to a callback. In contrast to
+     * {@link #getWBOsFromCollection}, the WBOs are read from the database one at a time and are detached from the
+     * session after they have been processed, so that the memory needed does not depend on the number of WBOs.
+     * The predicates are the same as for {@link #getWBOsFromCollection}.
+     *
+     * @param user Weave user (mandatory)
+     * @param collection type of the collection (mandatory)
+     * @param ids return WBOs that match this list of WBO identifiers (optional)
+     * @param predecessorId return WBOs that have this  predecessor id (optional)
+     * @param parentId return WBOs that have this parent id (optional)
+     * @param modifiedBefore return WBOs that have been modified before the given timestamp (optional)
+     * @param modifiedSince return WBOs that have been modified since the given timestamp (optional)
+     * @param sortIndexAbove return WBOs that have a sort index above the given value (optional)
+     * @param sortIndexBelow return WBOs that have a sort index below the given value (optional)
+     * @param limit limit the number of WBOs returned (optional)
+     * @param offset skip the number of WBOs returned (from the beginning of the list) (optional)
+     * @param after return WBOs that come after this cursor in the sort order (optional), the cursor has to
+     *  belong to the same sort order
+     * @param sortOrder order in which the returned WBOs are sorted (optional)
+     * @param timestamp the timestamp to use for checking the TTL of WBOs
+     * @param callback callback that is called for each WBO
+     * @return number of WBOs passed to the callback
+     */
+    int scrollWBOsFromCollection(
+            WeaveUser user,
+            String collection,
+            List<String> ids,
+            String predecessorId,
+            String parentId,
+            Long modifiedBefore,
+            Long modifiedSince,
+            Integer sortIndexAbove,
+            Integer sortIndexBelow,
+            Integer limit,
+            Integer offset,
+            WBOCursor after,
+            SortOrder sortOrder,
+            long timestamp,
+            WBOCallback callback);
+
+    /**
+     * Returns the identifiers of all WBOs from a collection that satisfy the specified predicates. This method
+     * selects the same WBOs in the same order as {@link #getWBOsFromCollection}, but does not load the WBOs
+     * themselves, so it is considerably cheaper if only the identifiers are needed.
+     *
+     * @param user Weave user (mandatory)
+     * @param collection type of the collection (mandatory)
+     * @param ids return WBOs that match this list of WBO identifiers (optional)
+     * @param predecessorId return WBOs that have this  predecessor id (optional)
+     * @param parentId return WBOs that have this parent id (optional)
+     * @param modifiedBefore return WBOs that have been modified before the given timestamp (optional)
+     * @param modifiedSince return WBOs that have been modified since the given timestamp (optional)
+     * @param sortIndexAbove return WBOs that have a sort index above the given value (optional)
+     * @param sortIndexBelow return WBOs that have a sort index below the given value (optional)
+     * @param limit limit the number of WBOs returned (optional)
+     * @param offset skip the number of WBOs returned (from the beginning of the list) (optional)
+     * @param after return WBOs that come after this cursor in the sort order (optional), the cursor has to
+     *  belong to the same sort order
+     * @param sortOrder order in which the returned WBOs are sorted (optional)
+     * @param timestamp the timestamp to use for checking the TTL of WBOs
+     * @return list of WBO identifiers
+     */
+    List<String> getWBOIdsFromCollection(
+            WeaveUser user,
+            String collection,
+            List<String> ids,
+            String predecessorId,
+            String parentId,
+            Long modifiedBefore,
+            Long modifiedSince,
             Integer sortIndexAbove,
             Integer sortIndexBelow,
             Integer limit,
             Integer offset,
+            WBOCursor after,
             SortOrder sortOrder,
-            BigInteger timestamp);
+            long timestamp);
 
     /**
      * Stores a WBO in the database. The collection type specified here will override the collection specified within
@@ -131,33 +255,149 @@ public interface WeaveStorageDAO {
      */
     void insertWBO(WeaveUser user, String collection, WeaveBasicObject wbo);
 
+    /**
+     * Stores several WBOs in the database. The collection is resolved only once and the session is flushed only
+     * once after all WBOs have been saved, so that the inserts can be sent to the database in JDBC batches. The
+     * collection type specified here will override the collection specified within the WBOs.
+     *
+     * @param user Weave user
+     * @param collection collection type
+     * @param wbos the Weave Basic Objects to be stored
+     */
+    void insertWBOs(WeaveUser user, String collection, Collection<WeaveBasicObject> wbos);
+
+    /**
+     * Writes all pending changes to the database and detaches all objects from the current session. This is used
+     * when many WBOs are stored within a single transaction, so that WBOs that have already been stored do not
+     * have to be kept in memory until the transaction ends. Objects retrieved before calling this method are not
+     * tracked by the session any longer and must not be passed to methods updating them.
+     */
+    void flushAndDetach();
+
+    /**
+     * Updates the metadata of the collection a WBO is stored in after the WBO has been modified. The modified
+     * WBO itself is persisted automatically, when the transaction is committed.
+     *
+     * @param wbo the modified Weave Basic Object
+     * @param previousPayloadLength the length of the payload before the WBO has been modified
+     */
+    void updateWBO(WeaveBasicObject wbo, int previousPayloadLength);
+
     /**
      * Deletes a WBO from the database.
      *
      * @param wbo the WBO which shall be deleted
+     * @param timestamp the timestamp of the deletion, stored as the modification timestamp of the collection
      */
-    void deleteWBO(WeaveBasicObject wbo);
+    void deleteWBO(WeaveBasicObject wbo, long timestamp);
+
+    /**
+     * Deletes all WBOs from a collection that satisfy the specified predicates. If neither <code>limit</code> nor
+     * <code>offset</code> is specified, the WBOs are deleted with a single statement, without loading them.
+     * Otherwise, the identifiers of the WBOs to be deleted are selected first, honouring the sort order.
+     *
+     * @param user Weave user (mandatory)
+     * @param collection type of the collection (mandatory)
+     * @param ids delete WBOs that match this list of WBO identifiers (optional)
+     * @param parentId delete WBOs that have this parent id (optional)
+     * @param modifiedBefore delete WBOs that have been modified before the given timestamp (optional)
+     * @param modifiedSince delete WBOs that have been modified since the given timestamp (optional)
+     * @param limit limit the number of WBOs deleted (optional)
+     * @param offset skip the number of WBOs (from the beginning of the list) (optional)
+     * @param sortOrder order which is used for applying <code>limit</code> and <code>offset</code> (optional)
+     * @param timestamp the timestamp to use for checking the TTL of WBOs when applying <code>limit</code> and
+     *  <code>offset</code>
+     * @param deletionTimestamp the timestamp of the deletion, stored as the modification timestamp of the
+     *  collection
+     * @return number of WBOs that have been deleted
+     */
+    int deleteWBOsFromCollection(
+            WeaveUser user,
+            String collection,
+            List<String> ids,
+            String parentId,
+            Long modifiedBefore,
+            Long modifiedSince,
+            Integer limit,
+            Integer offset,
+            SortOrder sortOrder,
+            long timestamp,
+            long deletionTimestamp);
 
     /**
      * Deletes a collection and all WBOs stored within this collection.
      *
      * @param user Weave user
      * @param collection type of the collection
+     * @param deletionTimestamp timestamp of the deletion, recorded as the storage modification time of the user
      */
-    void deleteCollection(WeaveUser user, String collection);
+    void deleteCollection(WeaveUser user, String collection, long deletionTimestamp);
 
     /**
      * Deletes all collections and all WBOs of a user.
      *
      * @param user Weave user
+     * @param deletionTimestamp timestamp of the deletion, recorded as the storage modification time of the user
      */
-    void deleteAllCollections(WeaveUser user);
+    void deleteAllCollections(WeaveUser user, long deletionTimestamp);
     
     /**
-     * Deletes all WBOs, whose TTL is older than the given timestamp.
+     * Finds WBOs, whose TTL is older than the given timestamp. At most
+     * <code>maxCount</code> WBOs are returned, so that the clean-up can be
+     * split into several short transactions. The WBOs are grouped by the
+     * user they belong to, so that they can be deleted while holding the
+     * lock of this user.
      * 
      * @param timestamp current time as UNIX timestamp (seconds since 
      *  01/01/1970).
+     * @param maxCount maximum number of WBOs to return
+     * @return internal identifiers of the expired WBOs by name of the user
+     */
+    Map<String, List<Long>> findExpiredWBOs(long timestamp, int maxCount);
+
+    /**
+     * Deletes WBOs found by {@link #findExpiredWBOs(long, int)}. WBOs that
+     * have been modified in the meantime, so that their TTL is not older
+     * than the given timestamp any longer, are not deleted.
+     * 
+     * @param ids internal identifiers of the WBOs
+     * @param timestamp current time as UNIX timestamp (seconds since 
+     *  01/01/1970).
+     * @return number of WBOs that have been deleted
+     */
+    int deleteExpiredWBOs(Collection<Long> ids, long timestamp);
+
+    /**
+     * Recomputes the metadata (modification timestamp, number of WBOs and payload size) stored with the
+     * collections from the WBOs stored within the collections. This is needed for databases that have been
+     * created by a version that did not store this metadata.
+     *
+     * @param onlyIncomplete if <code>true</code>, only collections with missing metadata are processed,
+     *  otherwise the metadata of all collections is recomputed
+     * @return number of collections whose metadata has been recomputed
+     */
+    int recomputeCollectionMetadata(boolean onlyIncomplete);
+
+    /**
+     * Stores the payload length of WBOs that have been stored by a version that did not store the payload length.
+     * At most <code>maxCount</code> WBOs are processed, so that the update can be split into several short
+     * transactions.
+     *
+     * @param maxCount maximum number of WBOs to process
+     * @return number of WBOs whose payload length has been stored
+     */
+    int fillPayloadSizes(int maxCount);
+
+    /**
+     * Compresses the payloads of WBOs that are stored uncompressed, e.g. because they have been stored before
+     * payload compression has been enabled. The WBOs are processed in the order of their artificial identifier, so
+     * that the migration can be split into several short transactions. A WBO that is modified concurrently is left
+     * alone, because the modification stores the payload in the current format. If payload compression is
+     * disabled, no WBO is processed.
+     *
+     * @param afterArtificialId only WBOs with a greater artificial identifier are processed
+     * @param maxCount maximum number of WBOs to process
+     * @return artificial identifier of the last WBO processed or <code>null</code> if there are no WBOs left
      */
-    void cleanUpExpiredWBOs(BigInteger timestamp);
+    Long compressStoredPayloads(long afterArtificialId, int maxCount);
 }
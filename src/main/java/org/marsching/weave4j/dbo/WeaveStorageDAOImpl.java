@@ -18,15 +18,23 @@
 package org.marsching.weave4j.dbo;
 
 import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Disjunction;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 
-import java.math.BigDecimal;
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Implementation of {@link org.marsching.weave4j.dbo.WeaveStorageDAO}.
@@ -35,8 +43,15 @@ import java.util.List;
  */
 public class WeaveStorageDAOImpl implements WeaveStorageDAO {
 
+    /**
+     * Number of rows fetched from the database at once when scrolling through WBOs.
+     */
+    private static final int SCROLL_FETCH_SIZE = 100;
+
     private SessionFactory sessionFactory;
 
+    private boolean compressPayloads = false;
+
     /**
      * Sets the Hibernate session factory used by this DAO.
      *
@@ -46,40 +61,175 @@ public class WeaveStorageDAOImpl implements WeaveStorageDAO {
         this.sessionFactory = sessionFactory;
     }
 
-    public BigDecimal getLastModified(WeaveUser user, String collection, BigInteger timestamp) {
-        BigDecimal lastModified = (BigDecimal) sessionFactory.getCurrentSession().createQuery("select max(wbo.modified) from WeaveBasicObject wbo, WeaveCollection c where c.user = ? and c.type = ? and wbo.collection = c and (wbo.ttl is null or wbo.ttl >= ?)").setEntity(0, user).setString(1, collection).setBigInteger(2, timestamp).uniqueResult();
+    /**
+     * Enables or disables the compression of payloads. If enabled, payloads are compressed when WBOs are stored.
+     * Payloads that are already stored are read regardless of this setting.
+     *
+     * @param compressPayloads if <code>true</code>, payloads are compressed
+     */
+    public void setCompressPayloads(boolean compressPayloads) {
+        this.compressPayloads = compressPayloads;
+    }
+
+    public long getLastModified(WeaveUser user, String collection) {
+        Long lastModified = (Long) sessionFactory.getCurrentSession().createQuery("select c.lastModified from WeaveCollection c where c.user = ? and c.type = ?").setEntity(0, user).setString(1, collection).uniqueResult();
         if (lastModified == null) {
-            return new BigDecimal(0);
+            return 0L;
         } else {
             return lastModified;
         }
     }
 
-    public int getWBOCount(WeaveUser user, String collection, BigInteger timestamp) {
-        Integer count = (Integer) sessionFactory.getCurrentSession().createQuery("select count(wbo) from WeaveBasicObject wbo, WeaveCollection c where c.user = ? and c.type = ? and wbo.collection = c and (wbo.ttl is null or wbo.ttl >= ?)").setEntity(0, user).setString(1, collection).setBigInteger(2, timestamp).uniqueResult();
-        if (count == null) {
-            return 0;
-        } else {
-            return count;
+    public List<WeaveCollection> getCollections(WeaveUser user) {
+        @SuppressWarnings("unchecked")
+        List<WeaveCollection> collections = sessionFactory.getCurrentSession().createQuery("select c from WeaveCollection c where c.user = ?").setEntity(0, user).list();
+        return collections;
+    }
+
+    public long getStorageModified(WeaveUser user) {
+        Long storageModified = (Long) sessionFactory.getCurrentSession().createQuery("select u.storageModified from WeaveUser u where u.artificialId = ?").setLong(0, user.getArtificialId()).uniqueResult();
+        return storageModified == null ? 0L : storageModified;
+    }
+
+    public WeaveBasicObject getWBO(WeaveUser user, String collection, String id, long timestamp) {
+        return (WeaveBasicObject) sessionFactory.getCurrentSession().createQuery("select wbo from WeaveBasicObject wbo, WeaveCollection c where c.user = ? and c.type = ? and wbo.collection = c and wbo.id = ? and (wbo.ttl is null or wbo.ttl >= ?)").setEntity(0, user).setString(1, collection).setString(2, id).setLong(3, timestamp).uniqueResult();
+    }
+
+    public Map<String, WeaveBasicObject> getWBOs(WeaveUser user, String collection, Collection<String> ids) {
+        Map<String, WeaveBasicObject> wbosById = new HashMap<String, WeaveBasicObject>();
+        if (ids.isEmpty()) {
+            return wbosById;
+        }
+        @SuppressWarnings("unchecked")
+        List<WeaveBasicObject> wbos = sessionFactory.getCurrentSession().createQuery("select wbo from WeaveBasicObject wbo, WeaveCollection c where c.user = :user and c.type = :type and wbo.collection = c and wbo.id in (:ids)").setEntity("user", user).setString("type", collection).setParameterList("ids", ids).list();
+        for (WeaveBasicObject wbo : wbos) {
+            wbosById.put(wbo.getId(), wbo);
         }
+        return wbosById;
     }
 
-    public long getCollectionSize(WeaveUser user, String collection,
-            BigInteger timestamp) {
-        Number size = (Number) sessionFactory.getCurrentSession().createQuery("select sum(length(wbo.payload)) from WeaveBasicObject wbo, WeaveCollection c where c.user = ? and c.type = ? and wbo.collection = c and (wbo.ttl is null or wbo.ttl >= ?)").setEntity(0, user).setString(1, collection).setBigInteger(2, timestamp).uniqueResult();
-        return size.longValue() / 1024L;
+    public List<WeaveBasicObject> getWBOsFromCollection(WeaveUser user, String collection, List<String> ids, String predecessorId, String parentId, Long modifiedBefore, Long modifiedSince, Integer sortIndexAbove, Integer sortIndexBelow, Integer limit, Integer offset, WBOCursor after, SortOrder sortOrder, long timestamp) {
+        final List<WeaveBasicObject> wbos = new ArrayList<WeaveBasicObject>();
+        processWBOCriteria(user, collection, ids, predecessorId, parentId, modifiedBefore, modifiedSince, sortIndexAbove, sortIndexBelow, limit, offset, after, sortOrder, timestamp, new CriteriaProcessor() {
+            public int process(Criteria criteria) {
+                @SuppressWarnings("unchecked")
+                List<WeaveBasicObject> part = criteria.list();
+                wbos.addAll(part);
+                return part.size();
+            }
+        });
+        return wbos;
+    }
+
+    public int scrollWBOsFromCollection(WeaveUser user, String collection, List<String> ids, String predecessorId, String parentId, Long modifiedBefore, Long modifiedSince, Integer sortIndexAbove, Integer sortIndexBelow, Integer limit, Integer offset, WBOCursor after, SortOrder sortOrder, long timestamp, final WBOCallback callback) {
+        final Session session = sessionFactory.getCurrentSession();
+        return processWBOCriteria(user, collection, ids, predecessorId, parentId, modifiedBefore, modifiedSince, sortIndexAbove, sortIndexBelow, limit, offset, after, sortOrder, timestamp, new CriteriaProcessor() {
+            public int process(Criteria criteria) {
+                criteria.setFetchSize(SCROLL_FETCH_SIZE);
+                ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+                int count = 0;
+                try {
+                    while (results.next()) {
+                        WeaveBasicObject wbo = (WeaveBasicObject) results.get(0);
+                        callback.processWBO(wbo);
+                        session.evict(wbo);
+                        count++;
+                    }
+                } finally {
+                    results.close();
+                }
+                return count;
+            }
+        });
     }
 
-    public long getTotalSize(WeaveUser user, BigInteger timestamp) {
-        Number size = (Number) sessionFactory.getCurrentSession().createQuery("select sum(length(wbo.payload)) from WeaveBasicObject wbo, WeaveCollection c where c.user = ? and wbo.collection = c and (wbo.ttl is null or wbo.ttl >= ?)").setEntity(0, user).setBigInteger(1, timestamp).uniqueResult();
-        return size.longValue() / 1024L;
+    public List<String> getWBOIdsFromCollection(WeaveUser user, String collection, List<String> ids, String predecessorId, String parentId, Long modifiedBefore, Long modifiedSince, Integer sortIndexAbove, Integer sortIndexBelow, Integer limit, Integer offset, WBOCursor after, SortOrder sortOrder, long timestamp) {
+        final List<String> wboIds = new ArrayList<String>();
+        processWBOCriteria(user, collection, ids, predecessorId, parentId, modifiedBefore, modifiedSince, sortIndexAbove, sortIndexBelow, limit, offset, after, sortOrder, timestamp, new CriteriaProcessor() {
+            public int process(Criteria criteria) {
+                criteria.setProjection(Projections.property("id"));
+                @SuppressWarnings("unchecked")
+                List<String> part = criteria.list();
+                wboIds.addAll(part);
+                return part.size();
+            }
+        });
+        return wboIds;
+    }
+
+    /**
+     * Executes a query created by {@link #processWBOCriteria}.
+     */
+    private interface CriteriaProcessor {
+
+        /**
+         * Executes a query and processes its results.
+         *
+         * @param criteria query to execute
+         * @return number of selected WBOs
+         */
+        int process(Criteria criteria);
     }
 
-    public WeaveBasicObject getWBO(WeaveUser user, String collection, String id, BigInteger timestamp) {
-        return (WeaveBasicObject) sessionFactory.getCurrentSession().createQuery("select wbo from WeaveBasicObject wbo, WeaveCollection c where c.user = ? and c.type = ? and wbo.collection = c and wbo.id = ? and (wbo.ttl is null or wbo.ttl >= ?)").setEntity(0, user).setString(1, collection).setString(2, id).setBigInteger(3, timestamp).uniqueResult();
+    /**
+     * Creates the queries selecting WBOs from a collection and passes them to a processor. Usually, this is a
+     * single query. WBOs sorted by sort index are selected with two queries: the WBOs with a sort index first,
+     * then the WBOs without one. Each of them reads a single range of the index on the collection and the sort
+     * index in order, starting at the cursor. A single query sorting the WBOs without a sort index last would
+     * have to sort the whole collection for every page. The limit and the offset apply to both queries together.
+     *
+     * @return number of selected WBOs
+     */
+    private int processWBOCriteria(WeaveUser user, String collection, List<String> ids, String predecessorId, String parentId, Long modifiedBefore, Long modifiedSince, Integer sortIndexAbove, Integer sortIndexBelow, Integer limit, Integer offset, WBOCursor after, SortOrder sortOrder, long timestamp, CriteriaProcessor processor) {
+        if (after != null && after.getSortOrder() != sortOrder) {
+            throw new IllegalArgumentException("Cursor for sort order " + after.getSortOrder() + " cannot be used with sort order " + sortOrder);
+        }
+        if (sortOrder != SortOrder.INDEX) {
+            Criteria criteria = createWBOCriteria(user, collection, ids, predecessorId, parentId, modifiedBefore, modifiedSince, sortIndexAbove, sortIndexBelow, after, sortOrder, null, timestamp);
+            setPage(criteria, limit, offset);
+            addWBOOrder(criteria, sortOrder, null, limit != null || offset != null || after != null);
+            return processor.process(criteria);
+        }
+
+        int count = 0;
+        Integer remainingOffset = offset;
+        // A cursor without sort index points behind all WBOs with a sort index.
+        if (after == null || after.getSortIndex() != null) {
+            Criteria criteria = createWBOCriteria(user, collection, ids, predecessorId, parentId, modifiedBefore, modifiedSince, sortIndexAbove, sortIndexBelow, after, sortOrder, Boolean.TRUE, timestamp);
+            setPage(criteria, limit, offset);
+            addWBOOrder(criteria, sortOrder, Boolean.TRUE, true);
+            count = processor.process(criteria);
+            if (limit != null && count >= limit) {
+                return count;
+            }
+            if (offset != null && count > 0) {
+                remainingOffset = null;
+            } else if (offset != null) {
+                // The offset skipped all WBOs with a sort index, so the rest
+                // of it applies to the WBOs without one.
+                Criteria countCriteria = createWBOCriteria(user, collection, ids, predecessorId, parentId, modifiedBefore, modifiedSince, sortIndexAbove, sortIndexBelow, after, sortOrder, Boolean.TRUE, timestamp);
+                countCriteria.setProjection(Projections.rowCount());
+                remainingOffset = Math.max(0, offset - ((Number) countCriteria.uniqueResult()).intValue());
+            }
+        }
+        // WBOs without sort index never match a condition on the sort index.
+        if (sortIndexAbove != null || sortIndexBelow != null) {
+            return count;
+        }
+        Criteria criteria = createWBOCriteria(user, collection, ids, predecessorId, parentId, modifiedBefore, modifiedSince, sortIndexAbove, sortIndexBelow, after, sortOrder, Boolean.FALSE, timestamp);
+        setPage(criteria, limit == null ? null : limit - count, remainingOffset);
+        addWBOOrder(criteria, sortOrder, Boolean.FALSE, true);
+        return count + processor.process(criteria);
     }
 
-    public List<WeaveBasicObject> getWBOsFromCollection(WeaveUser user, String collection, List<String> ids, String predecessorId, String parentId, BigDecimal modifiedBefore, BigDecimal modifiedSince, Integer sortIndexAbove, Integer sortIndexBelow, Integer limit, Integer offset, SortOrder sortOrder, BigInteger timestamp) {
+    /**
+     * Creates a criteria query with the restrictions selecting WBOs from a collection. The limit, the offset and
+     * the order are added by the caller.
+     *
+     * @param withSortIndex <code>true</code> to select only WBOs with a sort index, <code>false</code> to select
+     *  only WBOs without a sort index, <code>null</code> to select both
+     */
+    private Criteria createWBOCriteria(WeaveUser user, String collection, List<String> ids, String predecessorId, String parentId, Long modifiedBefore, Long modifiedSince, Integer sortIndexAbove, Integer sortIndexBelow, WBOCursor after, SortOrder sortOrder, Boolean withSortIndex, long timestamp) {
         Session session = sessionFactory.getCurrentSession();
         Criteria criteria = session.createCriteria(WeaveBasicObject.class)
             .add(Restrictions.or(Restrictions.isNull("ttl"), Restrictions.ge("ttl", timestamp)));
@@ -111,77 +261,426 @@ public class WeaveStorageDAOImpl implements WeaveStorageDAO {
         if (sortIndexBelow != null) {
             criteria.add(Restrictions.lt("sortIndex", sortIndexBelow));
         }
+        if (withSortIndex != null) {
+            criteria.add(withSortIndex ? Restrictions.isNotNull("sortIndex") : Restrictions.isNull("sortIndex"));
+        }
+        if (after != null) {
+            Criterion cursorRestriction = createCursorRestriction(after, withSortIndex);
+            if (cursorRestriction != null) {
+                criteria.add(cursorRestriction);
+            }
+        }
+        return criteria;
+    }
+
+    private static void setPage(Criteria criteria, Integer limit, Integer offset) {
         if (limit != null) {
             criteria.setMaxResults(limit);
         }
         if (offset != null) {
             criteria.setFirstResult(offset);
         }
-        if (sortOrder != null) {
-            switch (sortOrder) {
-                case OLDEST:
-                    criteria.addOrder(Order.asc("modified"));
-                    break;
-                case NEWEST:
-                    criteria.addOrder(Order.desc("modified"));
-                    break;
-                case INDEX:
-                    criteria.addOrder(Order.desc("sortIndex"));
-                    break;
-                default:
-                    throw new IllegalArgumentException("SortOrder " + sortOrder + " is not supported");
+    }
+
+    /**
+     * Adds the sort order to a query created by {@link #createWBOCriteria}. The identifier is used as the last sort
+     * key, so that the order is unique and pages selected with a cursor do not skip or repeat WBOs.
+     *
+     * @param withSortIndex restriction of the query on the sort index (see {@link #createWBOCriteria})
+     * @param paged <code>true</code> if the WBOs are selected page by page, so that they need an order even
+     *  without a sort order
+     */
+    private static void addWBOOrder(Criteria criteria, SortOrder sortOrder, Boolean withSortIndex, boolean paged) {
+        if (sortOrder == null) {
+            if (paged) {
+                criteria.addOrder(Order.asc("id"));
             }
+            return;
+        }
+        switch (sortOrder) {
+            case OLDEST:
+                criteria.addOrder(Order.asc("modified"));
+                criteria.addOrder(Order.asc("id"));
+                break;
+            case NEWEST:
+                criteria.addOrder(Order.desc("modified"));
+                criteria.addOrder(Order.desc("id"));
+                break;
+            case INDEX:
+                // WBOs without sort index come last and are selected separately.
+                if (withSortIndex == null) {
+                    throw new IllegalArgumentException("WBOs with and without sort index have to be selected separately");
+                }
+                if (withSortIndex) {
+                    criteria.addOrder(Order.desc("sortIndex"));
+                }
+                criteria.addOrder(Order.desc("id"));
+                break;
+            default:
+                throw new IllegalArgumentException("SortOrder " + sortOrder + " is not supported");
+        }
+    }
+
+    /**
+     * Creates the restriction that selects the WBOs following a cursor. The restrictions are written so that the
+     * first sort key is bounded on its own, which allows the database to use the index on this key.
+     *
+     * @param after cursor
+     * @param withSortIndex restriction of the query on the sort index (see {@link #createWBOCriteria})
+     * @return restriction for WBOs following the cursor or <code>null</code> if all WBOs selected by the query
+     *  follow the cursor
+     */
+    private static Criterion createCursorRestriction(WBOCursor after, Boolean withSortIndex) {
+        SortOrder sortOrder = after.getSortOrder();
+        if (sortOrder == null) {
+            return Restrictions.gt("id", after.getId());
+        }
+        switch (sortOrder) {
+            case OLDEST:
+                return Restrictions.and(
+                        Restrictions.ge("modified", after.getModified()),
+                        Restrictions.or(Restrictions.gt("modified", after.getModified()), Restrictions.gt("id", after.getId())));
+            case NEWEST:
+                return Restrictions.and(
+                        Restrictions.le("modified", after.getModified()),
+                        Restrictions.or(Restrictions.lt("modified", after.getModified()), Restrictions.lt("id", after.getId())));
+            case INDEX:
+                if (withSortIndex == null) {
+                    throw new IllegalArgumentException("WBOs with and without sort index have to be selected separately");
+                }
+                if (!withSortIndex) {
+                    // All WBOs without sort index follow a cursor with sort index.
+                    return after.getSortIndex() == null ? Restrictions.lt("id", after.getId()) : null;
+                }
+                return Restrictions.and(
+                        Restrictions.le("sortIndex", after.getSortIndex()),
+                        Restrictions.or(Restrictions.lt("sortIndex", after.getSortIndex()), Restrictions.lt("id", after.getId())));
+            default:
+                throw new IllegalArgumentException("SortOrder " + sortOrder + " is not supported");
         }
-        @SuppressWarnings("unchecked")
-        List<WeaveBasicObject> wbos = criteria.list();
-        return wbos;
+    }
+
+    public WBOCursor getCursor(WeaveUser user, String collection, String id, SortOrder sortOrder) {
+        Session session = sessionFactory.getCurrentSession();
+        Object[] row = (Object[]) session.createQuery("select wbo.modified, wbo.sortIndex from WeaveBasicObject wbo where wbo.collection.user = ? and wbo.collection.type = ? and wbo.id = ?").setEntity(0, user).setString(1, collection).setString(2, id).uniqueResult();
+        if (row == null) {
+            return null;
+        }
+        return new WBOCursor(sortOrder, (Long) row[0], (Integer) row[1], id);
     }
 
     public void insertWBO(WeaveUser user, String collection, WeaveBasicObject wbo) {
+        insertWBOs(user, collection, Collections.singletonList(wbo));
+    }
+
+    public void insertWBOs(WeaveUser user, String collection, Collection<WeaveBasicObject> wbos) {
+        if (wbos.isEmpty()) {
+            return;
+        }
         Session session = sessionFactory.getCurrentSession();
         WeaveCollection weaveCollection = (WeaveCollection) session.createQuery("select c from WeaveCollection c where c.user = ? and c.type = ?").setEntity(0, user).setString(1, collection).uniqueResult();
         if (weaveCollection == null) {
             weaveCollection = new WeaveCollection();
             weaveCollection.setUser(user);
             weaveCollection.setType(collection);
+            weaveCollection.setLastModified(0L);
+            weaveCollection.setWboCount(0);
+            weaveCollection.setPayloadSize(0L);
             session.save(weaveCollection);
         }
-        wbo.setCollection(weaveCollection);
-        session.save(wbo);
+        for (WeaveBasicObject wbo : wbos) {
+            wbo.setCollection(weaveCollection);
+            if (compressPayloads) {
+                wbo.compressPayload();
+            }
+            session.save(wbo);
+            updateCollectionMetadata(weaveCollection, wbo.getModified(), 1, payloadLength(wbo));
+        }
         session.flush();
     }
 
-    public void deleteWBO(WeaveBasicObject wbo) {
+    public void flushAndDetach() {
+        Session session = sessionFactory.getCurrentSession();
+        session.flush();
+        session.clear();
+    }
+
+    public void updateWBO(WeaveBasicObject wbo, int previousPayloadLength) {
+        if (compressPayloads) {
+            wbo.compressPayload();
+        }
+        updateCollectionMetadata(wbo.getCollection(), wbo.getModified(), 0, payloadLength(wbo) - previousPayloadLength);
+    }
+
+    public void deleteWBO(WeaveBasicObject wbo, long timestamp) {
         Session session = sessionFactory.getCurrentSession();
         session.delete(wbo);
+        updateCollectionMetadata(wbo.getCollection(), timestamp, -1, -payloadLength(wbo));
         session.flush();
     }
 
-    public void deleteCollection(WeaveUser user, String collection) {
+    /**
+     * Returns the length of the payload of a WBO, as it is accounted in the collection metadata.
+     *
+     * @param wbo Weave Basic Object
+     * @return length of the payload or <code>0</code> if the WBO has no payload
+     */
+    private static int payloadLength(WeaveBasicObject wbo) {
+        return wbo.getPayloadLength();
+    }
+
+    /**
+     * Updates the metadata stored with a collection. The collection has to be attached to the current session,
+     * so that the changes are persisted when the session is flushed.
+     *
+     * @param weaveCollection the collection to update
+     * @param modified timestamp of the modification, the stored timestamp is only changed if this timestamp
+     *  is newer
+     * @param countDelta number of WBOs added to (positive) or removed from (negative) the collection
+     * @param payloadSizeDelta change of the payload size of the collection
+     */
+    private static void updateCollectionMetadata(WeaveCollection weaveCollection, Long modified, int countDelta, long payloadSizeDelta) {
+        Long lastModified = weaveCollection.getLastModified();
+        if (modified != null && (lastModified == null || lastModified < modified)) {
+            weaveCollection.setLastModified(modified);
+        }
+        Integer count = weaveCollection.getWboCount();
+        weaveCollection.setWboCount((count == null ? 0 : count) + countDelta);
+        Long payloadSize = weaveCollection.getPayloadSize();
+        weaveCollection.setPayloadSize((payloadSize == null ? 0L : payloadSize) + payloadSizeDelta);
+    }
+
+    public int deleteWBOsFromCollection(WeaveUser user, String collection, List<String> ids, String parentId, Long modifiedBefore, Long modifiedSince, Integer limit, Integer offset, SortOrder sortOrder, long timestamp, long deletionTimestamp) {
         Session session = sessionFactory.getCurrentSession();
         WeaveCollection weaveCollection = (WeaveCollection) session.createQuery("select c from WeaveCollection c where c.user = ? and c.type = ?").setEntity(0, user).setString(1, collection).uniqueResult();
-        deleteCollection(weaveCollection);
+        if (weaveCollection == null || (ids != null && ids.isEmpty())) {
+            return 0;
+        }
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        StringBuilder condition = new StringBuilder();
+        if (limit != null || offset != null) {
+            // Limit and offset cannot be used in a delete statement, so the
+            // WBOs to be deleted have to be selected first.
+            final List<Long> artificialIds = new ArrayList<Long>();
+            processWBOCriteria(user, collection, ids, null, parentId, modifiedBefore, modifiedSince, null, null, limit, offset, null, sortOrder, timestamp, new CriteriaProcessor() {
+                public int process(Criteria criteria) {
+                    criteria.setProjection(Projections.property("artificialId"));
+                    @SuppressWarnings("unchecked")
+                    List<Long> part = criteria.list();
+                    artificialIds.addAll(part);
+                    return part.size();
+                }
+            });
+            if (artificialIds.isEmpty()) {
+                return 0;
+            }
+            condition.append("wbo.artificialId in (:artificialIds)");
+            parameters.put("artificialIds", artificialIds);
+        } else {
+            condition.append("wbo.collection.artificialId = :collectionId");
+            parameters.put("collectionId", weaveCollection.getArtificialId());
+            if (ids != null) {
+                condition.append(" and wbo.id in (:ids)");
+                parameters.put("ids", ids);
+            }
+            if (parentId != null) {
+                condition.append(" and wbo.parentId = :parentId");
+                parameters.put("parentId", parentId);
+            }
+            if (modifiedBefore != null) {
+                condition.append(" and wbo.modified < :modifiedBefore");
+                parameters.put("modifiedBefore", modifiedBefore);
+            }
+            if (modifiedSince != null) {
+                condition.append(" and wbo.modified >= :modifiedSince");
+                parameters.put("modifiedSince", modifiedSince);
+            }
+        }
+        Query sizeQuery = session.createQuery("select sum(wbo.payloadSize) from WeaveBasicObject wbo where " + condition);
+        setParameters(sizeQuery, parameters);
+        Number size = (Number) sizeQuery.uniqueResult();
+        Query deleteQuery = session.createQuery("delete WeaveBasicObject wbo where " + condition);
+        setParameters(deleteQuery, parameters);
+        int count = deleteQuery.executeUpdate();
+        if (count > 0) {
+            updateCollectionMetadata(weaveCollection, deletionTimestamp, -count, size == null ? 0L : -size.longValue());
+            session.flush();
+        }
+        return count;
     }
 
-    private void deleteCollection(WeaveCollection weaveCollection) {
+    /**
+     * Sets the named parameters of a query. Collections are bound as parameter lists.
+     *
+     * @param query query whose parameters shall be set
+     * @param parameters map of parameter names to values
+     */
+    private static void setParameters(Query query, Map<String, Object> parameters) {
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            if (parameter.getValue() instanceof Collection) {
+                query.setParameterList(parameter.getKey(), (Collection<?>) parameter.getValue());
+            } else {
+                query.setParameter(parameter.getKey(), parameter.getValue());
+            }
+        }
+    }
+
+    public void deleteCollection(WeaveUser user, String collection, long deletionTimestamp) {
         Session session = sessionFactory.getCurrentSession();
+        WeaveCollection weaveCollection = (WeaveCollection) session.createQuery("select c from WeaveCollection c where c.user = ? and c.type = ?").setEntity(0, user).setString(1, collection).uniqueResult();
         if (weaveCollection == null) {
             return;
         }
-        for (WeaveBasicObject wbo : weaveCollection.getWeaveBasicObjects()) {
-            session.delete(wbo);
+        // Pending changes have to be written before the bulk deletes, which bypass the session.
+        session.flush();
+        session.createQuery("delete WeaveBasicObject wbo where wbo.collection.artificialId = ?").setLong(0, weaveCollection.getArtificialId()).executeUpdate();
+        session.createQuery("delete WeaveCollection c where c.artificialId = ?").setLong(0, weaveCollection.getArtificialId()).executeUpdate();
+        session.evict(weaveCollection);
+        updateStorageModified(user, deletionTimestamp);
+    }
+
+    public void deleteAllCollections(WeaveUser user, long deletionTimestamp) {
+        Session session = sessionFactory.getCurrentSession();
+        // Pending changes have to be written before the bulk deletes, which bypass the session.
+        session.flush();
+        session.createQuery("delete WeaveBasicObject wbo where wbo.collection.artificialId in (select c.artificialId from WeaveCollection c where c.user = ?)").setEntity(0, user).executeUpdate();
+        session.createQuery("delete WeaveCollection c where c.user = ?").setEntity(0, user).executeUpdate();
+        updateStorageModified(user, deletionTimestamp);
+    }
+
+    /**
+     * Records the deletion of collections as the storage modification time of a user. The user is updated with
+     * a bulk update, because the user object passed in by the caller may not be attached to the current session.
+     *
+     * @param user Weave user
+     * @param modified timestamp of the deletion
+     */
+    private void updateStorageModified(WeaveUser user, long modified) {
+        sessionFactory.getCurrentSession().createQuery("update WeaveUser u set u.storageModified = ? where u.artificialId = ?").setLong(0, modified).setLong(1, user.getArtificialId()).executeUpdate();
+    }
+
+    public long getStorageLastModified(WeaveUser user, String collection) {
+        Session session = sessionFactory.getCurrentSession();
+        // Both timestamps are read with a single query.
+        Query query;
+        if (collection == null) {
+            query = session.createQuery("select u.storageModified, (select max(c.lastModified) from WeaveCollection c where c.user = u) from WeaveUser u where u.artificialId = :user");
+        } else {
+            query = session.createQuery("select u.storageModified, (select c.lastModified from WeaveCollection c where c.user = u and c.type = :type) from WeaveUser u where u.artificialId = :user").setString("type", collection);
+        }
+        Object[] row = (Object[]) query.setLong("user", user.getArtificialId()).uniqueResult();
+        long lastModified = 0L;
+        if (row == null) {
+            return lastModified;
+        }
+        for (Object modified : row) {
+            if (modified != null && ((Number) modified).longValue() > lastModified) {
+                lastModified = ((Number) modified).longValue();
+            }
+        }
+        return lastModified;
+    }
+
+    public Map<String, List<Long>> findExpiredWBOs(long timestamp, int maxCount) {
+        Session session = sessionFactory.getCurrentSession();
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = session.createQuery("select wbo.collection.user.username, wbo.artificialId from WeaveBasicObject wbo where wbo.ttl < ?").setLong(0, timestamp).setMaxResults(maxCount).list();
+        Map<String, List<Long>> idsByUser = new HashMap<String, List<Long>>();
+        for (Object[] row : rows) {
+            List<Long> ids = idsByUser.get((String) row[0]);
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                idsByUser.put((String) row[0], ids);
+            }
+            ids.add((Long) row[1]);
+        }
+        return idsByUser;
+    }
+
+    public int deleteExpiredWBOs(Collection<Long> ids, long timestamp) {
+        Session session = sessionFactory.getCurrentSession();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        // The TTL is checked again, because the WBOs might have been
+        // modified since they have been found.
+        @SuppressWarnings("unchecked")
+        List<Long> expiredIds = session.createQuery("select wbo.artificialId from WeaveBasicObject wbo where wbo.artificialId in (:ids) and wbo.ttl < :timestamp").setParameterList("ids", ids).setLong("timestamp", timestamp).list();
+        if (expiredIds.isEmpty()) {
+            return 0;
+        }
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = session.createQuery("select wbo.collection.artificialId, count(wbo), sum(wbo.payloadSize) from WeaveBasicObject wbo where wbo.artificialId in (:ids) group by wbo.collection.artificialId").setParameterList("ids", expiredIds).list();
+        session.createQuery("delete WeaveBasicObject wbo where wbo.artificialId in (:ids)").setParameterList("ids", expiredIds).executeUpdate();
+        for (Object[] row : rows) {
+            WeaveCollection weaveCollection = (WeaveCollection) session.get(WeaveCollection.class, (Long) row[0]);
+            Number size = (Number) row[2];
+            updateCollectionMetadata(weaveCollection, null, -((Number) row[1]).intValue(), size == null ? 0L : -size.longValue());
         }
-        session.delete(weaveCollection);
         session.flush();
+        return expiredIds.size();
     }
 
-    public void deleteAllCollections(WeaveUser user) {
-        for (WeaveCollection weaveCollection : user.getCollections()) {
-            deleteCollection(weaveCollection);
+    public int recomputeCollectionMetadata(boolean onlyIncomplete) {
+        Session session = sessionFactory.getCurrentSession();
+        String condition = onlyIncomplete ? " where c.lastModified is null or c.wboCount is null or c.payloadSize is null" : "";
+        @SuppressWarnings("unchecked")
+        List<WeaveCollection> collections = session.createQuery("select c from WeaveCollection c" + condition).list();
+        if (collections.isEmpty()) {
+            return 0;
         }
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = session.createQuery("select c.artificialId, max(wbo.modified), count(wbo), sum(wbo.payloadSize) from WeaveCollection c left join c.weaveBasicObjects wbo" + condition + " group by c.artificialId").list();
+        Map<Long, Object[]> rowsByCollection = new HashMap<Long, Object[]>();
+        for (Object[] row : rows) {
+            rowsByCollection.put((Long) row[0], row);
+        }
+        for (WeaveCollection weaveCollection : collections) {
+            Object[] row = rowsByCollection.get(weaveCollection.getArtificialId());
+            Long lastModified = row == null ? null : (Long) row[1];
+            Number count = row == null ? null : (Number) row[2];
+            Number size = row == null ? null : (Number) row[3];
+            weaveCollection.setLastModified(lastModified == null ? 0L : lastModified);
+            weaveCollection.setWboCount(count == null ? 0 : count.intValue());
+            weaveCollection.setPayloadSize(size == null ? 0L : size.longValue());
+        }
+        session.flush();
+        return collections.size();
     }
 
-    public void cleanUpExpiredWBOs(BigInteger timestamp) {
-        sessionFactory.getCurrentSession().createQuery("delete WeaveBasicObject wbo where wbo.ttl is not null and wbo.ttl < ?").setBigInteger(0, timestamp).executeUpdate();
+    public int fillPayloadSizes(int maxCount) {
+        Session session = sessionFactory.getCurrentSession();
+        @SuppressWarnings("unchecked")
+        List<Long> ids = session.createQuery("select wbo.artificialId from WeaveBasicObject wbo where wbo.payloadSize is null").setMaxResults(maxCount).list();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        session.createQuery("update WeaveBasicObject wbo set wbo.payloadSize = coalesce(length(wbo.payload), 0) where wbo.artificialId in (:ids)").setParameterList("ids", ids).executeUpdate();
+        return ids.size();
+    }
+
+    public Long compressStoredPayloads(long afterArtificialId, int maxCount) {
+        if (!compressPayloads) {
+            return null;
+        }
+        Session session = sessionFactory.getCurrentSession();
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = session.createQuery("select wbo.artificialId, wbo.payload, wbo.modified from WeaveBasicObject wbo where wbo.artificialId > ? and wbo.payload is not null and wbo.payloadSize >= ? order by wbo.artificialId").setLong(0, afterArtificialId).setInteger(1, PayloadCodec.MIN_PAYLOAD_LENGTH).setMaxResults(maxCount).list();
+        if (rows.isEmpty()) {
+            return null;
+        }
+        // The rows are updated with bulk updates, which only match WBOs that have not been modified since they
+        // have been read: every modification sets a new modification timestamp.
+        Query compressQuery = session.createQuery("update WeaveBasicObject wbo set wbo.compressedPayload = :compressedPayload, wbo.payload = null where wbo.artificialId = :id and wbo.modified = :modified and wbo.payloadSize = :payloadSize and wbo.compressedPayload is null");
+        Long lastId = null;
+        for (Object[] row : rows) {
+            lastId = (Long) row[0];
+            String payload = (String) row[1];
+            byte[] compressedPayload = PayloadCodec.encode(payload);
+            if (compressedPayload != null) {
+                compressQuery.setBinary("compressedPayload", compressedPayload).setLong("id", lastId).setLong("modified", (Long) row[2]).setInteger("payloadSize", payload.length()).executeUpdate();
+            }
+        }
+        return lastId;
     }
 }
@@ -32,6 +32,8 @@ public class WeaveUser {
 
     private Long artificialId;
 
+    private Long storageModified;
+
     private Set<WeaveCollection> collections = new HashSet<WeaveCollection>();
 
     /**
@@ -108,6 +110,18 @@ public class WeaveUser {
         this.eMail = eMail;
     }
 
+    /**
+     * Returns the time collections of this user have been deleted last. The deletion of a collection is not
+     * recorded with the collection itself, so it is recorded here. The value is updated by
+     * {@link WeaveStorageDAO#deleteCollection(WeaveUser, String, long)} and
+     * {@link WeaveStorageDAO#deleteAllCollections(WeaveUser, long)}.
+     *
+     * @return timestamp in centiseconds since 01/01/1970 or <code>null</code> if no collection has been deleted
+     */
+    public Long getStorageModified() {
+        return storageModified;
+    }
+
     /**
      * Returns the collections that exist for this user.
      *
@@ -26,6 +26,17 @@ import javax.servlet.http.HttpServletResponse
  * request.
  */
 object AuthenticationHelper {
+
+  /**
+   * Pattern for an Authorization header using HTTP Basic Auth.
+   */
+  private val AuthHeaderMatcher = "^\\s*Basic\\s+([A-Za-z0-9+/]+={0,2})\\s*$".r
+
+  /**
+   * Pattern splitting the decoded credentials into username and password.
+   */
+  private val UsernamePasswordMatcher = "^(.*):(.*)$".r
+
   /**
    * Extracts HTTP Basic Auth information from a HTTP request.
    * 
@@ -38,11 +49,9 @@ object AuthenticationHelper {
     if (authHeader == null) {
       None
     } else {
-      val AuthHeaderMatcher = "^\\s*Basic\\s+([A-Za-z0-9+/]+={0,2})\\s*$".r
       try {
         val AuthHeaderMatcher(base64Encoded) = authHeader
         val base64Decoded = new String(Base64.decodeBase64(base64Encoded), "utf-8")
-        val UsernamePasswordMatcher = "^(.*):(.*)$".r
         val UsernamePasswordMatcher(username, password) = base64Decoded
         Some((username, password))
       } catch {
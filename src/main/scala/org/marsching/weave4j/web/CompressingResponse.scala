@@ -0,0 +1,294 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.io.{ByteArrayOutputStream, OutputStream, OutputStreamWriter, PrintWriter}
+import java.util.zip.{Deflater, DeflaterOutputStream, GZIPOutputStream}
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.{HttpServletResponse, HttpServletResponseWrapper}
+
+/**
+ * Response wrapper that compresses the body of a response. The body is
+ * buffered until it exceeds the threshold. From then on, it is compressed
+ * while it is written, so that it is never held in memory as a whole.
+ * Bodies that do not exceed the threshold are sent uncompressed, with a
+ * Content-Length header, when {@link #finish()} is called. Either way, the
+ * response varies with the Accept-Encoding header of the request, so the
+ * Vary header is always set.
+ *
+ * @param response wrapped response
+ * @param encoding content coding used for compression ("gzip", "x-gzip"
+ *    or "deflate")
+ * @param threshold minimum size of the body in bytes for it to be
+ *    compressed
+ * @param level compression level (0-9 or -1 for the default level)
+ */
+class CompressingResponse(response: HttpServletResponse, encoding: String, threshold: Int, level: Int) extends HttpServletResponseWrapper(response) {
+
+  private val buffer = new ByteArrayOutputStream(math.max(math.min(threshold, 8192), 32))
+  private var deflater: Deflater = null
+  private var compressor: DeflaterOutputStream = null
+  private var target: OutputStream = null
+  private var uncompressedByteCount = 0L
+  private var compressedByteCount = 0L
+  private var outputStream: ServletOutputStream = null
+  private var writer: PrintWriter = null
+
+  response.addHeader("Vary", "Accept-Encoding")
+
+  override def getOutputStream: ServletOutputStream = {
+    if (outputStream == null) {
+      outputStream = new ServletOutputStream {
+        override def write(b: Int) {
+          write(Array(b.toByte), 0, 1)
+        }
+
+        override def write(b: Array[Byte], off: Int, len: Int) {
+          writeBody(b, off, len)
+        }
+
+        override def flush() {
+          if (compressor != null) {
+            compressor.flush()
+          } else if (target != null) {
+            target.flush()
+          }
+          // While the body is buffered, flushing is deferred, because the
+          // decision whether to compress has not been made yet.
+        }
+      }
+    }
+    outputStream
+  }
+
+  override def getWriter: PrintWriter = {
+    if (writer == null) {
+      writer = new PrintWriter(new OutputStreamWriter(getOutputStream, getCharacterEncoding))
+    }
+    writer
+  }
+
+  override def flushBuffer() {
+    if (writer != null) {
+      writer.flush()
+    }
+    if (compressor != null || target != null) {
+      getOutputStream.flush()
+      super.flushBuffer()
+    }
+  }
+
+  override def resetBuffer() {
+    buffer.reset()
+    super.resetBuffer()
+  }
+
+  override def reset() {
+    buffer.reset()
+    super.reset()
+    super.addHeader("Vary", "Accept-Encoding")
+  }
+
+  override def sendError(status: Int) {
+    buffer.reset()
+    super.sendError(status)
+  }
+
+  override def sendError(status: Int, message: String) {
+    buffer.reset()
+    super.sendError(status, message)
+  }
+
+  override def setContentLength(length: Int) {
+    // The length is not known before it has been decided whether the body
+    // is compressed. If the body is not compressed, the length is set by
+    // finish().
+  }
+
+  private def writeBody(b: Array[Byte], off: Int, len: Int) {
+    uncompressedByteCount += len
+    if (compressor != null) {
+      compressor.write(b, off, len)
+    } else if (target != null) {
+      target.write(b, off, len)
+    } else {
+      buffer.write(b, off, len)
+      if (buffer.size > threshold) {
+        startCompression()
+      }
+    }
+  }
+
+  private def startCompression() {
+    val out = countingStream(super.getOutputStream)
+    if (isCommitted || containsHeader("Content-Encoding")) {
+      // The body has already been encoded or the headers cannot be changed
+      // any longer.
+      target = out
+    } else {
+      super.setHeader("Content-Encoding", encoding)
+      if (encoding == "deflate") {
+        deflater = new Deflater(level)
+        compressor = new DeflaterOutputStream(out, deflater, 8192)
+      } else {
+        val gzip = new LeveledGZIPOutputStream(out, level)
+        deflater = gzip.getDeflater
+        compressor = gzip
+      }
+    }
+    buffer.writeTo(if (compressor != null) compressor else target)
+    buffer.reset()
+  }
+
+  private def countingStream(out: OutputStream): OutputStream = new OutputStream {
+    override def write(b: Int) {
+      out.write(b)
+      compressedByteCount += 1
+    }
+
+    override def write(b: Array[Byte], off: Int, len: Int) {
+      out.write(b, off, len)
+      compressedByteCount += len
+    }
+
+    override def flush() {
+      out.flush()
+    }
+  }
+
+  /**
+   * Writes the rest of the body. This method has to be called after the
+   * request has been handled. If the body has not exceeded the threshold,
+   * it is written uncompressed, and its length is known.
+   */
+  def finish() {
+    if (writer != null) {
+      writer.flush()
+    }
+    if (compressor != null) {
+      compressor.finish()
+      compressor.flush()
+    } else if (target == null && buffer.size > 0) {
+      if (!isCommitted) {
+        super.setContentLength(buffer.size)
+      }
+      target = countingStream(super.getOutputStream)
+      buffer.writeTo(target)
+      buffer.reset()
+    }
+  }
+
+  /**
+   * Releases the resources used for compression. This method has to be
+   * called when the request has been handled, even if an error occurred.
+   */
+  def release() {
+    if (deflater != null) {
+      deflater.end()
+    }
+  }
+
+  /**
+   * Tells whether the body has been compressed.
+   *
+   * @return <code>true</code> if the body has been compressed
+   */
+  def isCompressed: Boolean = compressor != null
+
+  /**
+   * Returns the number of bytes written to the body before compression.
+   *
+   * @return number of bytes
+   */
+  def getUncompressedByteCount: Long = uncompressedByteCount
+
+  /**
+   * Returns the number of bytes sent to the client.
+   *
+   * @return number of bytes
+   */
+  def getCompressedByteCount: Long = compressedByteCount
+}
+
+object CompressingResponse {
+
+  /**
+   * Selects the content coding for the response to a request from the
+   * Accept-Encoding header of the request. "gzip" is preferred over
+   * "deflate".
+   *
+   * @param acceptEncoding value of the Accept-Encoding header or
+   *    <code>null</code>
+   * @return content coding or <code>null</code> if the response should not
+   *    be compressed
+   */
+  def selectEncoding(acceptEncoding: String): String = {
+    if (acceptEncoding == null) {
+      return null
+    }
+    val qualities = new java.util.HashMap[String, java.lang.Double]
+    for (element <- acceptEncoding.split(",")) {
+      val parts = element.split(";")
+      val coding = parts(0).trim.toLowerCase
+      var quality = 1.0
+      for (parameter <- parts.drop(1)) {
+        val nameAndValue = parameter.split("=", 2)
+        if (nameAndValue.length == 2 && nameAndValue(0).trim == "q") {
+          try {
+            quality = nameAndValue(1).trim.toDouble
+          } catch {
+            case e: NumberFormatException => quality = 0.0
+          }
+        }
+      }
+      if (coding.length > 0) {
+        qualities.put(coding, quality)
+      }
+    }
+    def accepts(coding: String): Boolean = {
+      val quality = if (qualities.containsKey(coding)) qualities.get(coding) else qualities.get("*")
+      quality != null && quality > 0.0
+    }
+    if (qualities.containsKey("x-gzip") && !qualities.containsKey("gzip") && accepts("x-gzip")) {
+      "x-gzip"
+    } else if (accepts("gzip")) {
+      "gzip"
+    } else if (accepts("deflate")) {
+      "deflate"
+    } else {
+      null
+    }
+  }
+}
+
+/**
+ * GZIP output stream with a configurable compression level.
+ *
+ * @param out underlying output stream
+ * @param level compression level
+ */
+private class LeveledGZIPOutputStream(out: OutputStream, level: Int) extends GZIPOutputStream(out, 8192) {
+  `def`.setLevel(level)
+
+  /**
+   * Returns the deflater used by this stream.
+   *
+   * @return deflater
+   */
+  def getDeflater: Deflater = `def`
+}
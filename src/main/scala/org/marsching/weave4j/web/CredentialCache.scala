@@ -0,0 +1,200 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.security.{MessageDigest, SecureRandom}
+import java.util.concurrent.atomic.AtomicLong
+import org.marsching.weave4j.dbo.WeaveUser
+import org.springframework.transaction.support.{TransactionSynchronizationAdapter, TransactionSynchronizationManager}
+
+/**
+ * Management interface of {@link CredentialCache}.
+ */
+trait CredentialCacheMBean {
+  def getHitCount: Long
+  def getMissCount: Long
+  def getSize: Int
+}
+
+/**
+ * Caches users whose credentials have been verified recently, so that
+ * subsequent requests with the same credentials neither have to load the
+ * user from the database nor have to compute the password hash.
+ *
+ * The cache does not store the password itself, but only a salted SHA-256
+ * digest of it. The salt is generated randomly when the cache is created.
+ * The number of entries is bounded; if the cache is full, the least
+ * recently used entry is dropped. Entries expire after a configurable time.
+ */
+class CredentialCache extends CredentialCacheMBean {
+
+  /**
+   * Maximum number of cached users.
+   */
+  protected var maxSize: Int = 1000
+
+  /**
+   * Time in seconds after which an entry expires. If set to 0, the cache
+   * is disabled.
+   */
+  protected var timeToLive: Int = 300
+
+  private class Entry(val digest: Array[Byte], val user: WeaveUser, val expires: Long)
+
+  private val entries = new java.util.LinkedHashMap[String, Entry](16, 0.75f, true) {
+    override protected def removeEldestEntry(eldest: java.util.Map.Entry[String, Entry]): Boolean = {
+      size > maxSize
+    }
+  }
+
+  private val salt = {
+    val bytes = new Array[Byte](16)
+    new SecureRandom().nextBytes(bytes)
+    bytes
+  }
+
+  private val generation = new AtomicLong
+  private val hits = new AtomicLong
+  private val misses = new AtomicLong
+
+  /**
+   * Returns the cached user for the given credentials.
+   *
+   * @param username username as supplied by the client
+   * @param password password as supplied by the client
+   * @return user or <code>null</code> if no entry matching the credentials
+   *    is cached
+   */
+  def get(username: String, password: String): WeaveUser = {
+    val entry = entries.synchronized {
+      entries.get(username)
+    }
+    if (entry != null && entry.expires > System.currentTimeMillis && MessageDigest.isEqual(entry.digest, digest(password))) {
+      hits.incrementAndGet()
+      entry.user
+    } else {
+      misses.incrementAndGet()
+      null
+    }
+  }
+
+  /**
+   * Returns the current generation of the cache. The generation has to be
+   * retrieved before the user is loaded from the database and passed to
+   * {@link #put}, so that an entry is not stored if the cache has been
+   * invalidated in the meantime.
+   *
+   * @return generation counter
+   */
+  def getGeneration: Long = generation.get
+
+  /**
+   * Stores a user whose credentials have been verified.
+   *
+   * @param username username as supplied by the client
+   * @param password password as supplied by the client
+   * @param user user loaded from the database
+   * @param lookupGeneration generation of the cache at the time the user
+   *    was loaded
+   */
+  def put(username: String, password: String, user: WeaveUser, lookupGeneration: Long) {
+    if (timeToLive <= 0) {
+      return
+    }
+    val entry = new Entry(digest(password), user, System.currentTimeMillis + timeToLive * 1000L)
+    entries.synchronized {
+      if (generation.get == lookupGeneration) {
+        entries.put(username, entry)
+      }
+    }
+  }
+
+  /**
+   * Removes the entry for a user. This method has to be called whenever
+   * the password of a user is changed or a user is deleted. If a
+   * transaction is active, the entry is removed again when the transaction
+   * has completed, so that a concurrent request cannot cache credentials
+   * that are not valid any longer.
+   *
+   * @param username name of the user
+   */
+  def invalidate(username: String) {
+    remove(username)
+    if (TransactionSynchronizationManager.isSynchronizationActive) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter {
+        override def afterCompletion(status: Int) {
+          remove(username)
+        }
+      })
+    }
+  }
+
+  private def remove(username: String) {
+    entries.synchronized {
+      generation.incrementAndGet()
+      entries.remove(username)
+    }
+  }
+
+  private def digest(password: String): Array[Byte] = {
+    val md = MessageDigest.getInstance("SHA-256")
+    md.update(salt)
+    md.digest(password.getBytes("utf-8"))
+  }
+
+  /**
+   * Returns the number of lookups that found a matching entry.
+   *
+   * @return number of cache hits
+   */
+  def getHitCount: Long = hits.get
+
+  /**
+   * Returns the number of lookups that did not find a matching entry.
+   *
+   * @return number of cache misses
+   */
+  def getMissCount: Long = misses.get
+
+  /**
+   * Returns the number of entries currently cached.
+   *
+   * @return number of entries
+   */
+  def getSize: Int = entries.synchronized {
+    entries.size
+  }
+
+  /**
+   * Sets the maximum number of cached users.
+   *
+   * @param maxSize maximum number of entries
+   */
+  def setMaxSize(maxSize: Int) {
+    this.maxSize = maxSize
+  }
+
+  /**
+   * Sets the time after which an entry expires.
+   *
+   * @param timeToLive time to live in seconds, 0 disables the cache
+   */
+  def setTimeToLive(timeToLive: Int) {
+    this.timeToLive = timeToLive
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import org.springframework.core.io.Resource
+
+/**
+ * Describes the database used to store the data. Depending on the selected
+ * backend, this class provides the JDBC driver, the Hibernate dialect, the
+ * JDBC URL and the transaction isolation levels, which are used by the
+ * beans defined in the application context.
+ *
+ * The following backends are supported:
+ * <ul>
+ * <li><code>hsqldb</code> - embedded HSQLDB database stored within the
+ * WEB-INF directory (default). HSQLDB locks whole tables, so a transaction
+ * writing data blocks all other transactions.</li>
+ * <li><code>h2</code> - embedded H2 database stored within the WEB-INF
+ * directory. The database uses multi-version concurrency control, so
+ * reading transactions are not blocked by writing transactions.</li>
+ * <li><code>postgresql</code> - PostgreSQL server. The JDBC URL, the
+ * username and the password have to be configured.</li>
+ * </ul>
+ *
+ * @author Sebastian Marsching
+ */
+class DatabaseBackend {
+
+  /**
+   * Name of the backend.
+   */
+  protected var backend: String = "hsqldb"
+
+  /**
+   * Location of the database files for embedded backends.
+   */
+  protected var databaseLocation: Resource = null
+
+  /**
+   * JDBC URL. If not set, the URL is generated from the database location.
+   */
+  protected var url: String = null
+
+  /**
+   * Isolation level for read/write transactions. If not set, the default
+   * of the backend is used.
+   */
+  protected var readWriteIsolationLevel: String = null
+
+  /**
+   * Isolation level for read-only transactions. If not set, the default of
+   * the backend is used.
+   */
+  protected var readOnlyIsolationLevel: String = null
+
+  /**
+   * Settings of a backend: driver class, Hibernate dialect, prefix and
+   * suffix of the URL generated for embedded databases (<code>null</code>
+   * if the backend is not embedded) and default isolation levels for
+   * read/write and read-only transactions.
+   */
+  private case class BackendSettings(driverClassName: String, dialect: String, urlPrefix: String, urlSuffix: String, readWriteIsolationLevel: String, readOnlyIsolationLevel: String)
+
+  // Concurrent requests of the same user are serialized by the user locks
+  // (see UserLockManager), and requests of different users never touch the
+  // same rows, so read/write transactions do not need to be serializable.
+  private val backends = Map(
+    // HSQLDB 1.8 only supports table-level locks, so the isolation level
+    // does not make a difference.
+    "hsqldb" -> BackendSettings("org.hsqldb.jdbcDriver", "org.hibernate.dialect.HSQLDialect", "jdbc:hsqldb:file:", "",
+      "ISOLATION_READ_COMMITTED", "ISOLATION_READ_COMMITTED"),
+    // In MVCC mode, H2 always uses row-level locks and reads the last
+    // committed version of a row, regardless of the isolation level.
+    "h2" -> BackendSettings("org.h2.Driver", "org.hibernate.dialect.H2Dialect", "jdbc:h2:file:", ";MVCC=TRUE",
+      "ISOLATION_READ_COMMITTED", "ISOLATION_READ_COMMITTED"),
+    // Read-only transactions see a consistent snapshot and never conflict
+    // with writing transactions.
+    "postgresql" -> BackendSettings("org.postgresql.Driver", "org.hibernate.dialect.PostgreSQLDialect", null, null,
+      "ISOLATION_READ_COMMITTED", "ISOLATION_REPEATABLE_READ"))
+
+  private def settings: BackendSettings = {
+    backends.get(backend) match {
+      case Some(settings) => settings
+      case None => throw new IllegalStateException("Unsupported database backend \"" + backend + "\", supported backends are: " + backends.keys.mkString(", "))
+    }
+  }
+
+  /**
+   * Returns the class name of the JDBC driver.
+   *
+   * @return JDBC driver class name
+   */
+  def getDriverClassName: String = settings.driverClassName
+
+  /**
+   * Returns the class name of the Hibernate dialect.
+   *
+   * @return Hibernate dialect class name
+   */
+  def getDialect: String = settings.dialect
+
+  /**
+   * Returns the JDBC URL for the database. If no URL has been set, the URL
+   * is generated from the database location for embedded backends.
+   *
+   * @return JDBC URL
+   */
+  def getJdbcUrl: String = {
+    if (url != null && url.length > 0) {
+      return url
+    }
+    if (settings.urlPrefix == null) {
+      throw new IllegalStateException("url has to be set for database backend \"" + backend + "\"")
+    }
+    if (databaseLocation == null) {
+      throw new IllegalStateException("databaseLocation has to be set before calling this method")
+    }
+
+    val file = databaseLocation.getFile()
+    if (file == null) {
+      throw new IllegalStateException("Resource does not support resolution to a file")
+    }
+
+    return settings.urlPrefix + file.getAbsolutePath() + settings.urlSuffix
+  }
+
+  /**
+   * Returns the isolation level for read/write transactions.
+   *
+   * @return name of an isolation level constant of
+   *    {@link org.springframework.transaction.TransactionDefinition}
+   */
+  def getReadWriteIsolationLevel: String = {
+    if (readWriteIsolationLevel != null) readWriteIsolationLevel else settings.readWriteIsolationLevel
+  }
+
+  /**
+   * Returns the isolation level for read-only transactions.
+   *
+   * @return name of an isolation level constant of
+   *    {@link org.springframework.transaction.TransactionDefinition}
+   */
+  def getReadOnlyIsolationLevel: String = {
+    if (readOnlyIsolationLevel != null) readOnlyIsolationLevel else settings.readOnlyIsolationLevel
+  }
+
+  /**
+   * Selects the backend.
+   *
+   * @param backend name of the backend (<code>hsqldb</code>,
+   *    <code>h2</code> or <code>postgresql</code>)
+   */
+  def setBackend(backend: String) {
+    this.backend = backend
+  }
+
+  /**
+   * Sets the database location. This location will be used to generate the
+   * JDBC URL for embedded backends.
+   *
+   * @param databaseLocation the resource pointing to the location, where
+   *    the database shall be stored
+   */
+  def setDatabaseLocation(databaseLocation: Resource) {
+    this.databaseLocation = databaseLocation
+  }
+
+  /**
+   * Sets the JDBC URL. This URL is used instead of the URL generated from
+   * the database location.
+   *
+   * @param url JDBC URL
+   */
+  def setUrl(url: String) {
+    this.url = url
+  }
+
+  /**
+   * Sets the isolation level for read/write transactions.
+   *
+   * @param readWriteIsolationLevel name of an isolation level constant of
+   *    {@link org.springframework.transaction.TransactionDefinition}, e.g.
+   *    <code>ISOLATION_SERIALIZABLE</code>
+   */
+  def setReadWriteIsolationLevel(readWriteIsolationLevel: String) {
+    this.readWriteIsolationLevel = readWriteIsolationLevel
+  }
+
+  /**
+   * Sets the isolation level for read-only transactions.
+   *
+   * @param readOnlyIsolationLevel name of an isolation level constant of
+   *    {@link org.springframework.transaction.TransactionDefinition}, e.g.
+   *    <code>ISOLATION_READ_COMMITTED</code>
+   */
+  def setReadOnlyIsolationLevel(readOnlyIsolationLevel: String) {
+    this.readOnlyIsolationLevel = readOnlyIsolationLevel
+  }
+}
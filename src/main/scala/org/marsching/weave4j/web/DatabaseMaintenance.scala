@@ -0,0 +1,323 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.sql.{Connection, DatabaseMetaData}
+import javax.sql.DataSource
+import org.marsching.weave4j.dbo.WeaveStorageDAO
+import org.slf4j.LoggerFactory
+import scala.collection.JavaConversions._
+
+/**
+ * Performs maintenance tasks on the database when the application is
+ * started. These tasks bring databases created by older versions up to date.
+ */
+class DatabaseMaintenance {
+
+  /**
+   * Transaction manager for managing database transactions.
+   */
+  protected var transactionManager: TransactionManager = null
+
+  /**
+   * DAO for accessing collections and WBOs.
+   */
+  protected var storageDAO: WeaveStorageDAO = null
+
+  /**
+   * Data source used to inspect the database schema.
+   */
+  protected var dataSource: DataSource = null
+
+  /**
+   * Recompute the metadata of all collections instead of only the
+   * collections with missing metadata.
+   */
+  protected var recomputeCollectionMetadata: Boolean = false
+
+  /**
+   * Create indexes that are missing instead of only reporting them.
+   */
+  protected var createMissingIndexes: Boolean = true
+
+  /**
+   * Maximum number of WBOs whose payload length is stored within one
+   * transaction.
+   */
+  protected val payloadSizeChunkSize = 1000
+
+  /**
+   * Indexes the queries rely on. Each index is specified by the table, the
+   * name used when creating it and its leading columns. An existing index
+   * with the same leading columns is accepted regardless of its name.
+   */
+  protected val expectedIndexes = List(
+    ("weave_wbo", "wbo_collection_modified_idx", List("collection_id", "modified_cs")),
+    ("weave_wbo", "wbo_collection_sortindex_idx", List("collection_id", "sortIndex")),
+    ("weave_wbo", "wbo_collection_id_idx", List("collection_id", "wbo_id")),
+    ("weave_wbo", "ttl_idx", List("ttl")))
+
+  /**
+   * Timestamps that were stored as decimal numbers of seconds by earlier
+   * versions and are now stored as whole centiseconds in a new column. Each
+   * entry is specified by the table, the old column and the new column.
+   */
+  protected val timestampColumns = List(
+    ("weave_wbo", "modified", "modified_cs"))
+
+  /**
+   * Logger for this class.
+   */
+  protected val logger = LoggerFactory.getLogger(this.getClass)
+
+  /**
+   * Runs the maintenance tasks. This method is called by the Spring
+   * container after all properties have been set.
+   */
+  def init() {
+    migrateTimestamps()
+    checkIndexes()
+    fillPayloadSizes()
+    val collectionCount = transactionManager.withReadWriteTransaction {
+      storageDAO.recomputeCollectionMetadata(!recomputeCollectionMetadata)
+    }
+    if (collectionCount > 0) {
+      logger.info("Recomputed metadata of " + collectionCount + " collections.")
+    }
+  }
+
+  /**
+   * Stores the payload length of WBOs stored by a version that did not store
+   * it. The sizes of the collections are computed from the stored lengths.
+   */
+  protected def fillPayloadSizes() {
+    var wboCount = 0L
+    var chunkCount = 0
+    do {
+      chunkCount = transactionManager.withReadWriteTransaction {
+        storageDAO.fillPayloadSizes(payloadSizeChunkSize)
+      }
+      wboCount += chunkCount
+    } while (chunkCount >= payloadSizeChunkSize)
+    if (wboCount > 0) {
+      logger.info("Stored payload length of " + wboCount + " WBOs.")
+    }
+  }
+
+  /**
+   * Copies the timestamps stored by earlier versions to the columns storing
+   * them as centiseconds. The new columns are created by Hibernate when the
+   * schema is updated. The old columns are kept, so that an earlier version
+   * can be used with the database again: the old columns are still written,
+   * and values changed by an earlier version in the meantime are copied
+   * again at the next start. Indexes on the old columns are dropped,
+   * because they are not used any longer. The index on the new column is
+   * created by {@link #checkIndexes}.
+   *
+   * <p>All statements are executed in a single transaction. Databases that
+   * commit DDL statements implicitly may only apply some of them if an error
+   * occurs, but all steps are repeated at the next start.</p>
+   */
+  protected def migrateTimestamps() {
+    val connection = dataSource.getConnection
+    val autoCommit = connection.getAutoCommit
+    try {
+      connection.setAutoCommit(false)
+      val metaData = connection.getMetaData
+      val statement = connection.createStatement
+      try {
+        for ((table, oldColumn, newColumn) <- timestampColumns if columnExists(metaData, table, oldColumn)) {
+          for ((indexName, indexColumns) <- getIndexes(metaData, table) if indexColumns.exists(_.equalsIgnoreCase(oldColumn))) {
+            statement.execute("DROP INDEX " + indexName)
+          }
+          val converted = "CAST(" + oldColumn + " * 100 AS BIGINT)"
+          val rowCount = statement.executeUpdate("UPDATE " + table + " SET " + newColumn + " = " + converted + " WHERE " + oldColumn + " IS NOT NULL AND (" + newColumn + " IS NULL OR " + newColumn + " <> " + converted + ")")
+          if (rowCount > 0) {
+            logger.info("Converted " + rowCount + " timestamps in " + table + "." + oldColumn + " to centiseconds.")
+          }
+        }
+      } finally {
+        statement.close()
+      }
+      connection.commit()
+    } catch {
+      case e: Throwable => {
+        connection.rollback()
+        throw e
+      }
+    } finally {
+      connection.setAutoCommit(autoCommit)
+      connection.close()
+    }
+  }
+
+  /**
+   * Checks whether the indexes the queries rely on exist. Normally, these
+   * indexes are created by Hibernate when the schema is updated. Missing
+   * indexes are reported and, unless disabled, created.
+   */
+  protected def checkIndexes() {
+    val connection = dataSource.getConnection
+    try {
+      val metaData = connection.getMetaData
+      for ((table, name, columns) <- expectedIndexes) {
+        val existingIndexes = getIndexes(metaData, table).map(_._2)
+        val indexExists = existingIndexes.exists((indexColumns: List[String]) =>
+          indexColumns.length >= columns.length &&
+            indexColumns.zip(columns).forall((pair: (String, String)) => pair._1.equalsIgnoreCase(pair._2)))
+        if (!indexExists) {
+          if (createMissingIndexes) {
+            logger.warn("Index on " + table + columns.mkString(" (", ", ", ")") + " is missing, creating index " + name + ".")
+            createIndex(connection, table, name, columns)
+          } else {
+            logger.warn("Index on " + table + columns.mkString(" (", ", ", ")") + " is missing, queries on this table will be slow.")
+          }
+        }
+      }
+    } finally {
+      connection.close()
+    }
+  }
+
+  /**
+   * Tells whether a table has a column.
+   *
+   * @param metaData database metadata
+   * @param table name of the table
+   * @param column name of the column
+   * @return <code>true</code> if the column exists
+   */
+  private def columnExists(metaData: DatabaseMetaData, table: String, column: String): Boolean = {
+    val resultSet = metaData.getColumns(null, null, identifier(metaData, table), identifier(metaData, column))
+    try {
+      // The names are patterns, in which "_" matches any character.
+      var found = false
+      while (!found && resultSet.next()) {
+        found = resultSet.getString("COLUMN_NAME").equalsIgnoreCase(column)
+      }
+      found
+    } finally {
+      resultSet.close()
+    }
+  }
+
+  /**
+   * Returns the names and columns of all indexes of a table.
+   *
+   * @param metaData database metadata
+   * @param table name of the table
+   * @return list of indexes, each index being represented by its name and
+   *    the list of its columns in order
+   */
+  private def getIndexes(metaData: DatabaseMetaData, table: String): List[(String, List[String])] = {
+    val tableName = identifier(metaData, table)
+    val indexes = new java.util.TreeMap[String, java.util.TreeMap[java.lang.Short, String]]
+    val resultSet = metaData.getIndexInfo(null, null, tableName, false, true)
+    try {
+      while (resultSet.next()) {
+        val indexName = resultSet.getString("INDEX_NAME")
+        val columnName = resultSet.getString("COLUMN_NAME")
+        if (indexName != null && columnName != null) {
+          if (!indexes.containsKey(indexName)) {
+            indexes.put(indexName, new java.util.TreeMap[java.lang.Short, String])
+          }
+          indexes.get(indexName).put(resultSet.getShort("ORDINAL_POSITION"), columnName)
+        }
+      }
+    } finally {
+      resultSet.close()
+    }
+    indexes.entrySet.map((entry: java.util.Map.Entry[String, java.util.TreeMap[java.lang.Short, String]]) =>
+      (entry.getKey, entry.getValue.values.toList)).toList
+  }
+
+  /**
+   * Converts an unquoted identifier to the case used by the database for
+   * storing identifiers.
+   */
+  private def identifier(metaData: DatabaseMetaData, name: String): String = {
+    if (metaData.storesUpperCaseIdentifiers) {
+      name.toUpperCase
+    } else if (metaData.storesLowerCaseIdentifiers) {
+      name.toLowerCase
+    } else {
+      name
+    }
+  }
+
+  private def createIndex(connection: Connection, table: String, name: String, columns: List[String]) {
+    val statement = connection.createStatement
+    try {
+      statement.execute("CREATE INDEX " + name + " ON " + table + columns.mkString(" (", ", ", ")"))
+    } finally {
+      statement.close()
+    }
+    if (!connection.getAutoCommit) {
+      connection.commit()
+    }
+  }
+
+  /**
+   * Sets the transaction manager, used to manage transactions.
+   *
+   * @param transactionManager transaction manager
+   */
+  def setTransactionManager(transactionManager: TransactionManager) = {
+    this.transactionManager = transactionManager
+  }
+
+  /**
+   * Sets the DAO used to access collections and WBOs.
+   *
+   * @param storageDAO storage DAO
+   */
+  def setStorageDAO(storageDAO: WeaveStorageDAO) = {
+    this.storageDAO = storageDAO;
+  }
+
+  /**
+   * Sets the data source used to inspect the database schema.
+   *
+   * @param dataSource data source
+   */
+  def setDataSource(dataSource: DataSource) {
+    this.dataSource = dataSource
+  }
+
+  /**
+   * Enables or disables the recomputation of the metadata of all
+   * collections at startup.
+   *
+   * @param recomputeCollectionMetadata if <code>true</code>, the metadata
+   *    of all collections is recomputed, if <code>false</code>, only
+   *    collections with missing metadata are processed.
+   */
+  def setRecomputeCollectionMetadata(recomputeCollectionMetadata: Boolean) {
+    this.recomputeCollectionMetadata = recomputeCollectionMetadata
+  }
+
+  /**
+   * Enables or disables the creation of missing indexes at startup.
+   *
+   * @param createMissingIndexes if <code>true</code>, missing indexes are
+   *    created, if <code>false</code>, they are only reported.
+   */
+  def setCreateMissingIndexes(createMissingIndexes: Boolean) {
+    this.createMissingIndexes = createMissingIndexes
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.io.{BufferedReader, FilterInputStream, InputStream, InputStreamReader}
+import java.util.zip.{GZIPInputStream, InflaterInputStream}
+import javax.servlet.ServletInputStream
+import javax.servlet.http.{HttpServletRequest, HttpServletRequestWrapper}
+
+/**
+ * Request wrapper that decompresses a request body sent with a
+ * Content-Encoding of "gzip" or "deflate". The body is decompressed while
+ * it is read. A few kilobytes of compressed data can expand to gigabytes,
+ * so the size of the decompressed body is limited.
+ *
+ * @param request wrapped request
+ * @param encoding content coding of the body
+ * @param maxBytes maximum size of the decompressed body in bytes. If more
+ *    bytes are read, a {@link SizeLimitExceededException} is thrown.
+ */
+class DecompressingRequest(request: HttpServletRequest, encoding: String, maxBytes: Long) extends HttpServletRequestWrapper(request) {
+
+  private var compressedByteCount = 0L
+  private var uncompressedByteCount = 0L
+  private var decompressor: InputStream = null
+  private var inputStream: ServletInputStream = null
+  private var reader: BufferedReader = null
+
+  override def getInputStream: ServletInputStream = {
+    if (inputStream == null) {
+      val compressed = new FilterInputStream(super.getInputStream) {
+        override def read(): Int = {
+          val b = super.read()
+          if (b >= 0) {
+            compressedByteCount += 1
+          }
+          b
+        }
+
+        override def read(b: Array[Byte], off: Int, len: Int): Int = {
+          val count = super.read(b, off, len)
+          if (count > 0) {
+            compressedByteCount += count
+          }
+          count
+        }
+      }
+      val inflater = if (DecompressingRequest.normalize(encoding) == "deflate") {
+        new InflaterInputStream(compressed)
+      } else {
+        new GZIPInputStream(compressed)
+      }
+      decompressor = new LimitedInputStream(inflater, maxBytes)
+      inputStream = new ServletInputStream {
+        override def read(): Int = {
+          val b = decompressor.read()
+          if (b >= 0) {
+            uncompressedByteCount += 1
+          }
+          b
+        }
+
+        override def read(b: Array[Byte], off: Int, len: Int): Int = {
+          val count = decompressor.read(b, off, len)
+          if (count > 0) {
+            uncompressedByteCount += count
+          }
+          count
+        }
+
+        override def close() {
+          decompressor.close()
+        }
+      }
+    }
+    inputStream
+  }
+
+  override def getReader: BufferedReader = {
+    if (reader == null) {
+      val characterEncoding = if (getCharacterEncoding != null) getCharacterEncoding else "ISO-8859-1"
+      reader = new BufferedReader(new InputStreamReader(getInputStream, characterEncoding))
+    }
+    reader
+  }
+
+  override def getContentLength: Int = -1
+
+  override def getHeader(name: String): String = {
+    if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Length")) {
+      null
+    } else {
+      super.getHeader(name)
+    }
+  }
+
+  /**
+   * Releases the resources used for decompression. This method has to be
+   * called when the request has been handled, even if an error occurred.
+   */
+  def release() {
+    if (decompressor != null) {
+      decompressor.close()
+    }
+  }
+
+  /**
+   * Returns the number of bytes received from the client.
+   *
+   * @return number of bytes
+   */
+  def getCompressedByteCount: Long = compressedByteCount
+
+  /**
+   * Returns the number of bytes read from the body after decompression.
+   *
+   * @return number of bytes
+   */
+  def getUncompressedByteCount: Long = uncompressedByteCount
+}
+
+object DecompressingRequest {
+
+  /**
+   * Tells whether a content coding is an identity coding, so that the body
+   * does not need to be decompressed.
+   *
+   * @param encoding value of the Content-Encoding header or
+   *    <code>null</code>
+   * @return <code>true</code> if the body is not compressed
+   */
+  def isIdentity(encoding: String): Boolean = encoding == null || normalize(encoding) == "" || normalize(encoding) == "identity"
+
+  /**
+   * Tells whether a content coding is supported for request bodies.
+   *
+   * @param encoding value of the Content-Encoding header
+   * @return <code>true</code> if the body can be decompressed
+   */
+  def isSupported(encoding: String): Boolean = {
+    val normalized = normalize(encoding)
+    normalized == "gzip" || normalized == "x-gzip" || normalized == "deflate"
+  }
+
+  private def normalize(encoding: String): String = encoding.trim.toLowerCase
+}
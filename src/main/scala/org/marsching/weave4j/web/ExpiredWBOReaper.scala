@@ -0,0 +1,217 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.{Executors, ScheduledExecutorService, ThreadFactory, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+import org.marsching.weave4j.dbo.WeaveStorageDAO
+import org.slf4j.LoggerFactory
+import scala.collection.JavaConversions._
+
+/**
+ * Management interface of {@link ExpiredWBOReaper}.
+ */
+trait ExpiredWBOReaperMBean {
+  def getRunCount: Long
+  def getTotalRowsReaped: Long
+  def getTotalDuration: Long
+  def getLastRunRowsReaped: Long
+  def getLastRunDuration: Long
+}
+
+/**
+ * Periodically deletes WBOs whose TTL has expired. The WBOs are deleted in
+ * chunks, the WBOs of each user within a chunk in their own transaction, so
+ * that the clean-up never holds locks for a long time. Requests do not depend
+ * on the clean-up, because expired WBOs are filtered when reading.
+ */
+class ExpiredWBOReaper extends ExpiredWBOReaperMBean {
+
+  /**
+   * Transaction manager for managing database transactions.
+   */
+  protected var transactionManager: TransactionManager = null
+
+  /**
+   * DAO for accessing collections and WBOs.
+   */
+  protected var storageDAO: WeaveStorageDAO = null
+
+  /**
+   * Interval between two runs in seconds.
+   */
+  protected var interval: Int = 300
+
+  /**
+   * Maximum number of WBOs deleted within one transaction.
+   */
+  protected var chunkSize: Int = 1000
+
+  /**
+   * Logger for this class.
+   */
+  protected val logger = LoggerFactory.getLogger(this.getClass)
+
+  private var executor: ScheduledExecutorService = null
+
+  private val runCount = new AtomicLong
+  private val totalRowsReaped = new AtomicLong
+  private val totalDuration = new AtomicLong
+  private val lastRunRowsReaped = new AtomicLong
+  private val lastRunDuration = new AtomicLong
+
+  /**
+   * Starts the periodic clean-up. This method is called by the Spring
+   * container after all properties have been set.
+   */
+  def start() {
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      override def newThread(runnable: Runnable): Thread = {
+        val thread = new Thread(runnable, "weave4j-expired-wbo-reaper")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+    executor.scheduleWithFixedDelay(new Runnable {
+      override def run() {
+        try {
+          reap()
+        } catch {
+          case e: Exception => logger.error("Clean-up of expired WBOs failed.", e)
+        }
+      }
+    }, interval, interval, TimeUnit.SECONDS)
+  }
+
+  /**
+   * Stops the periodic clean-up. This method is called by the Spring
+   * container when the application is shut down.
+   */
+  def stop() {
+    if (executor != null) {
+      executor.shutdownNow()
+      executor = null
+    }
+  }
+
+  /**
+   * Deletes all WBOs that are expired at the time this method is called.
+   *
+   * @return number of deleted WBOs
+   */
+  def reap(): Long = {
+    val startTime = System.currentTimeMillis
+    val timestampSeconds = WeaveTimestamps.currentTime / 100
+    var rowsReaped = 0L
+    var chunkRowsFound = 0
+    do {
+      val expiredWBOs = transactionManager.withReadOnlyTransaction {
+        storageDAO.findExpiredWBOs(timestampSeconds, chunkSize)
+      }
+      chunkRowsFound = 0
+      // The WBOs of each user are deleted while holding the lock of this
+      // user only, so requests of other users do not have to wait.
+      for ((username, ids) <- expiredWBOs) {
+        chunkRowsFound += ids.size
+        rowsReaped += transactionManager.withUserReadWriteTransaction(username) {
+          storageDAO.deleteExpiredWBOs(ids, timestampSeconds)
+        }
+      }
+    } while (chunkRowsFound >= chunkSize)
+    val duration = System.currentTimeMillis - startTime
+    runCount.incrementAndGet()
+    totalRowsReaped.addAndGet(rowsReaped)
+    totalDuration.addAndGet(duration)
+    lastRunRowsReaped.set(rowsReaped)
+    lastRunDuration.set(duration)
+    logger.debug("Deleted " + rowsReaped + " expired WBOs in " + duration + " ms.")
+    rowsReaped
+  }
+
+  /**
+   * Returns the number of clean-up runs since the application was started.
+   *
+   * @return number of runs
+   */
+  def getRunCount: Long = runCount.get
+
+  /**
+   * Returns the number of WBOs deleted since the application was started.
+   *
+   * @return number of deleted WBOs
+   */
+  def getTotalRowsReaped: Long = totalRowsReaped.get
+
+  /**
+   * Returns the time spent on clean-up runs since the application was
+   * started.
+   *
+   * @return duration in milliseconds
+   */
+  def getTotalDuration: Long = totalDuration.get
+
+  /**
+   * Returns the number of WBOs deleted by the last run.
+   *
+   * @return number of deleted WBOs
+   */
+  def getLastRunRowsReaped: Long = lastRunRowsReaped.get
+
+  /**
+   * Returns the duration of the last run.
+   *
+   * @return duration in milliseconds
+   */
+  def getLastRunDuration: Long = lastRunDuration.get
+
+  /**
+   * Sets the transaction manager, used to manage transactions.
+   *
+   * @param transactionManager transaction manager
+   */
+  def setTransactionManager(transactionManager: TransactionManager) = {
+    this.transactionManager = transactionManager
+  }
+
+  /**
+   * Sets the DAO used to access collections and WBOs.
+   *
+   * @param storageDAO storage DAO
+   */
+  def setStorageDAO(storageDAO: WeaveStorageDAO) = {
+    this.storageDAO = storageDAO;
+  }
+
+  /**
+   * Sets the interval between two clean-up runs.
+   *
+   * @param interval interval in seconds
+   */
+  def setInterval(interval: Int) {
+    this.interval = interval
+  }
+
+  /**
+   * Sets the maximum number of WBOs deleted within one transaction.
+   *
+   * @param chunkSize maximum number of WBOs per transaction
+   */
+  def setChunkSize(chunkSize: Int) {
+    this.chunkSize = chunkSize
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.{CountDownLatch, LinkedBlockingQueue, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+import org.slf4j.LoggerFactory
+import scala.collection.JavaConversions._
+
+/**
+ * Management interface of {@link GroupCommitter}.
+ */
+trait GroupCommitterMBean {
+  def getBatchCount: Long
+  def getWriteCount: Long
+  def getMeanBatchSize: Double
+  def getFallbackCount: Long
+  def reset()
+}
+
+/**
+ * Executes small writes of concurrent requests in a common transaction, so
+ * that the cost of committing (in particular syncing the transaction log)
+ * is shared by all of them. The writes are collected by a background
+ * thread: after the first write has arrived, it waits for the linger time
+ * or until the maximum batch size has been reached and then executes all
+ * collected writes in one read/write transaction. The requests wait until
+ * their write has been committed.
+ *
+ * <p>If one of the writes fails, the common transaction is rolled back and
+ * each write is executed again in its own transaction, so that a failure
+ * is only reported to the request that caused it.</p>
+ */
+class GroupCommitter extends GroupCommitterMBean {
+
+  /**
+   * Transaction manager for managing database transactions.
+   */
+  protected var transactionManager: TransactionManager = null
+
+  /**
+   * Collect writes in common transactions. If disabled, each write is
+   * executed in its own transaction.
+   */
+  protected var enabled: Boolean = false
+
+  /**
+   * Time in milliseconds to wait for further writes after the first write
+   * of a batch has arrived.
+   */
+  protected var lingerTime: Long = 2
+
+  /**
+   * Maximum number of writes executed in one transaction.
+   */
+  protected var maxBatchSize: Int = 50
+
+  /**
+   * Logger for this class.
+   */
+  protected val logger = LoggerFactory.getLogger(this.getClass)
+
+  private val pending = new LinkedBlockingQueue[PendingWrite]
+  @volatile private var thread: Thread = null
+
+  private val batchCount = new AtomicLong
+  private val writeCount = new AtomicLong
+  private val fallbackCount = new AtomicLong
+
+  /**
+   * Write waiting to be executed and the outcome of its execution.
+   */
+  private class PendingWrite(val write: () => Unit) {
+    private val done = new CountDownLatch(1)
+    @volatile private var error: Throwable = null
+
+    def complete(error: Throwable) {
+      this.error = error
+      done.countDown()
+    }
+
+    def await(timeout: Long): Boolean = done.await(timeout, TimeUnit.MILLISECONDS)
+
+    def getError: Throwable = error
+  }
+
+  /**
+   * Starts the background thread, if group commit is enabled. This method
+   * is called by the Spring container after all properties have been set.
+   */
+  def start() {
+    if (!enabled) {
+      return
+    }
+    val committer = new Thread(new Runnable {
+      override def run() {
+        processWrites()
+      }
+    }, "weave4j-group-commit")
+    committer.setDaemon(true)
+    thread = committer
+    committer.start()
+  }
+
+  /**
+   * Stops the background thread. Writes that have not been executed yet
+   * fail. This method is called by the Spring container when the
+   * application is shut down.
+   */
+  def stop() {
+    val committer = thread
+    thread = null
+    if (committer != null) {
+      committer.interrupt()
+      committer.join()
+    }
+    failPendingWrites()
+  }
+
+  /**
+   * Tells whether writes are collected in common transactions.
+   *
+   * @return <code>true</code> if group commit is enabled
+   */
+  def isEnabled: Boolean = thread != null
+
+  /**
+   * Executes a write in a read/write transaction shared with the writes of
+   * other requests and waits until the transaction has been committed. The
+   * write is executed by another thread, so it must not access the request
+   * or the response.
+   *
+   * @param write action to perform within the transaction
+   * @throws Throwable exception thrown by the write or by the commit
+   */
+  def execute(write: => Unit) {
+    if (!isEnabled) {
+      transactionManager.withReadWriteTransaction(write)
+      return
+    }
+    val pendingWrite = new PendingWrite(() => write)
+    pending.put(pendingWrite)
+    // The write cannot be abandoned once it has been queued, because it
+    // might be executed at any time. If the committer has been stopped in
+    // the meantime, the write fails.
+    var interrupted = false
+    var done = false
+    while (!done) {
+      try {
+        done = pendingWrite.await(1000)
+        if (!done && thread == null) {
+          failPendingWrites()
+        }
+      } catch {
+        case e: InterruptedException => interrupted = true
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread.interrupt()
+    }
+    if (pendingWrite.getError != null) {
+      throw pendingWrite.getError
+    }
+  }
+
+  private def processWrites() {
+    val batch = new java.util.ArrayList[PendingWrite]
+    try {
+      while (thread != null) {
+        batch.add(pending.take())
+        val deadline = System.nanoTime + TimeUnit.MILLISECONDS.toNanos(lingerTime)
+        var remaining = deadline - System.nanoTime
+        while (batch.size < maxBatchSize && remaining > 0) {
+          val next = pending.poll(remaining, TimeUnit.NANOSECONDS)
+          if (next != null) {
+            batch.add(next)
+            pending.drainTo(batch, maxBatchSize - batch.size)
+          }
+          remaining = deadline - System.nanoTime
+        }
+        pending.drainTo(batch, maxBatchSize - batch.size)
+        commit(batch)
+        batch.clear()
+      }
+    } catch {
+      case e: InterruptedException => {
+        // The committer has been stopped.
+      }
+    } finally {
+      for (pendingWrite <- batch) {
+        pendingWrite.complete(new IllegalStateException("Group commit has been stopped."))
+      }
+    }
+  }
+
+  private def commit(batch: java.util.List[PendingWrite]) {
+    // The counters are updated before the writes are completed, so that
+    // they include a write as soon as its request continues.
+    batchCount.incrementAndGet()
+    writeCount.addAndGet(batch.size)
+    try {
+      transactionManager.withReadWriteTransaction {
+        for (pendingWrite <- batch) {
+          pendingWrite.write()
+        }
+      }
+      for (pendingWrite <- batch) {
+        pendingWrite.complete(null)
+      }
+    } catch {
+      case e: Throwable => {
+        if (batch.size == 1) {
+          batch.get(0).complete(e)
+        } else {
+          logger.debug("Group commit of " + batch.size + " writes failed, executing the writes separately.", e)
+          fallbackCount.incrementAndGet()
+          for (pendingWrite <- batch) {
+            try {
+              transactionManager.withReadWriteTransaction {
+                pendingWrite.write()
+              }
+              pendingWrite.complete(null)
+            } catch {
+              case e: Throwable => pendingWrite.complete(e)
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private def failPendingWrites() {
+    var pendingWrite = pending.poll()
+    while (pendingWrite != null) {
+      pendingWrite.complete(new IllegalStateException("Group commit has been stopped."))
+      pendingWrite = pending.poll()
+    }
+  }
+
+  /**
+   * Returns the number of transactions executed.
+   *
+   * @return number of transactions
+   */
+  def getBatchCount: Long = batchCount.get
+
+  /**
+   * Returns the number of writes executed.
+   *
+   * @return number of writes
+   */
+  def getWriteCount: Long = writeCount.get
+
+  /**
+   * Returns the mean number of writes executed in one transaction.
+   *
+   * @return mean number of writes
+   */
+  def getMeanBatchSize: Double = {
+    val batches = batchCount.get
+    if (batches == 0) 0.0 else writeCount.get.toDouble / batches
+  }
+
+  /**
+   * Returns the number of transactions that failed, so that their writes
+   * had to be executed separately.
+   *
+   * @return number of failed transactions
+   */
+  def getFallbackCount: Long = fallbackCount.get
+
+  /**
+   * Resets the counters.
+   */
+  def reset() {
+    batchCount.set(0)
+    writeCount.set(0)
+    fallbackCount.set(0)
+  }
+
+  /**
+   * Sets the transaction manager, used to manage transactions.
+   *
+   * @param transactionManager transaction manager
+   */
+  def setTransactionManager(transactionManager: TransactionManager) = {
+    this.transactionManager = transactionManager
+  }
+
+  /**
+   * Enables or disables group commit.
+   *
+   * @param enabled if <code>true</code>, writes of concurrent requests are
+   *    executed in common transactions
+   */
+  def setEnabled(enabled: Boolean) {
+    this.enabled = enabled
+  }
+
+  /**
+   * Sets the time to wait for further writes after the first write of a
+   * batch has arrived.
+   *
+   * @param lingerTime time in milliseconds
+   */
+  def setLingerTime(lingerTime: Long) {
+    this.lingerTime = lingerTime
+  }
+
+  /**
+   * Sets the maximum number of writes executed in one transaction.
+   *
+   * @param maxBatchSize maximum number of writes
+   */
+  def setMaxBatchSize(maxBatchSize: Int) {
+    this.maxBatchSize = maxBatchSize
+  }
+}
@@ -18,7 +18,7 @@
 package org.marsching.weave4j.web
 
 import javax.servlet.http.{HttpServletRequest, HttpServletResponse}
-import org.codehaus.jackson.{JsonGenerator, JsonEncoding, JsonNode}
+import org.codehaus.jackson.{JsonGenerator, JsonEncoding, JsonNode, JsonParser}
 import java.io.{OutputStream, ByteArrayOutputStream}
 import org.springframework.util.Assert
 import collection.JavaConversions._
@@ -26,7 +26,7 @@ import org.marsching.weave4j.dbo.WeaveBasicObject
 import org.codehaus.jackson.map.{JsonMappingException, ObjectMapper}
 import org.codehaus.jackson.node.{TextNode, ObjectNode, ArrayNode}
 import org.slf4j.LoggerFactory
-import org.codehaus.jackson.node.BigIntegerNode
+import org.codehaus.jackson.io.SerializedString
 
 /**
  * Utility functions for writing JSON to a HTTP response and reading JSON from HTTP requests.
@@ -71,6 +71,19 @@ object JSONHelper {
     objectMapper.createArrayNode()
   }
 
+  /**
+   * Creates a writer that writes a JSON list to a HTTP response element by
+   * element. The format of the list is selected using the Accept header of
+   * the request.
+   *
+   * @param request HTTP request
+   * @param response HTTP response
+   * @return list writer for the response
+   */
+  def createListWriter(request: HttpServletRequest, response: HttpServletResponse): JSONListWriter = {
+    new JSONListWriter(request, response, objectMapper)
+  }
+
   /**
    * Writes a JSON node to a HTTP response.
    *
@@ -82,41 +95,11 @@ object JSONHelper {
     response.setContentType("utf-8")
 
     if (node.isArray) {
-      val acceptHeader = request.getHeader("Accept")
-      if (acceptHeader.contains(TypeApplicationWhoisi)) {
-        response.setContentType(TypeApplicationWhoisi)
-        val baos = new ByteArrayOutputStream()
-        val jsonGenerator = objectMapper.getJsonFactory().createJsonGenerator(baos, JsonEncoding.UTF8)
-        val os = response.getOutputStream()
-        for (node: JsonNode <- node.getElements()) {
-          objectMapper.writeValue(jsonGenerator, node)
-          val jsonBytes = baos.toByteArray()
-          baos.reset()
-          os.write(longTo4Bytes(jsonBytes.length))
-          os.write(jsonBytes)
-        }
-      } else if (acceptHeader.contains(TypeApplicationNewlines)) {
-        response.setContentType(TypeApplicationNewlines)
-        val baos = new ByteArrayOutputStream()
-        val jsonGenerator = objectMapper.getJsonFactory().createJsonGenerator(baos, JsonEncoding.UTF8)
-        val os = response.getOutputStream()
-        for (node: JsonNode <- node.getElements()) {
-          objectMapper.writeValue(jsonGenerator, node)
-          val jsonBytes = baos.toByteArray()
-          baos.reset()
-          val jsonBytesConverted: Array[Byte] = jsonBytes map ((b: Byte) => {
-            if (b == '\n')
-              0x0a.asInstanceOf[Byte]
-            else
-              b
-          })
-          os.write(jsonBytesConverted);
-          os.write('\n');
-        }
-      } else {
-        response.setContentType(TypeApplicationJson)
-        objectMapper.writeValue(response.getWriter(), node)
+      val listWriter = createListWriter(request, response)
+      for (element: JsonNode <- node.getElements()) {
+        listWriter.write(element)
       }
+      listWriter.close()
     } else {
       response.setContentType(TypeApplicationJson)
       objectMapper.writeValue(response.getWriter(), node)
@@ -124,16 +107,16 @@ object JSONHelper {
   }
 
   /**
-   * Writes a big decimal to a HTTP response as JSON.
+   * Writes a timestamp to a HTTP response as JSON.
    *
    * @param request HTTP request
    * @param response HTTP resonse
-   * @param decimal decimal to be serialized
+   * @param timestamp timestamp in centiseconds, serialized in seconds
    */
-  def writeJSON(request: HttpServletRequest, response: HttpServletResponse, decimal: BigDecimal) {
+  def writeTimestamp(request: HttpServletRequest, response: HttpServletResponse, timestamp: Long) {
     response.setContentType(TypeApplicationJson)
     response.setCharacterEncoding("utf-8")
-    response.getWriter().print(decimal.bigDecimal.toPlainString())
+    response.getWriter().print(WeaveTimestamps.format(timestamp))
   }
 
   /**
@@ -172,13 +155,35 @@ object JSONHelper {
     return objectMapper.readTree(request.getInputStream())
   }
 
+  /**
+   * Creates a parser reading JSON tokens from the body of an HTTP request.
+   * Unlike {@link #readJSON}, the body is not read into memory at once, so
+   * large bodies can be processed incrementally.
+   *
+   * @param request HTTP request
+   * @param maxBytes maximum number of bytes that may be read from the body
+   *    or 0 if the size of the body is not limited. If more bytes are read,
+   *    the parser throws a {@link SizeLimitExceededException}.
+   * @return JSON parser
+   */
+  def createParser(request: HttpServletRequest, maxBytes: Long): JsonParser = {
+    val in = {
+      if (maxBytes > 0) {
+        new LimitedInputStream(request.getInputStream(), maxBytes)
+      } else {
+        request.getInputStream()
+      }
+    }
+    objectMapper.getJsonFactory().createJsonParser(in)
+  }
+
   /**
    * Converts the last 4 bytes of a long to an array of bytes.
    *
    * @param longValue number to be converted
    * @return array with exactly 4 bytes
    */
-  protected def longTo4Bytes(longValue: Long): Array[Byte] = {
+  private[web] def longTo4Bytes(longValue: Long): Array[Byte] = {
       Assert.isTrue(longValue < 4294967296L, "Long value has to be smaller than 4294967296 to be stored in 4 bytes.")
       val bytes = new Array[Byte](4)
       bytes(0) = ((longValue >> 24) & 0xff).toByte
@@ -188,33 +193,75 @@ object JSONHelper {
       return bytes
   }
 
+  private val FieldId = new SerializedString("id")
+  private val FieldParentId = new SerializedString("parentid")
+  private val FieldPredecessorId = new SerializedString("predecessorid")
+  private val FieldModified = new SerializedString("modified")
+  private val FieldSortIndex = new SerializedString("sortindex")
+  private val FieldPayload = new SerializedString("payload")
+  private val FieldTtl = new SerializedString("ttl")
+
   /**
-   * Creates a JSON tree from a WBO.
+   * Writes a WBO to a HTTP response as JSON.
    *
+   * @param request HTTP request
+   * @param response HTTP response
    * @param wbo Weave Basic Object to be serialized
+   * @param includeTtl include the remaining time to live of the WBO
+   * @param timestamp current time as UNIX timestamp, used to compute the
+   *    remaining time to live
    */
-  def weaveBasicObjectToJSON(wbo: WeaveBasicObject, includeTtl: Boolean, timestamp: BigDecimal): JsonNode = {
-    val root = createJSONObjectNode
-    root.put("id", wbo.getId())
+  def writeJSON(request: HttpServletRequest, response: HttpServletResponse, wbo: WeaveBasicObject, includeTtl: Boolean, timestamp: Long) {
+    response.setContentType(TypeApplicationJson)
+    response.setCharacterEncoding("utf-8")
+    val generator = objectMapper.getJsonFactory.createJsonGenerator(response.getOutputStream, JsonEncoding.UTF8)
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    writeWeaveBasicObject(generator, wbo, includeTtl, timestamp)
+    generator.close()
+  }
+
+  /**
+   * Writes a WBO to a JSON generator. The fields are written directly
+   * instead of building a JSON tree first, so apart from the payload,
+   * hardly anything is allocated per WBO.
+   *
+   * @param generator JSON generator
+   * @param wbo Weave Basic Object to be serialized
+   * @param includeTtl include the remaining time to live of the WBO
+   * @param timestamp current time as UNIX timestamp, used to compute the
+   *    remaining time to live
+   */
+  def writeWeaveBasicObject(generator: JsonGenerator, wbo: WeaveBasicObject, includeTtl: Boolean, timestamp: Long) {
+    generator.writeStartObject()
+    generator.writeFieldName(FieldId)
+    generator.writeString(wbo.getId())
     val parentId = wbo.getParentId()
-    if (parentId != null)
-      root.put("parentid", parentId)
+    if (parentId != null) {
+      generator.writeFieldName(FieldParentId)
+      generator.writeString(parentId)
+    }
     val predecessorId = wbo.getPredecessorId()
-    if (predecessorId != null)
-      root.put("predecessorid", predecessorId)
-    root.put("modified", wbo.getModified())
+    if (predecessorId != null) {
+      generator.writeFieldName(FieldPredecessorId)
+      generator.writeString(predecessorId)
+    }
+    generator.writeFieldName(FieldModified)
+    generator.writeNumber(WeaveTimestamps.format(wbo.getModified()))
     val sortIndex = wbo.getSortIndex()
-    if (sortIndex != null)
-      root.put("sortindex", sortIndex.intValue())
+    if (sortIndex != null) {
+      generator.writeFieldName(FieldSortIndex)
+      generator.writeNumber(sortIndex.intValue)
+    }
     val payload = wbo.getPayload()
-    if (payload != null)
-      root.put("payload", payload)
+    if (payload != null) {
+      generator.writeFieldName(FieldPayload)
+      generator.writeString(payload)
+    }
     val ttl = wbo.getTtl()
     if (ttl != null && includeTtl) {
-      val timestampInt = timestamp.toBigInt.bigInteger
-      root.put("ttl", new BigIntegerNode(ttl.subtract(timestampInt)))
+      generator.writeFieldName(FieldTtl)
+      generator.writeNumber(ttl.longValue - timestamp)
     }
-    return root
+    generator.writeEndObject()
   }
-
-}
\ No newline at end of file
+}
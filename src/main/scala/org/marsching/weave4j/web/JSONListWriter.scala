@@ -0,0 +1,172 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.io.{ByteArrayOutputStream, OutputStream}
+import javax.servlet.http.{HttpServletRequest, HttpServletResponse}
+import org.codehaus.jackson.{JsonEncoding, JsonGenerator, JsonNode}
+import org.codehaus.jackson.map.ObjectMapper
+import org.codehaus.jackson.util.MinimalPrettyPrinter
+import org.marsching.weave4j.dbo.WeaveBasicObject
+
+/**
+ * Writes a JSON list to a HTTP response one element at a time. Depending
+ * on the Accept header of the request, the list is written as a JSON
+ * array, in the "newlines" format or in the "whoisi" format. Elements are
+ * serialized directly to the output stream of the response, so the memory
+ * needed does not depend on the number of elements.
+ *
+ * Nothing is written to the response before the first element is added,
+ * so that an error can still be sent if the list turns out to be empty.
+ *
+ * @param request HTTP request
+ * @param response HTTP response
+ * @param objectMapper object mapper used to create the JSON generator and
+ *    to serialize JSON trees
+ */
+class JSONListWriter(request: HttpServletRequest, response: HttpServletResponse, objectMapper: ObjectMapper) {
+
+  private val contentType = {
+    val acceptHeader = request.getHeader("Accept")
+    if (acceptHeader != null && acceptHeader.contains(JSONHelper.TypeApplicationWhoisi)) {
+      JSONHelper.TypeApplicationWhoisi
+    } else if (acceptHeader != null && acceptHeader.contains(JSONHelper.TypeApplicationNewlines)) {
+      JSONHelper.TypeApplicationNewlines
+    } else {
+      JSONHelper.TypeApplicationJson
+    }
+  }
+
+  private var outputStream: OutputStream = null
+  private var generator: JsonGenerator = null
+  private var buffer: ByteArrayOutputStream = null
+  private var elementCount = 0
+
+  /**
+   * Writes the next element of the list.
+   *
+   * @param writeElement function that writes exactly one JSON value to the
+   *    passed generator
+   */
+  def write(writeElement: JsonGenerator => Unit) {
+    if (generator == null) {
+      start()
+    }
+    writeElement(generator)
+    finishElement()
+  }
+
+  /**
+   * Writes a WBO as the next element of the list.
+   *
+   * @param wbo Weave Basic Object to be written
+   * @param includeTtl include the remaining time to live of the WBO
+   * @param timestamp current time as UNIX timestamp, used to compute the
+   *    remaining time to live
+   */
+  def write(wbo: WeaveBasicObject, includeTtl: Boolean, timestamp: Long) {
+    if (generator == null) {
+      start()
+    }
+    JSONHelper.writeWeaveBasicObject(generator, wbo, includeTtl, timestamp)
+    finishElement()
+  }
+
+  /**
+   * Writes a JSON tree as the next element of the list.
+   *
+   * @param node JSON node to be written
+   */
+  def write(node: JsonNode) {
+    write((generator: JsonGenerator) => objectMapper.writeTree(generator, node))
+  }
+
+  /**
+   * Writes a string as the next element of the list.
+   *
+   * @param str string to be written
+   */
+  def write(str: String) {
+    write((generator: JsonGenerator) => generator.writeString(str))
+  }
+
+  /**
+   * Finishes the list and flushes the output. If no element has been
+   * written, an empty list is written.
+   */
+  def close() {
+    if (generator == null) {
+      start()
+    }
+    if (contentType == JSONHelper.TypeApplicationJson) {
+      generator.writeEndArray()
+    }
+    generator.close()
+    outputStream.flush()
+  }
+
+  /**
+   * Returns the number of elements written so far.
+   *
+   * @return number of elements
+   */
+  def getElementCount: Int = elementCount
+
+  private def finishElement() {
+    contentType match {
+      case JSONHelper.TypeApplicationWhoisi => {
+        // The length prefix has to be known before the element is written
+        // to the response, so each element is serialized to a buffer that
+        // is reused for all elements.
+        generator.flush()
+        outputStream.write(JSONHelper.longTo4Bytes(buffer.size))
+        buffer.writeTo(outputStream)
+        buffer.reset()
+      }
+      case JSONHelper.TypeApplicationNewlines => {
+        generator.writeRaw('\n')
+      }
+      case _ =>
+    }
+    elementCount += 1
+  }
+
+  private def start() {
+    response.setContentType(contentType)
+    outputStream = response.getOutputStream()
+    val target = if (contentType == JSONHelper.TypeApplicationWhoisi) {
+      buffer = new ByteArrayOutputStream()
+      buffer
+    } else {
+      outputStream
+    }
+    generator = objectMapper.getJsonFactory.createJsonGenerator(target, JsonEncoding.UTF8)
+    // The generator must not close the servlet output stream, the servlet
+    // container takes care of this.
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    if (contentType == JSONHelper.TypeApplicationJson) {
+      response.setCharacterEncoding("utf-8")
+      generator.writeStartArray()
+    } else {
+      // By default, Jackson separates root values by a space.
+      val prettyPrinter = new MinimalPrettyPrinter
+      prettyPrinter.setRootValueSeparator("")
+      generator.setPrettyPrinter(prettyPrinter)
+    }
+  }
+}
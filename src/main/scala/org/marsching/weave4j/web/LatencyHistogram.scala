@@ -0,0 +1,142 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+/**
+ * Histogram of durations with logarithmic buckets. Each power of two is
+ * split into four buckets, so percentiles are estimated with an error of
+ * at most 25 percent, while the histogram has a small, fixed size. Values
+ * can be recorded concurrently without locking.
+ */
+class LatencyHistogram {
+
+  /**
+   * Number of buckets per power of two.
+   */
+  private val SubBuckets = 4
+
+  /**
+   * Number of buckets, covering durations up to about twelve days.
+   */
+  private val BucketCount = 160
+
+  private val counts = new AtomicLongArray(BucketCount)
+  private val count = new AtomicLong
+  private val sum = new AtomicLong
+  private val max = new AtomicLong
+
+  /**
+   * Records a duration.
+   *
+   * @param micros duration in microseconds
+   */
+  def record(micros: Long) {
+    val value = if (micros < 0) 0L else micros
+    counts.incrementAndGet(bucketIndex(value))
+    count.incrementAndGet()
+    sum.addAndGet(value)
+    var currentMax = max.get
+    while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+      currentMax = max.get
+    }
+  }
+
+  /**
+   * Returns the number of recorded durations.
+   *
+   * @return number of values
+   */
+  def getCount: Long = count.get
+
+  /**
+   * Returns the mean of the recorded durations.
+   *
+   * @return mean in microseconds or 0 if no duration has been recorded
+   */
+  def getMean: Double = {
+    val n = count.get
+    if (n == 0) 0.0 else sum.get.toDouble / n
+  }
+
+  /**
+   * Returns the longest recorded duration.
+   *
+   * @return maximum in microseconds
+   */
+  def getMax: Long = max.get
+
+  /**
+   * Estimates a percentile of the recorded durations.
+   *
+   * @param percentile percentile between 0 and 100
+   * @return estimated duration in microseconds or 0 if no duration has
+   *    been recorded
+   */
+  def getPercentile(percentile: Double): Double = {
+    val n = count.get
+    if (n == 0) {
+      return 0.0
+    }
+    val rank = math.max(1L, math.ceil(n * percentile / 100.0).toLong)
+    var cumulative = 0L
+    var i = 0
+    while (i < BucketCount) {
+      cumulative += counts.get(i)
+      if (cumulative >= rank) {
+        // The middle of the bucket is used as the estimate, but the
+        // estimate cannot be greater than the maximum.
+        val estimate = (lowerBound(i) + lowerBound(i + 1)) / 2.0
+        return math.min(estimate, max.get.toDouble)
+      }
+      i += 1
+    }
+    max.get.toDouble
+  }
+
+  /**
+   * Removes all recorded durations.
+   */
+  def reset() {
+    for (i <- 0 until BucketCount) {
+      counts.set(i, 0)
+    }
+    count.set(0)
+    sum.set(0)
+    max.set(0)
+  }
+
+  private def bucketIndex(value: Long): Int = {
+    if (value < SubBuckets) {
+      return value.toInt
+    }
+    val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+    val subBucket = ((value >> (exponent - 2)) & (SubBuckets - 1)).toInt
+    math.min(SubBuckets + (exponent - 2) * SubBuckets + subBucket, BucketCount - 1)
+  }
+
+  private def lowerBound(index: Int): Long = {
+    if (index < SubBuckets) {
+      return index
+    }
+    val exponent = (index - SubBuckets) / SubBuckets + 2
+    val subBucket = (index - SubBuckets) % SubBuckets
+    (SubBuckets + subBucket).toLong << (exponent - 2)
+  }
+}
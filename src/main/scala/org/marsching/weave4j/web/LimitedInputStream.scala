@@ -0,0 +1,73 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.io.{FilterInputStream, IOException, InputStream}
+
+/**
+ * Exception thrown by {@link LimitedInputStream} when more bytes than
+ * allowed are read.
+ *
+ * @param limit maximum number of bytes
+ */
+class SizeLimitExceededException(limit: Long) extends IOException("Size limit of " + limit + " bytes exceeded")
+
+/**
+ * Input stream that allows reading at most a given number of bytes from
+ * the underlying stream. It is used to limit the size of request bodies
+ * without having to rely on the Content-Length header, which is not sent
+ * for compressed or chunked bodies.
+ *
+ * @param in underlying input stream
+ * @param limit maximum number of bytes that may be read
+ */
+class LimitedInputStream(in: InputStream, limit: Long) extends FilterInputStream(in) {
+
+  private var byteCount = 0L
+
+  override def read(): Int = {
+    val b = super.read()
+    if (b >= 0) {
+      count(1)
+    }
+    b
+  }
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int = {
+    val bytesRead = super.read(b, off, len)
+    if (bytesRead > 0) {
+      count(bytesRead)
+    }
+    bytesRead
+  }
+
+  override def skip(n: Long): Long = {
+    val skipped = super.skip(n)
+    count(skipped)
+    skipped
+  }
+
+  override def markSupported: Boolean = false
+
+  private def count(bytes: Long) {
+    byteCount += bytes
+    if (byteCount > limit) {
+      throw new SizeLimitExceededException(limit)
+    }
+  }
+}
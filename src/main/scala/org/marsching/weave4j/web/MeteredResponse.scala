@@ -0,0 +1,167 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.io.{OutputStreamWriter, PrintWriter}
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.{HttpServletResponse, HttpServletResponseWrapper}
+
+/**
+ * Response wrapper that records the status code, the number of bytes
+ * written to the body and the Weave error code of a response, so that they
+ * can be passed to {@link Metrics}.
+ *
+ * @param response wrapped response
+ */
+class MeteredResponse(response: HttpServletResponse) extends HttpServletResponseWrapper(response) {
+
+  private var status = HttpServletResponse.SC_OK
+  private var weaveErrorCode = 0
+  private var byteCount = 0L
+  private var outputStream: ServletOutputStream = null
+  private var writer: PrintWriter = null
+
+  override def setStatus(status: Int) {
+    this.status = status
+    super.setStatus(status)
+  }
+
+  override def setStatus(status: Int, message: String) {
+    this.status = status
+    super.setStatus(status, message)
+  }
+
+  override def sendError(status: Int) {
+    this.status = status
+    super.sendError(status)
+  }
+
+  override def sendError(status: Int, message: String) {
+    this.status = status
+    super.sendError(status, message)
+  }
+
+  override def sendRedirect(location: String) {
+    this.status = HttpServletResponse.SC_MOVED_TEMPORARILY
+    super.sendRedirect(location)
+  }
+
+  override def getOutputStream: ServletOutputStream = {
+    if (outputStream == null) {
+      val wrapped = super.getOutputStream
+      outputStream = new ServletOutputStream {
+        override def write(b: Int) {
+          wrapped.write(b)
+          byteCount += 1
+        }
+
+        override def write(b: Array[Byte], off: Int, len: Int) {
+          wrapped.write(b, off, len)
+          byteCount += len
+        }
+
+        override def flush() {
+          wrapped.flush()
+        }
+
+        override def close() {
+          wrapped.close()
+        }
+      }
+    }
+    outputStream
+  }
+
+  override def getWriter: PrintWriter = {
+    if (writer == null) {
+      // The writer encodes the characters itself, so that the bytes can be
+      // counted. The character encoding of the response is taken into
+      // account, because it is not changed after the writer has been
+      // retrieved.
+      writer = new PrintWriter(new OutputStreamWriter(getOutputStream, getCharacterEncoding))
+    }
+    writer
+  }
+
+  override def flushBuffer() {
+    if (writer != null) {
+      writer.flush()
+    }
+    super.flushBuffer()
+  }
+
+  /**
+   * Flushes the writer, if it has been used. This method has to be called
+   * after the request has been handled, because characters written to the
+   * writer are buffered.
+   */
+  def finish() {
+    if (writer != null) {
+      writer.flush()
+    }
+  }
+
+  /**
+   * Returns the HTTP status code of the response.
+   *
+   * @return status code
+   */
+  def getStatus: Int = status
+
+  /**
+   * Returns the number of bytes written to the body of the response.
+   *
+   * @return number of bytes
+   */
+  def getByteCount: Long = byteCount
+
+  /**
+   * Returns the Weave error code sent in the response.
+   *
+   * @return Weave error code or 0 if the response does not signal a Weave
+   *    error
+   */
+  def getWeaveErrorCode: Int = weaveErrorCode
+
+  /**
+   * Sets the Weave error code sent in the response.
+   *
+   * @param weaveErrorCode Weave error code
+   */
+  def setWeaveErrorCode(weaveErrorCode: Int) {
+    this.weaveErrorCode = weaveErrorCode
+  }
+}
+
+object MeteredResponse {
+
+  /**
+   * Records the Weave error code sent in a response, if the response is a
+   * metered response or wraps a metered response.
+   *
+   * @param response HTTP response
+   * @param weaveErrorCode Weave error code
+   */
+  def recordWeaveErrorCode(response: javax.servlet.ServletResponse, weaveErrorCode: Int) {
+    response match {
+      case metered: MeteredResponse => metered.setWeaveErrorCode(weaveErrorCode)
+      case wrapper: javax.servlet.ServletResponseWrapper => recordWeaveErrorCode(wrapper.getResponse, weaveErrorCode)
+      case _ =>
+    }
+  }
+}
@@ -0,0 +1,371 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.{ConcurrentHashMap, CopyOnWriteArrayList}
+import java.util.concurrent.atomic.AtomicLong
+import javax.management.{MBeanServer, ObjectName, StandardMBean}
+import org.slf4j.LoggerFactory
+import scala.collection.JavaConversions._
+
+/**
+ * Management interface of {@link Metrics}.
+ */
+trait MetricsMBean {
+  def getRequestCount: Long
+  def getFailedRequestCount: Long
+  def getHttpStatusCounts: String
+  def getWeaveErrorCounts: String
+  def getCompressedRequestCount: Long
+  def getCompressedRequestBytes: Long
+  def getUncompressedRequestBytes: Long
+  def getCompressedResponseCount: Long
+  def getCompressedResponseBytes: Long
+  def getUncompressedResponseBytes: Long
+  def reset()
+}
+
+/**
+ * Collects timings of requests, DAO calls and transactions. For each kind
+ * of operation, the distribution of the durations is recorded, so that
+ * percentiles can be reported. The statistics are registered as MBeans
+ * when they are created and are shown in the administrative interface.
+ */
+class Metrics extends MetricsMBean {
+
+  /**
+   * Domain of the object names used to register the statistics as MBeans.
+   */
+  protected var jmxDomain: String = "weave4j"
+
+  /**
+   * Register the statistics as MBeans with the platform MBean server.
+   */
+  protected var registerMBeans: Boolean = true
+
+  /**
+   * Logger for this class.
+   */
+  protected val logger = LoggerFactory.getLogger(this.getClass)
+
+  private val requestStatistics = new ConcurrentHashMap[String, Statistics]
+  private val daoStatistics = new ConcurrentHashMap[String, Statistics]
+  private val transactionStatistics = new ConcurrentHashMap[String, Statistics]
+  private val httpStatusCounts = new ConcurrentHashMap[Integer, AtomicLong]
+  private val weaveErrorCounts = new ConcurrentHashMap[Integer, AtomicLong]
+  private val compressedRequestCount = new AtomicLong
+  private val compressedRequestBytes = new AtomicLong
+  private val uncompressedRequestBytes = new AtomicLong
+  private val compressedResponseCount = new AtomicLong
+  private val compressedResponseBytes = new AtomicLong
+  private val uncompressedResponseBytes = new AtomicLong
+  private val registeredNames = new CopyOnWriteArrayList[ObjectName]
+  @volatile private var mbeanServer: MBeanServer = null
+
+  /**
+   * Starts registering MBeans. This method is called by the Spring
+   * container after all properties have been set.
+   */
+  def init() {
+    if (registerMBeans) {
+      mbeanServer = ManagementFactory.getPlatformMBeanServer
+    }
+  }
+
+  /**
+   * Unregisters all MBeans registered by this object. This method is called
+   * by the Spring container when the application is shut down.
+   */
+  def destroy() {
+    val server = mbeanServer
+    mbeanServer = null
+    if (server != null) {
+      for (name <- registeredNames) {
+        try {
+          server.unregisterMBean(name)
+        } catch {
+          case e: Exception => logger.debug("Could not unregister MBean " + name + ".", e)
+        }
+      }
+    }
+    registeredNames.clear()
+  }
+
+  /**
+   * Records a request handled by the Weave HTTP request handler.
+   *
+   * @param endpoint part of the API the request was sent to
+   * @param method HTTP method of the request
+   * @param durationNanos time needed to handle the request in nanoseconds
+   * @param bytes number of bytes in the response body
+   * @param status HTTP status code of the response
+   * @param weaveErrorCode Weave error code sent in the response or 0
+   */
+  def recordRequest(endpoint: String, method: String, durationNanos: Long, bytes: Long, status: Int, weaveErrorCode: Int) {
+    getStatistics(requestStatistics, "Request", endpoint + " " + method).record(durationNanos, bytes, status >= 400)
+    increment(httpStatusCounts, status)
+    if (weaveErrorCode != 0) {
+      increment(weaveErrorCounts, weaveErrorCode)
+    }
+  }
+
+  /**
+   * Records a call of a DAO method.
+   *
+   * @param method name of the DAO method
+   * @param durationNanos duration of the call in nanoseconds
+   * @param failed <code>true</code> if the method threw an exception
+   */
+  def recordDAOCall(method: String, durationNanos: Long, failed: Boolean) {
+    getStatistics(daoStatistics, "DAO", method).record(durationNanos, 0, failed)
+  }
+
+  /**
+   * Records a phase of a transaction.
+   *
+   * @param phase name of the phase (e.g. waiting for the transaction to
+   *    begin or committing)
+   * @param durationNanos duration of the phase in nanoseconds
+   * @param failed <code>true</code> if the phase failed
+   */
+  def recordTransaction(phase: String, durationNanos: Long, failed: Boolean) {
+    getStatistics(transactionStatistics, "Transaction", phase).record(durationNanos, 0, failed)
+  }
+
+  /**
+   * Records a request whose body has been sent compressed by the client.
+   *
+   * @param compressedBytes number of bytes received
+   * @param uncompressedBytes number of bytes after decompression
+   */
+  def recordCompressedRequest(compressedBytes: Long, uncompressedBytes: Long) {
+    compressedRequestCount.incrementAndGet()
+    compressedRequestBytes.addAndGet(compressedBytes)
+    uncompressedRequestBytes.addAndGet(uncompressedBytes)
+  }
+
+  /**
+   * Records a response whose body has been compressed.
+   *
+   * @param compressedBytes number of bytes sent
+   * @param uncompressedBytes number of bytes before compression
+   */
+  def recordCompressedResponse(compressedBytes: Long, uncompressedBytes: Long) {
+    compressedResponseCount.incrementAndGet()
+    compressedResponseBytes.addAndGet(compressedBytes)
+    uncompressedResponseBytes.addAndGet(uncompressedBytes)
+  }
+
+  private def increment(counts: ConcurrentHashMap[Integer, AtomicLong], key: Int) {
+    var counter = counts.get(key)
+    if (counter == null) {
+      counts.putIfAbsent(key, new AtomicLong)
+      counter = counts.get(key)
+    }
+    counter.incrementAndGet()
+  }
+
+  private def getStatistics(statistics: ConcurrentHashMap[String, Statistics], category: String, name: String): Statistics = {
+    val existing = statistics.get(name)
+    if (existing != null) {
+      return existing
+    }
+    val created = new Statistics(name)
+    val previous = statistics.putIfAbsent(name, created)
+    if (previous != null) {
+      return previous
+    }
+    registerMBean(category, created)
+    created
+  }
+
+  private def registerMBean(category: String, statistics: Statistics) {
+    val server = mbeanServer
+    if (server == null) {
+      return
+    }
+    try {
+      val objectName = new ObjectName(jmxDomain + ":type=" + category + ",name=" + ObjectName.quote(statistics.getName))
+      if (server.isRegistered(objectName)) {
+        // Left over from an earlier deployment of the application.
+        server.unregisterMBean(objectName)
+      }
+      server.registerMBean(new StandardMBean(statistics, classOf[StatisticsMBean]), objectName)
+      registeredNames.add(objectName)
+    } catch {
+      case e: Exception => logger.warn("Could not register MBean for " + statistics.getName + ".", e)
+    }
+  }
+
+  private def sorted(statistics: ConcurrentHashMap[String, Statistics]): java.util.List[Statistics] = {
+    new java.util.ArrayList[Statistics](new java.util.TreeMap[String, Statistics](statistics).values)
+  }
+
+  private def sorted(counts: ConcurrentHashMap[Integer, AtomicLong]): java.util.Map[Integer, java.lang.Long] = {
+    val result = new java.util.TreeMap[Integer, java.lang.Long]
+    for ((key, value) <- counts) {
+      result.put(key, value.get)
+    }
+    result
+  }
+
+  /**
+   * Returns the statistics of the requests, one entry per endpoint and
+   * HTTP method, sorted by name.
+   *
+   * @return request statistics
+   */
+  def getRequestStatistics: java.util.List[Statistics] = sorted(requestStatistics)
+
+  /**
+   * Returns the statistics of the DAO calls, one entry per DAO method,
+   * sorted by name.
+   *
+   * @return DAO statistics
+   */
+  def getDaoStatistics: java.util.List[Statistics] = sorted(daoStatistics)
+
+  /**
+   * Returns the statistics of the transactions, one entry per transaction
+   * type and phase, sorted by name.
+   *
+   * @return transaction statistics
+   */
+  def getTransactionStatistics: java.util.List[Statistics] = sorted(transactionStatistics)
+
+  /**
+   * Returns the number of responses per HTTP status code.
+   *
+   * @return map from status code to number of responses
+   */
+  def getHttpStatusCountMap: java.util.Map[Integer, java.lang.Long] = sorted(httpStatusCounts)
+
+  /**
+   * Returns the number of responses per Weave error code.
+   *
+   * @return map from Weave error code to number of responses
+   */
+  def getWeaveErrorCountMap: java.util.Map[Integer, java.lang.Long] = sorted(weaveErrorCounts)
+
+  /**
+   * Returns the number of requests handled.
+   *
+   * @return number of requests
+   */
+  def getRequestCount: Long = requestStatistics.values.map(_.getCount).sum
+
+  /**
+   * Returns the number of requests that resulted in a HTTP status code
+   * signaling an error.
+   *
+   * @return number of failed requests
+   */
+  def getFailedRequestCount: Long = requestStatistics.values.map(_.getErrorCount).sum
+
+  /**
+   * Returns the number of responses per HTTP status code.
+   *
+   * @return comma-separated list of status codes and numbers of responses
+   */
+  def getHttpStatusCounts: String = getHttpStatusCountMap.map((entry) => entry._1 + "=" + entry._2).mkString(", ")
+
+  /**
+   * Returns the number of responses per Weave error code.
+   *
+   * @return comma-separated list of error codes and numbers of responses
+   */
+  def getWeaveErrorCounts: String = getWeaveErrorCountMap.map((entry) => entry._1 + "=" + entry._2).mkString(", ")
+
+  /**
+   * Returns the number of requests with a compressed body.
+   *
+   * @return number of requests
+   */
+  def getCompressedRequestCount: Long = compressedRequestCount.get
+
+  /**
+   * Returns the number of bytes received in compressed request bodies.
+   *
+   * @return number of bytes
+   */
+  def getCompressedRequestBytes: Long = compressedRequestBytes.get
+
+  /**
+   * Returns the number of bytes of compressed request bodies after
+   * decompression.
+   *
+   * @return number of bytes
+   */
+  def getUncompressedRequestBytes: Long = uncompressedRequestBytes.get
+
+  /**
+   * Returns the number of responses with a compressed body.
+   *
+   * @return number of responses
+   */
+  def getCompressedResponseCount: Long = compressedResponseCount.get
+
+  /**
+   * Returns the number of bytes sent in compressed response bodies.
+   *
+   * @return number of bytes
+   */
+  def getCompressedResponseBytes: Long = compressedResponseBytes.get
+
+  /**
+   * Returns the number of bytes of compressed response bodies before
+   * compression.
+   *
+   * @return number of bytes
+   */
+  def getUncompressedResponseBytes: Long = uncompressedResponseBytes.get
+
+  /**
+   * Resets all statistics.
+   */
+  def reset() {
+    for (statistics <- requestStatistics.values ++ daoStatistics.values ++ transactionStatistics.values) {
+      statistics.reset()
+    }
+    httpStatusCounts.clear()
+    weaveErrorCounts.clear()
+    for (counter <- List(compressedRequestCount, compressedRequestBytes, uncompressedRequestBytes, compressedResponseCount, compressedResponseBytes, uncompressedResponseBytes)) {
+      counter.set(0)
+    }
+  }
+
+  /**
+   * Sets the domain of the object names used to register MBeans.
+   *
+   * @param jmxDomain JMX domain
+   */
+  def setJmxDomain(jmxDomain: String) {
+    this.jmxDomain = jmxDomain
+  }
+
+  /**
+   * Enables or disables the registration of MBeans.
+   *
+   * @param registerMBeans if <code>true</code>, the statistics are
+   *    registered with the platform MBean server
+   */
+  def setRegisterMBeans(registerMBeans: Boolean) {
+    this.registerMBeans = registerMBeans
+  }
+}
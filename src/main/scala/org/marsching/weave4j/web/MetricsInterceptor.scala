@@ -0,0 +1,57 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import org.aopalliance.intercept.{MethodInterceptor, MethodInvocation}
+
+/**
+ * Interceptor that records the duration of each method call in
+ * {@link Metrics}. It is used to time the calls of the DAO methods. The
+ * calls are named after the interface declaring the method, e.g.
+ * <code>WeaveStorageDAO.getWBO</code>.
+ */
+class MetricsInterceptor extends MethodInterceptor {
+
+  /**
+   * Metrics the durations are recorded in.
+   */
+  protected var metrics: Metrics = null
+
+  override def invoke(invocation: MethodInvocation): AnyRef = {
+    val method = invocation.getMethod
+    val name = method.getDeclaringClass.getSimpleName + "." + method.getName
+    val startTime = System.nanoTime
+    var failed = true
+    try {
+      val result = invocation.proceed()
+      failed = false
+      result
+    } finally {
+      metrics.recordDAOCall(name, System.nanoTime - startTime, failed)
+    }
+  }
+
+  /**
+   * Sets the metrics the durations are recorded in.
+   *
+   * @param metrics metrics
+   */
+  def setMetrics(metrics: Metrics) {
+    this.metrics = metrics
+  }
+}
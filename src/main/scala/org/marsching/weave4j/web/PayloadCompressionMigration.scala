@@ -0,0 +1,160 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.{Executors, ExecutorService, ThreadFactory}
+import org.marsching.weave4j.dbo.WeaveStorageDAO
+import org.slf4j.LoggerFactory
+
+/**
+ * Compresses the payloads of WBOs that have been stored before payload
+ * compression has been enabled. The migration runs in the background after
+ * the application has been started, so the server is available while
+ * existing WBOs are migrated. The WBOs are processed in chunks, each chunk
+ * in its own transaction, with a pause between two chunks, so that the
+ * migration does not hold locks for a long time. Payloads that do not get
+ * shorter when compressed are checked again at the next start. Nothing is
+ * done while payload compression is disabled in the storage DAO.
+ */
+class PayloadCompressionMigration {
+
+  /**
+   * Transaction manager for managing database transactions.
+   */
+  protected var transactionManager: TransactionManager = null
+
+  /**
+   * DAO for accessing collections and WBOs.
+   */
+  protected var storageDAO: WeaveStorageDAO = null
+
+  /**
+   * Maximum number of WBOs processed within one transaction.
+   */
+  protected var chunkSize: Int = 500
+
+  /**
+   * Pause between two chunks in milliseconds.
+   */
+  protected var pause: Long = 100
+
+  /**
+   * Logger for this class.
+   */
+  protected val logger = LoggerFactory.getLogger(this.getClass)
+
+  private var executor: ExecutorService = null
+
+  /**
+   * Starts the migration. This method is called by the Spring container
+   * after all properties have been set.
+   */
+  def start() {
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory {
+      override def newThread(runnable: Runnable): Thread = {
+        val thread = new Thread(runnable, "weave4j-payload-compression-migration")
+        thread.setDaemon(true)
+        thread.setPriority(Thread.MIN_PRIORITY)
+        thread
+      }
+    })
+    executor.execute(new Runnable {
+      override def run() {
+        try {
+          migrate()
+        } catch {
+          case e: InterruptedException => logger.info("Compression of stored payloads has been interrupted.")
+          case e: Exception => logger.error("Compression of stored payloads failed.", e)
+        }
+      }
+    })
+  }
+
+  /**
+   * Stops the migration, if it is still running. This method is called by
+   * the Spring container when the application is shut down. The migration
+   * continues after the next start.
+   */
+  def stop() {
+    if (executor != null) {
+      executor.shutdownNow()
+      executor = null
+    }
+  }
+
+  /**
+   * Compresses the payloads of all WBOs that are stored uncompressed.
+   *
+   * @return number of chunks processed
+   */
+  def migrate(): Long = {
+    val startTime = System.currentTimeMillis
+    var chunks = 0L
+    var lastId: java.lang.Long = 0L
+    while (lastId != null) {
+      val afterId = lastId.longValue
+      lastId = transactionManager.withReadWriteTransaction {
+        storageDAO.compressStoredPayloads(afterId, chunkSize)
+      }
+      if (lastId != null) {
+        chunks += 1
+        Thread.sleep(pause)
+      }
+    }
+    if (chunks > 0) {
+      logger.info("Compressed stored payloads in " + chunks + " chunks in " + (System.currentTimeMillis - startTime) + " ms.")
+    }
+    chunks
+  }
+
+  /**
+   * Sets the transaction manager, used to manage transactions.
+   *
+   * @param transactionManager transaction manager
+   */
+  def setTransactionManager(transactionManager: TransactionManager) = {
+    this.transactionManager = transactionManager
+  }
+
+  /**
+   * Sets the DAO used to access collections and WBOs.
+   *
+   * @param storageDAO storage DAO
+   */
+  def setStorageDAO(storageDAO: WeaveStorageDAO) = {
+    this.storageDAO = storageDAO
+  }
+
+  /**
+   * Sets the maximum number of WBOs processed within one transaction.
+   *
+   * @param chunkSize maximum number of WBOs per transaction
+   */
+  def setChunkSize(chunkSize: Int) {
+    this.chunkSize = chunkSize
+  }
+
+  /**
+   * Sets the pause between two chunks.
+   *
+   * @param pause pause in milliseconds
+   */
+  def setPause(pause: Long) {
+    this.pause = pause
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+
+/**
+ * Management interface of {@link RequestRateLimiter}.
+ */
+trait RequestRateLimiterMBean {
+  def getBucketCount: Int
+  def getRejectedReadCount: Long
+  def getRejectedWriteCount: Long
+  def getTransactionLatencyMillis: Double
+  def isDegraded: Boolean
+  def reset()
+}
+
+/**
+ * Limits the rate of storage requests per user, so that a single client
+ * cannot saturate the server. Reading (GET and HEAD) and writing requests
+ * are limited separately, each by a token bucket with the configured rate
+ * and burst size. The buckets are only charged after the user has been
+ * authenticated, so that requests with wrong credentials cannot use up the
+ * budget of another user.
+ *
+ * <p>In addition, the mean time the recent database transactions of requests
+ * needed to begin (including the wait for a connection) and to commit is
+ * tracked. If it exceeds a threshold, the server is considered degraded and
+ * all clients are asked to back off.</p>
+ *
+ * <p>The limiter does not use any locks: each bucket is a single atomic
+ * value and the buckets are held in a concurrent map.</p>
+ */
+class RequestRateLimiter extends RequestRateLimiterMBean {
+
+  /**
+   * Number of reading requests per second and user. If set to 0, reading
+   * requests are not limited.
+   */
+  protected var readRate: Double = 10
+
+  /**
+   * Number of reading requests a user may send at once.
+   */
+  protected var readBurst: Int = 100
+
+  /**
+   * Number of writing requests per second and user. If set to 0, writing
+   * requests are not limited.
+   */
+  protected var writeRate: Double = 5
+
+  /**
+   * Number of writing requests a user may send at once.
+   */
+  protected var writeBurst: Int = 100
+
+  /**
+   * Number of buckets above which idle buckets are removed.
+   */
+  protected var maxBuckets: Int = 10000
+
+  /**
+   * Mean transaction duration in milliseconds above which the server is
+   * considered degraded. If set to 0, the degraded mode is disabled.
+   */
+  protected var latencyThreshold: Long = 2000
+
+  /**
+   * Time in seconds clients are asked to back off while the server is
+   * degraded.
+   */
+  protected var degradedBackoff: Int = 60
+
+  /**
+   * Weight of the latest transaction in the mean transaction duration.
+   */
+  private val LatencyWeight = 0.05
+
+  private val readBuckets = new ConcurrentHashMap[String, AtomicLong]
+  private val writeBuckets = new ConcurrentHashMap[String, AtomicLong]
+  private val sweeping = new AtomicBoolean
+  private val rejectedReads = new AtomicLong
+  private val rejectedWrites = new AtomicLong
+  // Bits of the mean transaction duration in nanoseconds (a double)
+  private val transactionLatency = new AtomicLong(java.lang.Double.doubleToLongBits(0))
+
+  /**
+   * Takes a token from the bucket of a user.
+   *
+   * @param username name of the user the request is sent for
+   * @param write <code>true</code> for a writing request
+   * @return 0 if the request may be processed, otherwise the time in
+   *    seconds after which the client should retry the request
+   */
+  def acquire(username: String, write: Boolean): Int = {
+    val rate = if (write) writeRate else readRate
+    if (rate <= 0) {
+      return 0
+    }
+    val buckets = if (write) writeBuckets else readBuckets
+    val key = username.toLowerCase
+    var bucket = buckets.get(key)
+    if (bucket == null) {
+      val now = System.nanoTime
+      val created = new AtomicLong(now)
+      bucket = buckets.putIfAbsent(key, created)
+      if (bucket == null) {
+        bucket = created
+        if (buckets.size > maxBuckets) {
+          removeIdleBuckets(buckets, now)
+        }
+      }
+    }
+    // Generic cell rate algorithm: the bucket holds the time at which it
+    // will be full again. Each request moves this time by one interval. A
+    // request is rejected if this would move the time further into the
+    // future than the burst size allows.
+    val interval = (1000000000L / rate).toLong
+    val capacity = interval * (if (write) writeBurst else readBurst)
+    while (true) {
+      val now = System.nanoTime
+      val fullTime = bucket.get
+      val nextFullTime = math.max(fullTime, now) + interval
+      if (nextFullTime - now > capacity) {
+        if (write) rejectedWrites.incrementAndGet() else rejectedReads.incrementAndGet()
+        val waitNanos = nextFullTime - now - capacity
+        return math.max(1, ((waitNanos + 999999999L) / 1000000000L).toInt)
+      }
+      if (bucket.compareAndSet(fullTime, nextFullTime)) {
+        return 0
+      }
+    }
+    0
+  }
+
+  /**
+   * Removes buckets that are full again. A full bucket behaves like a new
+   * one, so removing it does not change the limits. Only one thread sweeps
+   * the buckets at a time.
+   */
+  private def removeIdleBuckets(buckets: ConcurrentHashMap[String, AtomicLong], now: Long) {
+    if (!sweeping.compareAndSet(false, true)) {
+      return
+    }
+    try {
+      val iterator = buckets.entrySet.iterator
+      while (iterator.hasNext) {
+        if (iterator.next.getValue.get - now <= 0) {
+          iterator.remove()
+        }
+      }
+    } finally {
+      sweeping.set(false)
+    }
+  }
+
+  /**
+   * Records the time a database transaction needed to begin and to commit.
+   * The time spent within the transaction is not included, because it
+   * depends on the amount of data processed by the request.
+   *
+   * @param durationNanos duration in nanoseconds
+   */
+  def recordTransaction(durationNanos: Long) {
+    while (true) {
+      val bits = transactionLatency.get
+      val mean = java.lang.Double.longBitsToDouble(bits)
+      val updated = mean + LatencyWeight * (durationNanos - mean)
+      if (transactionLatency.compareAndSet(bits, java.lang.Double.doubleToLongBits(updated))) {
+        return
+      }
+    }
+  }
+
+  /**
+   * Tells whether the server is degraded, because the database transactions
+   * take longer than the configured threshold.
+   *
+   * @return <code>true</code> if clients should back off
+   */
+  def isDegraded: Boolean = latencyThreshold > 0 && getTransactionLatencyMillis > latencyThreshold
+
+  /**
+   * Returns the time clients are asked to back off while the server is
+   * degraded.
+   *
+   * @return time in seconds
+   */
+  def getDegradedBackoff: Int = degradedBackoff
+
+  /**
+   * Returns the number of buckets currently held, one for each user and
+   * kind of request.
+   *
+   * @return number of buckets
+   */
+  def getBucketCount: Int = readBuckets.size + writeBuckets.size
+
+  /**
+   * Returns the number of reading requests rejected because a user has
+   * exceeded the rate limit.
+   *
+   * @return number of requests
+   */
+  def getRejectedReadCount: Long = rejectedReads.get
+
+  /**
+   * Returns the number of writing requests rejected because a user has
+   * exceeded the rate limit.
+   *
+   * @return number of requests
+   */
+  def getRejectedWriteCount: Long = rejectedWrites.get
+
+  /**
+   * Returns the mean duration of the recent database transactions.
+   *
+   * @return mean duration in milliseconds
+   */
+  def getTransactionLatencyMillis: Double = java.lang.Double.longBitsToDouble(transactionLatency.get) / 1000000.0
+
+  /**
+   * Resets the counters and the buckets of all users.
+   */
+  def reset() {
+    readBuckets.clear()
+    writeBuckets.clear()
+    rejectedReads.set(0)
+    rejectedWrites.set(0)
+  }
+
+  /**
+   * Sets the number of reading requests per second and user.
+   *
+   * @param readRate number of requests per second, 0 disables the limit
+   */
+  def setReadRate(readRate: Double) {
+    this.readRate = readRate
+  }
+
+  /**
+   * Sets the number of reading requests a user may send at once.
+   *
+   * @param readBurst number of requests
+   */
+  def setReadBurst(readBurst: Int) {
+    this.readBurst = readBurst
+  }
+
+  /**
+   * Sets the number of writing requests per second and user.
+   *
+   * @param writeRate number of requests per second, 0 disables the limit
+   */
+  def setWriteRate(writeRate: Double) {
+    this.writeRate = writeRate
+  }
+
+  /**
+   * Sets the number of writing requests a user may send at once.
+   *
+   * @param writeBurst number of requests
+   */
+  def setWriteBurst(writeBurst: Int) {
+    this.writeBurst = writeBurst
+  }
+
+  /**
+   * Sets the number of buckets above which idle buckets are removed.
+   *
+   * @param maxBuckets number of buckets per kind of request
+   */
+  def setMaxBuckets(maxBuckets: Int) {
+    this.maxBuckets = maxBuckets
+  }
+
+  /**
+   * Sets the mean transaction duration above which the server is considered
+   * degraded.
+   *
+   * @param latencyThreshold duration in milliseconds, 0 disables the
+   *    degraded mode
+   */
+  def setLatencyThreshold(latencyThreshold: Long) {
+    this.latencyThreshold = latencyThreshold
+  }
+
+  /**
+   * Sets the time clients are asked to back off while the server is
+   * degraded.
+   *
+   * @param degradedBackoff time in seconds
+   */
+  def setDegradedBackoff(degradedBackoff: Int) {
+    this.degradedBackoff = degradedBackoff
+  }
+}
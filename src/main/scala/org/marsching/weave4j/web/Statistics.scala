@@ -0,0 +1,132 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Management interface of {@link Statistics}.
+ */
+trait StatisticsMBean {
+  def getName: String
+  def getCount: Long
+  def getErrorCount: Long
+  def getBytes: Long
+  def getMeanMillis: Double
+  def getP50Millis: Double
+  def getP99Millis: Double
+  def getMaxMillis: Double
+  def reset()
+}
+
+/**
+ * Statistics for one kind of operation (e.g. requests for one endpoint or
+ * calls of one DAO method): the number of operations, the number of failed
+ * operations, the number of bytes transferred and the distribution of the
+ * durations.
+ *
+ * @param name name of the operation
+ */
+class Statistics(name: String) extends StatisticsMBean {
+
+  private val latency = new LatencyHistogram
+  private val errors = new AtomicLong
+  private val bytes = new AtomicLong
+
+  /**
+   * Records an operation.
+   *
+   * @param durationNanos duration of the operation in nanoseconds
+   * @param byteCount number of bytes transferred by the operation
+   * @param failed <code>true</code> if the operation failed
+   */
+  def record(durationNanos: Long, byteCount: Long, failed: Boolean) {
+    latency.record(durationNanos / 1000)
+    if (byteCount > 0) {
+      bytes.addAndGet(byteCount)
+    }
+    if (failed) {
+      errors.incrementAndGet()
+    }
+  }
+
+  /**
+   * Returns the name of the operation.
+   *
+   * @return name
+   */
+  def getName: String = name
+
+  /**
+   * Returns the number of recorded operations.
+   *
+   * @return number of operations
+   */
+  def getCount: Long = latency.getCount
+
+  /**
+   * Returns the number of failed operations.
+   *
+   * @return number of failed operations
+   */
+  def getErrorCount: Long = errors.get
+
+  /**
+   * Returns the number of bytes transferred by all operations.
+   *
+   * @return number of bytes
+   */
+  def getBytes: Long = bytes.get
+
+  /**
+   * Returns the mean duration.
+   *
+   * @return mean duration in milliseconds
+   */
+  def getMeanMillis: Double = latency.getMean / 1000.0
+
+  /**
+   * Returns the median of the durations.
+   *
+   * @return estimated median in milliseconds
+   */
+  def getP50Millis: Double = latency.getPercentile(50) / 1000.0
+
+  /**
+   * Returns the 99th percentile of the durations.
+   *
+   * @return estimated 99th percentile in milliseconds
+   */
+  def getP99Millis: Double = latency.getPercentile(99) / 1000.0
+
+  /**
+   * Returns the longest duration.
+   *
+   * @return maximum duration in milliseconds
+   */
+  def getMaxMillis: Double = latency.getMax / 1000.0
+
+  /**
+   * Removes all recorded operations.
+   */
+  def reset() {
+    latency.reset()
+    errors.set(0)
+    bytes.set(0)
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.{Semaphore, TimeUnit}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+/**
+ * Management interface of {@link StorageRequestQueue}.
+ */
+trait StorageRequestQueueMBean {
+  def getActiveRequests: Int
+  def getQueueLength: Int
+  def getAdmittedCount: Long
+  def getRejectedCount: Long
+  def getTimedOutCount: Long
+  def getMeanWaitMillis: Double
+  def getP99WaitMillis: Double
+  def getMaxWaitMillis: Double
+  def reset()
+}
+
+/**
+ * Limits the number of storage requests that access the database
+ * concurrently. Requests exceeding the limit wait in a queue of limited
+ * length for a limited time. If the queue is full or the time has elapsed,
+ * the request is rejected, so that the client can be asked to retry later
+ * instead of occupying a thread of the servlet container while the database
+ * is overloaded. Requests that do not access the storage (e.g. the user
+ * API) are not limited, so they are still answered when the database is
+ * busy.
+ */
+class StorageRequestQueue extends StorageRequestQueueMBean {
+
+  /**
+   * Maximum number of storage requests processed concurrently. This should
+   * not exceed the size of the database connection pool. If set to 0 (the
+   * default), the number of requests is not limited.
+   */
+  protected var maxConcurrentRequests: Int = 0
+
+  /**
+   * Maximum number of requests waiting to be processed.
+   */
+  protected var maxQueueLength: Int = 100
+
+  /**
+   * Maximum time in milliseconds a request waits to be processed.
+   */
+  protected var maxWaitTime: Long = 10000
+
+  /**
+   * Time in seconds after which a client should retry a rejected request.
+   */
+  protected var retryAfter: Int = 30
+
+  private var permits: Semaphore = null
+  private val active = new AtomicInteger
+  private val waiting = new AtomicInteger
+  private val admitted = new AtomicLong
+  private val rejected = new AtomicLong
+  private val timedOut = new AtomicLong
+  private val waitTime = new LatencyHistogram
+
+  /**
+   * Creates the queue. This method is called by the Spring container after
+   * all properties have been set.
+   */
+  def init() {
+    permits = if (maxConcurrentRequests > 0) new Semaphore(maxConcurrentRequests, true) else null
+  }
+
+  /**
+   * Waits until a request may be processed. If this method returns
+   * <code>true</code>, {@link #leave} has to be called after the request
+   * has been processed.
+   *
+   * @return <code>true</code> if the request may be processed,
+   *    <code>false</code> if it has been rejected
+   */
+  def enter(): Boolean = {
+    if (permits == null) {
+      active.incrementAndGet()
+      admitted.incrementAndGet()
+      return true
+    }
+    val acquired = if (acquireImmediately()) {
+      waitTime.record(0)
+      true
+    } else if (waiting.incrementAndGet() > maxQueueLength) {
+      waiting.decrementAndGet()
+      rejected.incrementAndGet()
+      false
+    } else {
+      val startTime = System.nanoTime
+      try {
+        val acquiredInTime = permits.tryAcquire(maxWaitTime, TimeUnit.MILLISECONDS)
+        waitTime.record((System.nanoTime - startTime) / 1000)
+        if (!acquiredInTime) {
+          timedOut.incrementAndGet()
+        }
+        acquiredInTime
+      } catch {
+        case e: InterruptedException => {
+          Thread.currentThread.interrupt()
+          rejected.incrementAndGet()
+          false
+        }
+      } finally {
+        waiting.decrementAndGet()
+      }
+    }
+    if (acquired) {
+      active.incrementAndGet()
+      admitted.incrementAndGet()
+    }
+    acquired
+  }
+
+  /**
+   * Takes a permit if one is available and no other request is waiting for
+   * one. Unlike <code>tryAcquire()</code>, a timed <code>tryAcquire</code>
+   * respects the fairness of the semaphore, so a new request does not
+   * overtake the requests in the queue.
+   */
+  private def acquireImmediately(): Boolean = {
+    try {
+      permits.tryAcquire(0, TimeUnit.MILLISECONDS)
+    } catch {
+      case e: InterruptedException => {
+        Thread.currentThread.interrupt()
+        false
+      }
+    }
+  }
+
+  /**
+   * Signals that a request admitted by {@link #enter} has been processed.
+   */
+  def leave() {
+    active.decrementAndGet()
+    if (permits != null) {
+      permits.release()
+    }
+  }
+
+  /**
+   * Returns the time after which a client should retry a rejected request.
+   *
+   * @return time in seconds
+   */
+  def getRetryAfter: Int = retryAfter
+
+  /**
+   * Returns the number of requests currently being processed.
+   *
+   * @return number of requests
+   */
+  def getActiveRequests: Int = active.get
+
+  /**
+   * Returns the number of requests currently waiting to be processed.
+   *
+   * @return number of requests
+   */
+  def getQueueLength: Int = waiting.get
+
+  /**
+   * Returns the number of requests that have been processed.
+   *
+   * @return number of requests
+   */
+  def getAdmittedCount: Long = admitted.get
+
+  /**
+   * Returns the number of requests rejected because the queue was full.
+   *
+   * @return number of requests
+   */
+  def getRejectedCount: Long = rejected.get
+
+  /**
+   * Returns the number of requests rejected because they have waited too
+   * long.
+   *
+   * @return number of requests
+   */
+  def getTimedOutCount: Long = timedOut.get
+
+  /**
+   * Returns the mean time requests have waited to be processed.
+   *
+   * @return mean wait time in milliseconds
+   */
+  def getMeanWaitMillis: Double = waitTime.getMean / 1000.0
+
+  /**
+   * Returns the 99th percentile of the time requests have waited to be
+   * processed.
+   *
+   * @return estimated 99th percentile in milliseconds
+   */
+  def getP99WaitMillis: Double = waitTime.getPercentile(99) / 1000.0
+
+  /**
+   * Returns the longest time a request has waited to be processed.
+   *
+   * @return maximum wait time in milliseconds
+   */
+  def getMaxWaitMillis: Double = waitTime.getMax / 1000.0
+
+  /**
+   * Resets the counters and the wait times.
+   */
+  def reset() {
+    admitted.set(0)
+    rejected.set(0)
+    timedOut.set(0)
+    waitTime.reset()
+  }
+
+  /**
+   * Sets the maximum number of storage requests processed concurrently.
+   *
+   * @param maxConcurrentRequests maximum number of requests, 0 disables
+   *    the limit
+   */
+  def setMaxConcurrentRequests(maxConcurrentRequests: Int) {
+    this.maxConcurrentRequests = maxConcurrentRequests
+  }
+
+  /**
+   * Sets the maximum number of requests waiting to be processed.
+   *
+   * @param maxQueueLength maximum number of requests
+   */
+  def setMaxQueueLength(maxQueueLength: Int) {
+    this.maxQueueLength = maxQueueLength
+  }
+
+  /**
+   * Sets the maximum time a request waits to be processed.
+   *
+   * @param maxWaitTime time in milliseconds
+   */
+  def setMaxWaitTime(maxWaitTime: Long) {
+    this.maxWaitTime = maxWaitTime
+  }
+
+  /**
+   * Sets the time after which a client should retry a rejected request.
+   *
+   * @param retryAfter time in seconds
+   */
+  def setRetryAfter(retryAfter: Int) {
+    this.retryAfter = retryAfter
+  }
+}
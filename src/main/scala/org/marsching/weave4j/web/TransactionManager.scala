@@ -20,6 +20,8 @@ package org.marsching.weave4j.web
 import org.springframework.transaction.PlatformTransactionManager
 import org.springframework.transaction.support.DefaultTransactionDefinition
 import org.springframework.transaction.TransactionDefinition
+import org.springframework.core.Constants
+import scala.util.control.ControlThrowable
 
 /**
  * Wrapper around a {@link PlatformTransactionManager}.
@@ -30,6 +32,37 @@ class TransactionManager {
    */
   protected var platformTransactionManager: PlatformTransactionManager = null
 
+  /**
+   * Isolation level used for read/write transactions.
+   */
+  protected var readWriteIsolationLevel: Int = TransactionDefinition.ISOLATION_SERIALIZABLE
+
+  /**
+   * Isolation level used for read-only transactions.
+   */
+  protected var readOnlyIsolationLevel: Int = TransactionDefinition.ISOLATION_SERIALIZABLE
+
+  /**
+   * Metrics the durations of transactions are recorded in (optional).
+   */
+  protected var metrics: Metrics = null
+
+  /**
+   * Rate limiter that is informed of the duration of transactions, so that
+   * it can detect an overloaded database (optional). This should only be
+   * set for the transaction manager used by requests: the transactions of
+   * background tasks process large chunks and are expected to be slow.
+   */
+  protected var rateLimiter: RequestRateLimiter = null
+
+  /**
+   * Locks serializing the transactions of a user (optional). Without these
+   * locks, read/write transactions need the serializable isolation level.
+   */
+  protected var userLocks: UserLockManager = null
+
+  private val isolationLevelConstants = new Constants(classOf[TransactionDefinition])
+
   /**
    * Sets the Spring platform transaction manager, used to manager transactions.
    *
@@ -40,7 +73,66 @@ class TransactionManager {
   }
 
   /**
-   * Performs an action within a database transaction.
+   * Sets the metrics the durations of transactions are recorded in.
+   *
+   * @param metrics metrics
+   */
+  def setMetrics(metrics: Metrics) {
+    this.metrics = metrics
+  }
+
+  /**
+   * Sets the rate limiter that is informed of the duration of transactions.
+   *
+   * @param rateLimiter rate limiter
+   */
+  def setRateLimiter(rateLimiter: RequestRateLimiter) {
+    this.rateLimiter = rateLimiter
+  }
+
+  /**
+   * Sets the locks serializing the transactions of a user.
+   *
+   * @param userLocks user locks
+   */
+  def setUserLocks(userLocks: UserLockManager) {
+    this.userLocks = userLocks
+  }
+
+  /**
+   * Sets the isolation level used for read/write transactions.
+   *
+   * @param readWriteIsolationLevel name of an isolation level constant of
+   *    {@link TransactionDefinition}, e.g. <code>ISOLATION_SERIALIZABLE</code>
+   */
+  def setReadWriteIsolationLevel(readWriteIsolationLevel: String) {
+    this.readWriteIsolationLevel = isolationLevelConstants.asNumber(readWriteIsolationLevel).intValue
+  }
+
+  /**
+   * Sets the isolation level used for read-only transactions. Databases
+   * using multi-version concurrency control can run read-only transactions
+   * at a weaker isolation level without blocking writing transactions.
+   *
+   * @param readOnlyIsolationLevel name of an isolation level constant of
+   *    {@link TransactionDefinition}, e.g. <code>ISOLATION_READ_COMMITTED</code>
+   */
+  def setReadOnlyIsolationLevel(readOnlyIsolationLevel: String) {
+    this.readOnlyIsolationLevel = isolationLevelConstants.asNumber(readOnlyIsolationLevel).intValue
+  }
+
+  /**
+   * Performs an action within a database transaction. If the action throws
+   * an exception, the transaction is rolled back and the exception is passed
+   * on. Callers that want to handle an exception have to catch it outside of
+   * the transaction: after a failed database operation, the session must not
+   * be used any longer.
+   *
+   * <p>If a transaction is already active in the current thread, the action
+   * is performed within this transaction (propagation REQUIRED), so that
+   * methods using transactions can be combined. In this case, the isolation
+   * level and read-only flag of the outer transaction apply, and the
+   * transaction is committed or rolled back by the outermost call only.</p>
    *
    * @param readOnly if set to <code>true</code>, a read-only transaction will be started
    * @param f action to perform within transaction
@@ -48,18 +140,91 @@ class TransactionManager {
    */
   protected def withTransaction[T](readOnly: Boolean)(f: => T): T = {
     val transactionDefinition = new DefaultTransactionDefinition()
-    transactionDefinition.setPropagationBehavior(TransactionDefinition.PROPAGATION_NEVER)
-    transactionDefinition.setIsolationLevel(TransactionDefinition.ISOLATION_SERIALIZABLE)
+    transactionDefinition.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRED)
+    transactionDefinition.setIsolationLevel(if (readOnly) readOnlyIsolationLevel else readWriteIsolationLevel)
     transactionDefinition.setReadOnly(readOnly)
-    val transactionStatus = platformTransactionManager.getTransaction(transactionDefinition)
+    if (metrics == null && rateLimiter == null) {
+      val transactionStatus = platformTransactionManager.getTransaction(transactionDefinition)
+      try {
+        val result: T = f
+        platformTransactionManager.commit(transactionStatus)
+        return result
+      } finally {
+        if (!transactionStatus.isCompleted()) {
+          platformTransactionManager.rollback(transactionStatus)
+        }
+      }
+    }
+
+    // The time needed to begin the transaction includes the time spent
+    // waiting for a database connection.
+    val phasePrefix = if (readOnly) "read-only " else "read-write "
+    val startTime = System.nanoTime
+    val transactionStatus = try {
+      platformTransactionManager.getTransaction(transactionDefinition)
+    } catch {
+      case e: Throwable => {
+        recordPhase(phasePrefix + "begin", System.nanoTime - startTime, true)
+        throw e
+      }
+    }
+    // A call joining an outer transaction neither begins nor commits a
+    // transaction, so only the outermost call is measured.
+    val newTransaction = transactionStatus.isNewTransaction
+    val beginDuration = System.nanoTime - startTime
+    if (newTransaction) {
+      recordPhase(phasePrefix + "begin", beginDuration, false)
+    }
+    var commitDuration = 0L
+    // Returning from the calling method within f is not a failure, even
+    // though the transaction is rolled back in this case.
+    var failed = false
     try {
       val result: T = f
-      platformTransactionManager.commit(transactionStatus)
+      val commitStartTime = System.nanoTime
+      try {
+        platformTransactionManager.commit(transactionStatus)
+      } catch {
+        case e: Throwable => {
+          commitDuration = System.nanoTime - commitStartTime
+          if (newTransaction) {
+            recordPhase(phasePrefix + "commit", commitDuration, true)
+          }
+          throw e
+        }
+      }
+      commitDuration = System.nanoTime - commitStartTime
+      if (newTransaction) {
+        recordPhase(phasePrefix + "commit", commitDuration, false)
+      }
       return result
+    } catch {
+      case e: ControlThrowable => throw e
+      case e: Throwable => {
+        failed = true
+        throw e
+      }
     } finally {
       if (!transactionStatus.isCompleted()) {
         platformTransactionManager.rollback(transactionStatus)
       }
+      if (newTransaction) {
+        recordPhase(phasePrefix + "total", System.nanoTime - startTime, failed)
+        // The rate limiter only gets the time spent in the database for
+        // beginning and committing the transaction. The total duration
+        // also contains the time spent by the request itself (e.g. for
+        // parsing a large upload), which does not indicate an overloaded
+        // database.
+        if (rateLimiter != null) {
+          rateLimiter.recordTransaction(beginDuration + commitDuration)
+        }
+      }
+    }
+  }
+
+  private def recordPhase(phase: String, durationNanos: Long, failed: Boolean) {
+    if (metrics != null) {
+      metrics.recordTransaction(phase, durationNanos, failed)
     }
   }
 
@@ -83,4 +248,56 @@ class TransactionManager {
     withTransaction(true)(f)
   }
 
+  /**
+   * Performs an action within a read/write database transaction modifying
+   * the data of a single user. Other transactions for the same user wait
+   * until this transaction has finished.
+   *
+   * @param username name of the user whose data is modified
+   * @param f action to perform within transaction
+   * @return result of <code>f</code>
+   */
+  def withUserReadWriteTransaction[T](username: String)(f: => T): T = {
+    withUserWriteLock(username) {
+      withTransaction(false)(f)
+    }
+  }
+
+  /**
+   * Performs an action within a read-only database transaction reading the
+   * data of a single user. Read/write transactions for the same user wait
+   * until this transaction has finished.
+   *
+   * @param username name of the user whose data is read
+   * @param f action to perform within transaction
+   * @return result of <code>f</code>
+   */
+  def withUserReadOnlyTransaction[T](username: String)(f: => T): T = {
+    if (userLocks == null) {
+      withTransaction(true)(f)
+    } else {
+      userLocks.withReadLock(username) {
+        withTransaction(true)(f)
+      }
+    }
+  }
+
+  /**
+   * Performs an action while holding the lock of a user exclusively. This
+   * is used for writes that are executed in a transaction started elsewhere
+   * (e.g. by the group committer). The lock has to be acquired before the
+   * transaction is started.
+   *
+   * @param username name of the user whose data is modified
+   * @param f action to perform
+   * @return result of <code>f</code>
+   */
+  def withUserWriteLock[T](username: String)(f: => T): T = {
+    if (userLocks == null) {
+      f
+    } else {
+      userLocks.withWriteLock(username)(f)
+    }
+  }
+
 }
@@ -0,0 +1,156 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.{Lock, ReentrantReadWriteLock}
+
+/**
+ * Exception thrown by {@link UserLockManager} when the lock of a user could
+ * not be acquired in time.
+ *
+ * @param username name of the user
+ * @param retryAfter time in seconds after which the client should retry
+ */
+class UserLockTimeoutException(username: String, val retryAfter: Int) extends RuntimeException("Timed out waiting for the lock of user " + username)
+
+/**
+ * Read/write locks serializing the requests of a user. Requests that only
+ * read the data of a user share a lock, requests that modify it hold the
+ * lock exclusively. Requests of different users do not block each other,
+ * so the database can use a weaker isolation level than serializable.
+ *
+ * <p>Instead of one lock per user, a fixed number of locks is used and the
+ * users are distributed over these locks by the hash code of their name.
+ * Two users sharing a lock only wait for each other, which does not cause
+ * any errors. A thread must not hold the locks of two users at a time,
+ * because this could lead to a deadlock.</p>
+ *
+ * <p>A request waits at most <code>maxWaitTime</code> milliseconds for a
+ * lock, so that a slow request cannot block the other requests of its user
+ * (and of the users sharing its lock) indefinitely.</p>
+ */
+class UserLockManager {
+
+  /**
+   * Number of locks the users are distributed over. Rounded up to a power
+   * of two.
+   */
+  protected var stripes: Int = 64
+
+  /**
+   * Maximum time in milliseconds a request waits for the lock of a user.
+   */
+  protected var maxWaitTime: Long = 10000
+
+  /**
+   * Time in seconds after which a client should retry a request that timed
+   * out waiting for a lock.
+   */
+  protected var retryAfter: Int = 30
+
+  private var locks: Array[ReentrantReadWriteLock] = null
+
+  /**
+   * Creates the locks. This method is called by the Spring container after
+   * all properties have been set.
+   */
+  def init() {
+    var count = 1
+    while (count < stripes) {
+      count <<= 1
+    }
+    locks = Array.fill(count)(new ReentrantReadWriteLock)
+  }
+
+  private def lockFor(username: String): ReentrantReadWriteLock = {
+    // Usernames are case-insensitive.
+    val hash = username.toLowerCase.hashCode
+    locks((hash ^ (hash >>> 16)) & (locks.length - 1))
+  }
+
+  /**
+   * Performs an action while holding the lock of a user shared with other
+   * reading requests.
+   *
+   * @param username name of the user whose data is read
+   * @param f action to perform
+   * @return result of <code>f</code>
+   */
+  def withReadLock[T](username: String)(f: => T): T = {
+    withLock(username, lockFor(username).readLock)(f)
+  }
+
+  /**
+   * Performs an action while holding the lock of a user exclusively.
+   *
+   * @param username name of the user whose data is modified
+   * @param f action to perform
+   * @return result of <code>f</code>
+   */
+  def withWriteLock[T](username: String)(f: => T): T = {
+    withLock(username, lockFor(username).writeLock)(f)
+  }
+
+  private def withLock[T](username: String, lock: Lock)(f: => T): T = {
+    val acquired = try {
+      lock.tryLock(maxWaitTime, TimeUnit.MILLISECONDS)
+    } catch {
+      case e: InterruptedException => {
+        Thread.currentThread.interrupt()
+        false
+      }
+    }
+    if (!acquired) {
+      throw new UserLockTimeoutException(username, retryAfter)
+    }
+    try {
+      f
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  /**
+   * Sets the number of locks the users are distributed over.
+   *
+   * @param stripes number of locks
+   */
+  def setStripes(stripes: Int) {
+    this.stripes = stripes
+  }
+
+  /**
+   * Sets the maximum time a request waits for the lock of a user.
+   *
+   * @param maxWaitTime time in milliseconds
+   */
+  def setMaxWaitTime(maxWaitTime: Long) {
+    this.maxWaitTime = maxWaitTime
+  }
+
+  /**
+   * Sets the time after which a client should retry a request that timed
+   * out waiting for a lock.
+   *
+   * @param retryAfter time in seconds
+   */
+  def setRetryAfter(retryAfter: Int) {
+    this.retryAfter = retryAfter
+  }
+}
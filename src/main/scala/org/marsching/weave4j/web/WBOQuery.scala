@@ -0,0 +1,233 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import javax.servlet.http.HttpServletRequest
+import org.marsching.weave4j.dbo.WBOCursor
+import org.marsching.weave4j.dbo.WeaveStorageDAO.SortOrder
+
+/**
+ * Parameters selecting WBOs of a collection, as sent by a client in the
+ * query string of a GET or DELETE request. Parameters that are not present
+ * in the request are <code>null</code>.
+ */
+class WBOQuery {
+
+  private var ids: java.util.List[String] = null
+  private var predecessorId: String = null
+  private var parentId: String = null
+  private var modifiedBefore: java.lang.Long = null
+  private var modifiedSince: java.lang.Long = null
+  private var indexAbove: java.lang.Integer = null
+  private var indexBelow: java.lang.Integer = null
+  private var limit: java.lang.Integer = null
+  private var offset: java.lang.Integer = null
+  private var after: WBOCursor = null
+  private var sortOrder: SortOrder = null
+  private var full = false
+
+  /**
+   * Returns the identifiers of the selected WBOs (<code>ids</code>).
+   *
+   * @return list of identifiers
+   */
+  def getIds: java.util.List[String] = ids
+
+  /**
+   * Returns the predecessor identifier of the selected WBOs
+   * (<code>predecessorid</code>).
+   *
+   * @return predecessor identifier
+   */
+  def getPredecessorId: String = predecessorId
+
+  /**
+   * Returns the parent identifier of the selected WBOs
+   * (<code>parentid</code>).
+   *
+   * @return parent identifier
+   */
+  def getParentId: String = parentId
+
+  /**
+   * Returns the timestamp the selected WBOs have been modified before
+   * (<code>older</code>).
+   *
+   * @return timestamp in centiseconds
+   */
+  def getModifiedBefore: java.lang.Long = modifiedBefore
+
+  /**
+   * Returns the timestamp the selected WBOs have been modified since
+   * (<code>newer</code>).
+   *
+   * @return timestamp in centiseconds
+   */
+  def getModifiedSince: java.lang.Long = modifiedSince
+
+  /**
+   * Returns the sort index the sort indexes of the selected WBOs are
+   * greater than (<code>index_above</code>).
+   *
+   * @return sort index
+   */
+  def getIndexAbove: java.lang.Integer = indexAbove
+
+  /**
+   * Returns the sort index the sort indexes of the selected WBOs are
+   * less than (<code>index_below</code>).
+   *
+   * @return sort index
+   */
+  def getIndexBelow: java.lang.Integer = indexBelow
+
+  /**
+   * Returns the maximum number of selected WBOs (<code>limit</code>).
+   *
+   * @return maximum number of WBOs
+   */
+  def getLimit: java.lang.Integer = limit
+
+  /**
+   * Returns the number of WBOs to skip (<code>offset</code>), if the offset
+   * is a number.
+   *
+   * @return number of WBOs to skip
+   */
+  def getOffset: java.lang.Integer = offset
+
+  /**
+   * Returns the position to continue at (<code>offset</code>), if the
+   * offset is a cursor returned for the previous page.
+   *
+   * @return cursor
+   */
+  def getAfter: WBOCursor = after
+
+  /**
+   * Returns the order of the selected WBOs (<code>sort</code>).
+   *
+   * @return sort order
+   */
+  def getSortOrder: SortOrder = sortOrder
+
+  /**
+   * Tells whether the full WBOs or only their identifiers are requested
+   * (<code>full</code>).
+   *
+   * @return <code>true</code> if the full WBOs are requested
+   */
+  def isFull: Boolean = full
+
+  /**
+   * Tells whether the query restricts the WBOs that are deleted by a DELETE
+   * request. If it does not, the whole collection is deleted.
+   *
+   * @return <code>true</code> if only some WBOs are selected
+   */
+  def isRestricted: Boolean =
+    ids != null || parentId != null || modifiedBefore != null || modifiedSince != null || limit != null || offset != null || after != null
+}
+
+object WBOQuery {
+
+  /**
+   * Parses the query parameters of a request.
+   *
+   * @param request HTTP request
+   * @return parsed query or <code>null</code> if a parameter is not valid
+   */
+  def parse(request: HttpServletRequest): WBOQuery = {
+    val query = new WBOQuery
+    try {
+      val ids = request.getParameter("ids")
+      if (ids != null) {
+        query.ids = splitIds(ids)
+      }
+      query.predecessorId = request.getParameter("predecessorid")
+      query.parentId = request.getParameter("parentid")
+      query.modifiedBefore = parseTimestamp(request.getParameter("older"))
+      query.modifiedSince = parseTimestamp(request.getParameter("newer"))
+      query.indexAbove = parseInt(request.getParameter("index_above"))
+      query.indexBelow = parseInt(request.getParameter("index_below"))
+      query.limit = parseInt(request.getParameter("limit"))
+      query.full = request.getParameter("full") != null
+      query.sortOrder = request.getParameter("sort") match {
+        case "oldest" => SortOrder.OLDEST
+        case "newest" => SortOrder.NEWEST
+        case "index" => SortOrder.INDEX
+        case _ => null
+      }
+      // The offset is either a number of WBOs to skip or a cursor returned
+      // in the X-Weave-Next-Offset header of the previous page. A cursor is
+      // only valid for the sort order it has been created for.
+      val offset = request.getParameter("offset")
+      if (WBOCursor.isToken(offset)) {
+        query.after = WBOCursor.decode(offset)
+        if (query.after.getSortOrder != query.sortOrder) {
+          return null
+        }
+      } else {
+        query.offset = parseInt(offset)
+      }
+    } catch {
+      // Also thrown for invalid cursors
+      case e: IllegalArgumentException => return null
+    }
+    query
+  }
+
+  /**
+   * Splits a comma-separated list of identifiers. Surrounding whitespace
+   * is removed and empty identifiers are skipped.
+   */
+  private def splitIds(value: String): java.util.List[String] = {
+    val ids = new java.util.ArrayList[String]
+    var start = 0
+    while (start <= value.length) {
+      var end = value.indexOf(',', start)
+      if (end < 0) {
+        end = value.length
+      }
+      val id = value.substring(start, end).trim
+      if (id.length > 0) {
+        ids.add(id)
+      }
+      start = end + 1
+    }
+    ids
+  }
+
+  private def parseTimestamp(value: String): java.lang.Long = {
+    if (value == null) {
+      null
+    } else {
+      // Both "older" and "newer" are compared as "modified < x" or
+      // "modified >= x", so they are rounded up.
+      WeaveTimestamps.parse(value, true)
+    }
+  }
+
+  private def parseInt(value: String): java.lang.Integer = {
+    if (value == null) {
+      null
+    } else {
+      java.lang.Integer.valueOf(java.lang.Integer.parseInt(value))
+    }
+  }
+}
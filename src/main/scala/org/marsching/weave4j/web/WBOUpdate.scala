@@ -0,0 +1,177 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import org.codehaus.jackson.{JsonParser, JsonToken}
+import org.marsching.weave4j.dbo.WeaveBasicObject
+
+/**
+ * Fields of a WBO as sent by a client in a POST or PUT request. Only the
+ * fields present in the request are changed when the update is applied to
+ * a WBO, so that a client can update single fields of an existing WBO.
+ */
+class WBOUpdate {
+
+  private var id: String = null
+  private var parentId: String = null
+  private var hasParentId = false
+  private var predecessorId: String = null
+  private var hasPredecessorId = false
+  private var sortIndex: java.lang.Integer = null
+  private var hasSortIndex = false
+  private var payload: String = null
+  private var ttl: java.lang.Long = null
+  private var valid = true
+
+  /**
+   * Returns the identifier of the WBO.
+   *
+   * @return identifier or <code>null</code> if the client did not send an
+   *    identifier
+   */
+  def getId: String = id
+
+  /**
+   * Tells whether all fields sent by the client have a valid type.
+   *
+   * @return <code>true</code> if the WBO is valid
+   */
+  def isValid: Boolean = valid
+
+  /**
+   * Applies the fields sent by the client to a WBO. The identifier of the
+   * WBO is not changed.
+   *
+   * @param wbo Weave Basic Object to update
+   * @param timestamp time of the modification in centiseconds
+   * @param timestampSeconds time of the modification in whole seconds, used
+   *    to compute the expiry time from the time to live
+   */
+  def applyTo(wbo: WeaveBasicObject, timestamp: Long, timestampSeconds: Long) {
+    if (hasParentId) {
+      wbo.setParentId(parentId)
+    }
+    if (hasPredecessorId) {
+      wbo.setPredecessorId(predecessorId)
+    }
+    if (hasSortIndex) {
+      wbo.setSortIndex(sortIndex)
+    }
+    if (payload != null) {
+      wbo.setPayload(payload)
+    }
+    if (ttl != null) {
+      // A time to live that would overflow never expires.
+      val expiry = if (ttl.longValue > Long.MaxValue - timestampSeconds) Long.MaxValue else ttl.longValue + timestampSeconds
+      wbo.setTtl(expiry)
+    }
+    wbo.setModified(timestamp)
+  }
+}
+
+object WBOUpdate {
+
+  /**
+   * Reads a WBO from a JSON parser. The parser has to be positioned at the
+   * start of the JSON object and is positioned at its end afterwards.
+   * Unknown fields are skipped. If a field has an invalid type, the
+   * returned update is marked as invalid, but the rest of the object is
+   * read nevertheless, so that the identifier can be reported to the
+   * client.
+   *
+   * @param parser JSON parser
+   * @param includeTtl read the time to live (only supported by version 1.1
+   *    of the protocol)
+   * @return update read from the parser
+   */
+  def read(parser: JsonParser, includeTtl: Boolean): WBOUpdate = {
+    val update = new WBOUpdate
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      val name = parser.getCurrentName
+      val token = parser.nextToken()
+      name match {
+        case "id" => {
+          if (token == JsonToken.VALUE_STRING) {
+            update.id = parser.getText
+          } else {
+            update.valid = false
+          }
+        }
+        case "parentid" => {
+          update.hasParentId = true
+          update.parentId = readNullableString(parser, update)
+        }
+        case "predecessorid" => {
+          update.hasPredecessorId = true
+          update.predecessorId = readNullableString(parser, update)
+        }
+        case "sortindex" => {
+          update.hasSortIndex = true
+          if (token == JsonToken.VALUE_NUMBER_INT) {
+            update.sortIndex = parser.getNumberValue.intValue
+          } else if (token == JsonToken.VALUE_NULL) {
+            update.sortIndex = null
+          } else {
+            update.valid = false
+          }
+        }
+        case "payload" => {
+          // A payload of null leaves the payload unchanged.
+          if (token == JsonToken.VALUE_STRING) {
+            update.payload = parser.getText
+          } else if (token != JsonToken.VALUE_NULL) {
+            update.valid = false
+          }
+        }
+        case "ttl" if includeTtl => {
+          if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+            val ttl = if (token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType != JsonParser.NumberType.BIG_INTEGER) {
+              parser.getLongValue
+            } else {
+              val value = parser.getBigIntegerValue
+              if (value.bitLength < 64) value.longValue else if (value.signum < 0) -1L else Long.MaxValue
+            }
+            if (ttl < 0) {
+              update.valid = false
+            } else {
+              update.ttl = ttl
+            }
+          } else {
+            update.valid = false
+          }
+        }
+        case _ =>
+      }
+      // Skips the value of unknown fields and invalid values that are
+      // objects or arrays.
+      parser.skipChildren()
+    }
+    update
+  }
+
+  private def readNullableString(parser: JsonParser, update: WBOUpdate): String = {
+    parser.getCurrentToken match {
+      case JsonToken.VALUE_STRING => parser.getText
+      case JsonToken.VALUE_NULL => null
+      case _ => {
+        update.valid = false
+        null
+      }
+    }
+  }
+}
@@ -27,6 +27,7 @@ import javax.servlet.http.HttpServletResponse
 object WeaveErrors {
 
   private val HeaderWeaveAlert = "X-Weave-Alert";
+  private val HeaderWeaveBackoff = "X-Weave-Backoff"
 
   /**
    * Notifies the client that a "bad protocol" type error occurred.
@@ -112,6 +113,16 @@ object WeaveErrors {
     errorWeaveBadRequest(response, 11);
   }
 
+  /**
+   * Notifies the client that the request exceeds a size limit of the server (e.g. too many WBOs have been sent
+   * within a single request).
+   *
+   * @param response HTTP response
+   */
+  def errorSizeLimitExceeded(response: HttpServletResponse) {
+    errorWeaveBadRequest(response, 17)
+  }
+
   /**
    * Notifies the client that the requested protocol version is not supported by the server.
    *
@@ -131,6 +142,7 @@ object WeaveErrors {
   protected def errorWeaveBadRequest(response: HttpServletResponse, weaveErrorCode: Int) {
     response.setContentType("application/json")
     response.setStatus(HttpServletResponse.SC_BAD_REQUEST)
+    MeteredResponse.recordWeaveErrorCode(response, weaveErrorCode)
     // We do not use println here because Firefox Sync obviously cannot handle
     // a response with white-space correctly.
     response.getWriter.print(weaveErrorCode)
@@ -155,6 +167,18 @@ object WeaveErrors {
     response.setStatus(HttpServletResponse.SC_NOT_FOUND)
   }
 
+  /**
+   * Notifies the client that the server is overloaded and that it should retry the request later.
+   *
+   * @param response HTTP response
+   * @param retryAfter time in seconds after which the client should retry the request
+   */
+  def errorServiceUnavailable(response: HttpServletResponse, retryAfter: Int) {
+    response.addHeader("Retry-After", retryAfter.toString)
+    response.addHeader(HeaderWeaveBackoff, retryAfter.toString)
+    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+  }
+
   /**
    * Notifies the client that a precondition for this request has not been satisfied.
    *
@@ -21,11 +21,12 @@ import javax.servlet.http.{HttpServletRequest, HttpServletResponse}
 import org.apache.commons.codec.binary.Base64
 import org.codehaus.jackson.map.JsonMappingException
 import org.codehaus.jackson.node.{ArrayNode, ObjectNode, TextNode}
-import org.codehaus.jackson.{JsonNode, JsonParseException, JsonProcessingException}
+import org.codehaus.jackson.{JsonNode, JsonParseException, JsonParser, JsonProcessingException, JsonToken}
 import org.hibernate.HibernateException
 import org.marsching.weave4j.dbo.WeaveStorageDAO.SortOrder
-import org.marsching.weave4j.dbo.{WeaveBasicObject, WeaveStorageDAO, WeaveUser, WeaveUserDAO}
+import org.marsching.weave4j.dbo.{WBOCursor, WeaveBasicObject, WeaveCollection, WeaveStorageDAO, WeaveUser, WeaveUserDAO}
 import org.slf4j.LoggerFactory
+import org.springframework.dao.DataAccessException
 import org.springframework.transaction.support.DefaultTransactionDefinition
 import org.springframework.transaction.{PlatformTransactionManager, TransactionDefinition}
 import org.springframework.web.HttpRequestHandler
@@ -53,11 +54,41 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
    */
   protected val HeaderIfUnmodifiedSince = "X-If-Unmodified-Since"
 
+  /**
+   * Weave request header for modified since precondition.
+   */
+  protected val HeaderIfModifiedSince = "X-If-Modified-Since"
+
+  /**
+   * HTTP request header for entity tag precondition.
+   */
+  protected val HeaderIfNoneMatch = "If-None-Match"
+
+  /**
+   * HTTP response header for entity tag.
+   */
+  protected val HeaderETag = "ETag"
+
+  /**
+   * Weave response header for the last modification of the requested data.
+   */
+  protected val HeaderLastModified = "X-Last-Modified"
+
   /**
    * Weave request header for confirm delete precondition.
    */
   protected val HeaderConfirmDelete = "X-Confirm-Delete"
 
+  /**
+   * Weave response header for the offset of the next page of a collection.
+   */
+  protected val HeaderNextOffset = "X-Weave-Next-Offset"
+
+  /**
+   * Weave response header asking the client to pause for some seconds.
+   */
+  protected val HeaderBackoff = "X-Weave-Backoff"
+
   /**
    * DAO for accessing user objects.
    */
@@ -83,6 +114,81 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
    */
   protected var captchaSettings: CaptchaSettings = null
 
+  /**
+   * Cache for verified credentials.
+   */
+  protected var credentialCache: CredentialCache = null
+
+  /**
+   * Maximum number of WBOs returned for a single collection request. If set
+   * to 0, the number of WBOs is not limited.
+   */
+  protected var maxPageSize: Int = 0
+
+  /**
+   * Metrics the requests are recorded in (optional).
+   */
+  protected var metrics: Metrics = null
+
+  /**
+   * Compress response bodies if the client accepts it.
+   */
+  protected var compressResponses: Boolean = true
+
+  /**
+   * Minimum size of a response body in bytes for it to be compressed.
+   */
+  protected var compressionThreshold: Int = 1024
+
+  /**
+   * Compression level (1-9 or -1 for the default level).
+   */
+  protected var compressionLevel: Int = java.util.zip.Deflater.DEFAULT_COMPRESSION
+
+  /**
+   * Maximum number of WBOs in a single POST request. If set to 0, the
+   * number of WBOs is not limited.
+   */
+  protected var maxPostObjects: Int = 0
+
+  /**
+   * Maximum size of the body of a POST or PUT request in bytes (after
+   * decompression). If set to 0, the size is not limited.
+   */
+  protected var maxPostBytes: Long = 0
+
+  /**
+   * Maximum size of a compressed request body in bytes after
+   * decompression. Unlike maxPostBytes, this limit is always enforced for
+   * compressed bodies, because their size is not known before they have
+   * been decompressed.
+   */
+  protected var maxDecompressedBytes: Long = 16L * 1024L * 1024L
+
+  /**
+   * Number of WBOs from a POST request that are stored together.
+   */
+  protected var postChunkSize: Int = 100
+
+  /**
+   * Queue limiting the number of storage requests processed concurrently.
+   * If not set, the number of requests is not limited.
+   */
+  protected var requestQueue: StorageRequestQueue = null
+
+  /**
+   * Limiter for the rate of storage requests per user. If not set, the rate
+   * is not limited.
+   */
+  protected var rateLimiter: RequestRateLimiter = null
+
+  /**
+   * Executes the writes of PUT requests, if group commit is enabled in
+   * common transactions with the writes of concurrent requests. If not set,
+   * each write is executed in its own transaction.
+   */
+  protected var groupCommitter: GroupCommitter = null
+
   /**
    * Logger for this class.
    */
@@ -98,6 +204,13 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
   }
   import ProtocolVersion._
 
+  /**
+   * Pattern for the path of a request, matching the name of the API (empty
+   * for the storage API), the protocol version and the rest of the path.
+   * The patterns are compiled once, not for every request.
+   */
+  private val RequestPathMatcher = "^(?:/([^/]+))?/(\\d+(?:\\.\\d+)?)(/.+)$".r
+
   /**
    * Main entry method for request handling.
    *
@@ -105,21 +218,144 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
    * @param response HTTP response
    */
   override def handleRequest(request: HttpServletRequest, response: HttpServletResponse) {
-    val timestamp = WeaveTimestamps.currentTime
-    response.addHeader(HeaderTimestamp, timestamp.bigDecimal.toPlainString);
+    val startTime = System.nanoTime
+    val contentEncoding = request.getHeader("Content-Encoding")
+    val decompressingRequest =
+      if (!DecompressingRequest.isIdentity(contentEncoding) && DecompressingRequest.isSupported(contentEncoding))
+        new DecompressingRequest(request, contentEncoding, maxDecompressedBytes)
+      else
+        null
+    val responseEncoding = if (compressResponses) CompressingResponse.selectEncoding(request.getHeader("Accept-Encoding")) else null
+    val compressingResponse =
+      if (responseEncoding != null)
+        new CompressingResponse(response, responseEncoding, compressionThreshold, compressionLevel)
+      else
+        null
+    val wrappedRequest = if (decompressingRequest != null) decompressingRequest else request
+    val wrappedResponse = if (compressingResponse != null) compressingResponse else response
+    val meteredResponse = if (metrics != null) new MeteredResponse(wrappedResponse) else null
+    var failed = true
+    try {
+      val outerResponse = if (meteredResponse != null) meteredResponse else wrappedResponse
+      if (!DecompressingRequest.isIdentity(contentEncoding) && decompressingRequest == null) {
+        outerResponse.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE)
+      } else {
+        try {
+          handleWeaveRequest(wrappedRequest, outerResponse)
+        } catch {
+          case e: java.util.zip.ZipException if decompressingRequest != null => WeaveErrors.errorBadProtocol(outerResponse)
+          case e: java.io.EOFException if decompressingRequest != null => WeaveErrors.errorBadProtocol(outerResponse)
+          case e: SizeLimitExceededException if decompressingRequest != null => WeaveErrors.errorSizeLimitExceeded(outerResponse)
+        }
+      }
+      if (meteredResponse != null) {
+        meteredResponse.finish()
+      }
+      if (compressingResponse != null) {
+        compressingResponse.finish()
+      }
+      failed = false
+    } finally {
+      if (decompressingRequest != null) {
+        decompressingRequest.release()
+      }
+      if (compressingResponse != null) {
+        compressingResponse.release()
+      }
+      if (metrics != null) {
+        val status = if (failed) HttpServletResponse.SC_INTERNAL_SERVER_ERROR else meteredResponse.getStatus
+        metrics.recordRequest(getEndpoint(request), request.getMethod, System.nanoTime - startTime, meteredResponse.getByteCount, status, meteredResponse.getWeaveErrorCode)
+        if (decompressingRequest != null) {
+          metrics.recordCompressedRequest(decompressingRequest.getCompressedByteCount, decompressingRequest.getUncompressedByteCount)
+        }
+        if (compressingResponse != null && compressingResponse.isCompressed) {
+          metrics.recordCompressedResponse(compressingResponse.getCompressedByteCount, compressingResponse.getUncompressedByteCount)
+        }
+      }
+    }
+  }
 
+  /**
+   * Returns the part of the API a request is sent to: "info" or "storage"
+   * for the storage API, "user" or "misc" for the other APIs or "other" if
+   * the path does not match any API.
+   *
+   * @param request HTTP request
+   * @return name of the endpoint
+   */
+  protected def getEndpoint(request: HttpServletRequest): String = {
+    val path = if (request.getPathInfo == null) request.getServletPath else request.getServletPath + request.getPathInfo
+    val segments = path.split("/")
+    // The path has the form /user/<version>/..., /misc/<version>/... or
+    // /<version>/<username>/<command>/... for the storage API.
+    if (segments.length > 1 && (segments(1) == "user" || segments(1) == "misc")) {
+      segments(1)
+    } else if (segments.length > 3 && (segments(3) == "info" || segments(3) == "storage")) {
+      segments(3)
+    } else {
+      "other"
+    }
+  }
+
+  /**
+   * Handles a request. The request and the response passed to this method
+   * take care of compression and of recording the metrics.
+   *
+   * @param request HTTP request
+   * @param response HTTP response
+   */
+  protected def handleWeaveRequest(request: HttpServletRequest, response: HttpServletResponse) {
     val pathInfo =
       if (request.getPathInfo == null)
         request.getServletPath
       else
         request.getServletPath + request.getPathInfo
+    // Only requests to the storage API are rate limited and wait in the
+    // request queue, so that the other APIs stay responsive while the
+    // database is busy.
+    val storagePath = pathInfo match {
+      case RequestPathMatcher(null, _, path) => path
+      case _ => null
+    }
+    // The rate limit of the user is checked by the storage request handler
+    // after the user has been authenticated.
+    if (storagePath != null && rateLimiter != null && rateLimiter.isDegraded) {
+      response.addHeader(HeaderBackoff, rateLimiter.getDegradedBackoff.toString)
+    }
+    val queued = requestQueue != null && storagePath != null
+    if (queued && !requestQueue.enter()) {
+      response.addHeader(HeaderTimestamp, WeaveTimestamps.format(WeaveTimestamps.currentTime))
+      WeaveErrors.errorServiceUnavailable(response, requestQueue.getRetryAfter)
+      return
+    }
+    try {
+      dispatchWeaveRequest(request, response, pathInfo)
+    } finally {
+      if (queued) {
+        requestQueue.leave()
+      }
+    }
+  }
+
+  /**
+   * Passes a request to the handler of the API it has been sent to. The
+   * timestamp of the request is taken here, after the request has left the
+   * request queue, so that it is not older than the data the request sees.
+   *
+   * @param request HTTP request
+   * @param response HTTP response
+   * @param pathInfo path of the request
+   */
+  private def dispatchWeaveRequest(request: HttpServletRequest, response: HttpServletResponse, pathInfo: String) {
+    val timestamp = WeaveTimestamps.currentTime
+    response.addHeader(HeaderTimestamp, WeaveTimestamps.format(timestamp));
+
     // Handle URL used by Firefox for password reset
     if (pathInfo == "/weave-password-reset") {
       response.sendRedirect(request.getContextPath + "/ui/resetPassword")
     }
-    val PathMatcher = "^(?:/([^/]+))?/(\\d+(?:\\.\\d+)?)(/.+)$".r
     try {
-      val PathMatcher(apiName, version, command) = pathInfo
+      val RequestPathMatcher(apiName, version, command) = pathInfo
       val protocolVersion = {
         if (version == "1" || version == "1.0") {
           ProtocolVersion_1_0
@@ -144,6 +380,10 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
       case e: AbortRequestHandlingException => {
         // Do nothing, this exception is only used to be able to end request processing at any place 
       }
+      case e: UserLockTimeoutException => {
+        logger.debug(e.getMessage)
+        WeaveErrors.errorServiceUnavailable(response, e.retryAfter)
+      }
     }
   }
 
@@ -167,13 +407,21 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
   protected def tryLoginUser(request: HttpServletRequest, response: HttpServletResponse, pathUsername: String): WeaveUser = {
     AuthenticationHelper.extractAuthenticationInfo(request) match {
       case Some((username, password)) => {
-        val user =
-          transactionManager.withReadOnlyTransaction {
-            userDAO.findUser(username);
+        val cachedUser = credentialCache.get(username, password)
+        val user = if (cachedUser != null) {
+          cachedUser
+        } else {
+          val cacheGeneration = credentialCache.getGeneration
+          val user =
+            transactionManager.withReadOnlyTransaction {
+              userDAO.findUser(username);
+            }
+          if (user == null || !PasswordHelper.validatePasswordSSHA(password, user.getPassword())) {
+            WeaveErrors.errorHttpUnauthorized(response)
+            throw new AbortRequestHandlingException
           }
-        if (user == null || !PasswordHelper.validatePasswordSSHA(password, user.getPassword())) {
-          WeaveErrors.errorHttpUnauthorized(response)
-          throw new AbortRequestHandlingException
+          credentialCache.put(username, password, user, cacheGeneration)
+          user
         }
         if (!username.equalsIgnoreCase(pathUsername)) {
           WeaveErrors.errorUserIdDoesNotMatchAccountInPath(response)
@@ -266,442 +514,615 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
     this.captchaSettings = captchaSettings
   }
 
+  /**
+   * Sets the cache used to avoid verifying the same credentials again for
+   * every request.
+   *
+   * @param credentialCache cache for verified credentials
+   */
+  def setCredentialCache(credentialCache: CredentialCache) {
+    this.credentialCache = credentialCache
+  }
+
+  /**
+   * Sets the maximum number of WBOs returned for a single collection
+   * request. If a request selects more WBOs, only the first page is
+   * returned and the offset of the next page is sent in the
+   * X-Weave-Next-Offset header.
+   *
+   * @param maxPageSize maximum number of WBOs, 0 disables the limit
+   */
+  def setMaxPageSize(maxPageSize: Int) {
+    this.maxPageSize = maxPageSize
+  }
+
+  /**
+   * Sets the metrics the requests are recorded in. For each request, the
+   * duration, the size of the response, the status code and the Weave error
+   * code are recorded.
+   *
+   * @param metrics metrics
+   */
+  def setMetrics(metrics: Metrics) {
+    this.metrics = metrics
+  }
+
+  /**
+   * Enables or disables the compression of response bodies. Bodies are only
+   * compressed if the client accepts a compressed body.
+   *
+   * @param compressResponses if <code>true</code>, response bodies are
+   *    compressed
+   */
+  def setCompressResponses(compressResponses: Boolean) {
+    this.compressResponses = compressResponses
+  }
+
+  /**
+   * Sets the minimum size of a response body for it to be compressed.
+   *
+   * @param compressionThreshold size in bytes
+   */
+  def setCompressionThreshold(compressionThreshold: Int) {
+    this.compressionThreshold = compressionThreshold
+  }
+
+  /**
+   * Sets the compression level used for response bodies.
+   *
+   * @param compressionLevel level between 1 (fastest) and 9 (best
+   *    compression) or -1 for the default level
+   */
+  def setCompressionLevel(compressionLevel: Int) {
+    this.compressionLevel = compressionLevel
+  }
+
+  /**
+   * Sets the maximum number of WBOs in a single POST request. If a request
+   * contains more WBOs, none of the WBOs is stored and Weave error 17 (size
+   * limit exceeded) is sent to the client.
+   *
+   * @param maxPostObjects maximum number of WBOs, 0 disables the limit
+   */
+  def setMaxPostObjects(maxPostObjects: Int) {
+    this.maxPostObjects = maxPostObjects
+  }
+
+  /**
+   * Sets the maximum size of the body of a POST or PUT request. The limit
+   * applies to the body after decompression. If a body is larger, the
+   * request is rejected with Weave error 17 (size limit exceeded).
+   *
+   * @param maxPostBytes size in bytes, 0 disables the limit
+   */
+  def setMaxPostBytes(maxPostBytes: Long) {
+    this.maxPostBytes = maxPostBytes
+  }
+
+  /**
+   * Sets the maximum size of a compressed request body after decompression.
+   * If a body is larger, the request is rejected with Weave error 17 (size
+   * limit exceeded). The limit cannot be disabled.
+   *
+   * @param maxDecompressedBytes size in bytes
+   */
+  def setMaxDecompressedBytes(maxDecompressedBytes: Long) {
+    if (maxDecompressedBytes <= 0) {
+      throw new IllegalArgumentException("maxDecompressedBytes must be greater than 0")
+    }
+    this.maxDecompressedBytes = maxDecompressedBytes
+  }
+
+  /**
+   * Sets the number of WBOs from a POST request that are stored together.
+   * The WBOs of a request are stored in chunks of this size, and each chunk
+   * is detached from the session after it has been stored, so that the
+   * session does not grow with the size of the request.
+   *
+   * @param postChunkSize number of WBOs
+   */
+  def setPostChunkSize(postChunkSize: Int) {
+    this.postChunkSize = postChunkSize
+  }
+
+  /**
+   * Sets the queue limiting the number of storage requests processed
+   * concurrently.
+   *
+   * @param requestQueue request queue
+   */
+  def setRequestQueue(requestQueue: StorageRequestQueue) {
+    this.requestQueue = requestQueue
+  }
+
+  /**
+   * Sets the limiter for the rate of storage requests per user.
+   *
+   * @param rateLimiter rate limiter
+   */
+  def setRateLimiter(rateLimiter: RequestRateLimiter) {
+    this.rateLimiter = rateLimiter
+  }
+
+  /**
+   * Sets the group committer executing the writes of PUT requests.
+   *
+   * @param groupCommitter group committer
+   */
+  def setGroupCommitter(groupCommitter: GroupCommitter) {
+    this.groupCommitter = groupCommitter
+  }
+
   /**
    * Handles storage HTTP requests.
    */
   private object StorageRequestHandler {
 
-    def handleRequest(request: HttpServletRequest, response: HttpServletResponse, path: String, timestamp: BigDecimal, version: ProtocolVersion) {
-      val PathMatcher = "^/([^/]+)/([^/]+)(?:/(.*))?$".r
+    /**
+     * Pattern for the path of a storage request, matching the username, the
+     * command ("info" or "storage") and the rest of the path.
+     */
+    private val PathMatcher = "^/([^/]+)/([^/]+)(?:/(.*))?$".r
+
+    /**
+     * Pattern for the path of a storage command, matching the collection
+     * and the WBO identifier.
+     */
+    private val CollectionPathMatcher = "^([^/]+)?(?:/(.*))?$".r
+
+    def handleRequest(request: HttpServletRequest, response: HttpServletResponse, path: String, timestamp: Long, version: ProtocolVersion) {
       try {
         val PathMatcher(username, command, commandInfo) = path;
+        // The user is authenticated before the lock of the user is
+        // acquired, so that unauthenticated requests cannot block the
+        // requests of a user. For the same reason, only authenticated
+        // requests are charged to the rate limit of the user.
+        val user = tryLoginUser(request, response, username)
+        if (rateLimiter != null) {
+          val method = request.getMethod
+          val retryAfter = rateLimiter.acquire(user.getUsername, method != "GET" && method != "HEAD")
+          if (retryAfter > 0) {
+            WeaveErrors.errorServiceUnavailable(response, retryAfter)
+            return
+          }
+        }
         command match {
-          case "info" => handleInfoCommand(request, response, username, commandInfo, timestamp, version)
-          case "storage" => handleStorageCommand(request, response, username, commandInfo, timestamp, version)
+          case "info" => handleInfoCommand(request, response, user, commandInfo, timestamp, version)
+          case "storage" => handleStorageCommand(request, response, user, commandInfo, timestamp, version)
         }
       } catch {
         case e: MatchError => WeaveErrors.errorBadProtocol(response)
       }
     }
 
-    def handleInfoCommand(request: HttpServletRequest, response: HttpServletResponse, username: String, path: String, timestamp: BigDecimal, version: ProtocolVersion) {
-      transactionManager.withReadOnlyTransaction {
-        val timestampInt = timestamp.toBigInt.bigInteger
-        val user = tryLoginUser(request, response, username)
-        if (request.getMethod() != "GET") {
-          WeaveErrors.errorBadProtocol(response)
-          return
-        }
+    def handleInfoCommand(request: HttpServletRequest, response: HttpServletResponse, user: WeaveUser, path: String, timestamp: Long, version: ProtocolVersion) {
+      if (request.getMethod() != "GET") {
+        WeaveErrors.errorBadProtocol(response)
+        return
+      }
+      // The collections provide both the data of the response and the
+      // timestamp of the last modification, so no other query is needed.
+      // The response is written after the transaction has finished.
+      val (collections, storageModified) = transactionManager.withUserReadOnlyTransaction(user.getUsername) {
+        (storageDAO.getCollections(user), storageDAO.getStorageModified(user))
+      }
+      val lastModified = collections.foldLeft(storageModified) {
+        (lastModified, collection) => math.max(lastModified, collectionLastModified(collection))
+      }
+      if (handleConditionalRequest(request, response, lastModified)) {
+        return
+      }
 
-        path match {
-          case "collections" => {
-            val collections = user.getCollections()
-            val map = JSONHelper.createJSONObjectNode
-            for (collection <- user.getCollections()) {
-              val typeName = collection.getType()
-              val lastModified = storageDAO.getLastModified(user, typeName, timestampInt)
-              map.put(typeName, lastModified)
-            }
-            JSONHelper.writeJSON(request, response, map)
+      path match {
+        case "collections" => {
+          val map = JSONHelper.createJSONObjectNode
+          for (collection <- collections) {
+            map.put(collection.getType, WeaveTimestamps.toSeconds(collectionLastModified(collection)))
           }
+          JSONHelper.writeJSON(request, response, map)
+        }
 
-          case "collection_usage" => {
-            if (version != ProtocolVersion_1_1) {
-              WeaveErrors.errorBadProtocol(response)
-            }
-            val collections = user.getCollections()
-            val map = JSONHelper.createJSONObjectNode
-            for (collection <- user.getCollections()) {
-              val typeName = collection.getType()
-              val size = storageDAO.getCollectionSize(user, typeName, timestampInt)
-              map.put(typeName, size)
-            }
-            JSONHelper.writeJSON(request, response, map)
+        case "collection_usage" => {
+          if (version != ProtocolVersion_1_1) {
+            WeaveErrors.errorBadProtocol(response)
           }
-
-          case "collection_counts" => {
-            val collections = user.getCollections()
-            val map = JSONHelper.createJSONObjectNode
-            for (collection <- user.getCollections()) {
-              val typeName = collection.getType()
-              val count = storageDAO.getWBOCount(user, typeName, timestampInt)
-              map.put(typeName, count)
-            }
-            JSONHelper.writeJSON(request, response, map)
+          val map = JSONHelper.createJSONObjectNode
+          for (collection <- collections) {
+            map.put(collection.getType, collectionPayloadSize(collection) / 1024L)
           }
+          JSONHelper.writeJSON(request, response, map)
+        }
 
-          case "quota" => {
-            val size = storageDAO.getTotalSize(user, timestampInt)
-            val array = JSONHelper.createJSONArrayNode
-            array.add(size)
-            // We do not have support for quotas yet.
-            array.add(NullNode.instance)
-            JSONHelper.writeJSON(request, response, array)
+        case "collection_counts" => {
+          val map = JSONHelper.createJSONObjectNode
+          for (collection <- collections) {
+            map.put(collection.getType, collectionWboCount(collection))
           }
+          JSONHelper.writeJSON(request, response, map)
+        }
+
+        case "quota" => {
+          val size = collections.foldLeft(0L)(_ + collectionPayloadSize(_)) / 1024L
+          val array = JSONHelper.createJSONArrayNode
+          array.add(size)
+          // We do not have support for quotas yet.
+          array.add(NullNode.instance)
+          JSONHelper.writeJSON(request, response, array)
         }
       }
     }
 
-    def handleStorageCommand(request: HttpServletRequest, response: HttpServletResponse, username: String, path: String, timestamp: BigDecimal, version: ProtocolVersion) {
-      val PathMatcher = "^([^/]+)?(?:/(.*))?$".r
-      val PathMatcher(collectionName, wboId) = path
-      val timestampInt = timestamp.toBigInt.bigInteger
+    // The metadata of collections created by an earlier version is null
+    // until it has been recomputed at startup.
+    private def collectionLastModified(collection: WeaveCollection): Long = {
+      if (collection.getLastModified == null) 0L else collection.getLastModified.longValue
+    }
+
+    private def collectionPayloadSize(collection: WeaveCollection): Long = {
+      if (collection.getPayloadSize == null) 0L else collection.getPayloadSize.longValue
+    }
+
+    private def collectionWboCount(collection: WeaveCollection): Int = {
+      if (collection.getWboCount == null) 0 else collection.getWboCount.intValue
+    }
+
+    def handleStorageCommand(request: HttpServletRequest, response: HttpServletResponse, user: WeaveUser, path: String, timestamp: Long, version: ProtocolVersion) {
+      val CollectionPathMatcher(collectionName, wboId) = path
+      val timestampSeconds = timestamp / 100
       val headerIfUnmodifiedSince = request.getHeader(HeaderIfUnmodifiedSince)
-      val ifUnmodifiedSince =
+      val ifUnmodifiedSince: java.lang.Long = try {
         if (headerIfUnmodifiedSince != null)
-          BigDecimal(headerIfUnmodifiedSince)
+          WeaveTimestamps.parse(headerIfUnmodifiedSince, false)
         else
           null
+      } catch {
+        case e: NumberFormatException => {
+          WeaveErrors.errorBadProtocol(response)
+          return
+        }
+      }
 
       request.getMethod() match {
         case "GET" => {
+          // The WBOs are written to the response while the transaction is
+          // open, so the lock of the user is not acquired: otherwise, the
+          // writing requests of the user would wait for the client. Reading
+          // does not modify any data, and every query sees committed data
+          // only.
           transactionManager.withReadOnlyTransaction {
-            val user = tryLoginUser(request, response, username)
-
             val includeTtl = version == ProtocolVersion_1_1
             if (collectionName == null) {
               WeaveErrors.errorBadProtocol(response)
               return
             }
+            if (handleConditionalRequest(request, response, storageDAO.getStorageLastModified(user, collectionName))) {
+              return
+            }
             if (wboId == null) {
-              val ids = {
-                val param = request.getParameter("ids")
-                if (param == null)
-                  null
-                else
-                  param.split(",").map((s: String) => s.trim).filter((s: String) => s.length > 0)
+              val query = WBOQuery.parse(request)
+              if (query == null) {
+                WeaveErrors.errorBadProtocol(response)
+                return
               }
-              val predecessorId = request.getParameter("predecessorid")
-              val parentId = request.getParameter("parentid")
-              val modifiedBefore = {
-                val param = request.getParameter("older")
-                if (param != null) {
-                  BigDecimal(param)
+              val limit: java.lang.Integer = {
+                val param = query.getLimit
+                if (maxPageSize > 0 && (param == null || param.intValue > maxPageSize)) {
+                  maxPageSize
                 } else {
-                  null
+                  param
                 }
               }
-              val modifiedSince = {
-                val param = request.getParameter("newer")
-                if (param != null) {
-                  BigDecimal(param)
+              val sortOrder = query.getSortOrder
+
+              // If the number of WBOs is limited, one more WBO is selected
+              // in order to find out whether there is another page. The
+              // header for the next page has to be set before the first
+              // WBO is written to the response.
+              val queryLimit: java.lang.Integer = if (limit == null) null else limit.intValue + 1
+              val listWriter = JSONHelper.createListWriter(request, response)
+              val wboCount = if (query.isFull && limit == null) {
+                // The WBOs are written to the response while they are read
+                // from the database, so that large collections do not have
+                // to be held in memory.
+                storageDAO.scrollWBOsFromCollection(user, collectionName, query.getIds, query.getPredecessorId, query.getParentId, query.getModifiedBefore, query.getModifiedSince, query.getIndexAbove, query.getIndexBelow, null, query.getOffset, query.getAfter, sortOrder, timestampSeconds, new WeaveStorageDAO.WBOCallback {
+                  override def processWBO(wbo: WeaveBasicObject) {
+                    listWriter.write(wbo, includeTtl, timestampSeconds)
+                  }
+                })
+              } else if (query.isFull) {
+                val wbos = storageDAO.getWBOsFromCollection(user, collectionName, query.getIds, query.getPredecessorId, query.getParentId, query.getModifiedBefore, query.getModifiedSince, query.getIndexAbove, query.getIndexBelow, queryLimit, query.getOffset, query.getAfter, sortOrder, timestampSeconds)
+                val page = if (wbos.size > limit.intValue) {
+                  val page = wbos.subList(0, limit.intValue)
+                  response.setHeader(HeaderNextOffset, WBOCursor.after(sortOrder, page.get(page.size - 1)).encode)
+                  page
                 } else {
-                  null
-                }
-              }
-              val full = (request.getParameter("full") != null)
-
-              def getIntParameter(paramName: String): java.lang.Integer = {
-                val param = request.getParameter(paramName)
-                if (param != null)
-                  param.toInt
-                else
-                  null
-              }
-
-              val indexAbove = getIntParameter("index_above")
-              val indexBelow = getIntParameter("index_below")
-              val limit = getIntParameter("limit")
-              val offset = getIntParameter("offset")
-
-              val sortOrder: SortOrder = {
-                val param = request.getParameter("sort")
-                param match {
-                  case "oldest" => SortOrder.OLDEST
-                  case "newest" => SortOrder.NEWEST
-                  case "index" => SortOrder.INDEX
-                  case _ => null
+                  wbos
                 }
-              }
-
-              val idsList = {
-                if (ids == null) {
-                  null
-                } else {
-                  java.util.Arrays.asList(ids: _*)
+                for (wbo: WeaveBasicObject <- page) {
+                  listWriter.write(wbo, includeTtl, timestampSeconds)
                 }
-              }
-              val modifiedSinceBigDecimal = {
-                if (modifiedSince == null) {
-                  null
+                page.size
+              } else {
+                // Only the identifiers are needed, so the WBOs (and in
+                // particular their payloads) are not loaded.
+                val wboIds = storageDAO.getWBOIdsFromCollection(user, collectionName, query.getIds, query.getPredecessorId, query.getParentId, query.getModifiedBefore, query.getModifiedSince, query.getIndexAbove, query.getIndexBelow, queryLimit, query.getOffset, query.getAfter, sortOrder, timestampSeconds)
+                val page = if (limit != null && wboIds.size > limit.intValue) {
+                  val page = wboIds.subList(0, limit.intValue)
+                  val cursor = storageDAO.getCursor(user, collectionName, page.get(page.size - 1), sortOrder)
+                  if (cursor != null) {
+                    response.setHeader(HeaderNextOffset, cursor.encode)
+                  }
+                  page
                 } else {
-                  modifiedSince.bigDecimal
+                  wboIds
                 }
-              }
-              val modifiedBeforeBigDecimal = {
-                if (modifiedBefore == null) {
-                  null
-                } else {
-                  modifiedBefore.bigDecimal
+                for (id: String <- page) {
+                  listWriter.write(id)
                 }
+                page.size
               }
-
-              val wbos = storageDAO.getWBOsFromCollection(user, collectionName, idsList, predecessorId, parentId, modifiedBeforeBigDecimal, modifiedSinceBigDecimal, indexAbove, indexBelow, limit, offset, sortOrder, timestampInt)
-              if (wbos.size() == 0) {
+              if (wboCount == 0) {
                 WeaveErrors.errorHttpNotFound(response)
                 return
               }
-              val array = JSONHelper.createJSONArrayNode
-              for (wbo: WeaveBasicObject <- wbos) {
-                if (full) {
-                  array.add(JSONHelper.weaveBasicObjectToJSON(wbo, includeTtl, timestamp))
-                } else {
-                  array.add(wbo.getId())
-                }
-              }
-              JSONHelper.writeJSON(request, response, array)
+              listWriter.close()
             } else {
-              val wbo = storageDAO.getWBO(user, collectionName, wboId, timestampInt)
+              val wbo = storageDAO.getWBO(user, collectionName, wboId, timestampSeconds)
               if (wbo == null) {
                 WeaveErrors.errorHttpNotFound(response)
               } else {
-                JSONHelper.writeJSON(request, response, JSONHelper.weaveBasicObjectToJSON(wbo, includeTtl, timestamp))
+                JSONHelper.writeJSON(request, response, wbo, includeTtl, timestampSeconds)
               }
             }
           }
         }
 
         case "DELETE" => {
-          transactionManager.withReadWriteTransaction {
-            val user = tryLoginUser(request, response, username)
-
-            // Clean-up expired WBOs
-            storageDAO.cleanUpExpiredWBOs(timestampInt)
-
+          transactionManager.withUserReadWriteTransaction(user.getUsername) {
             if (collectionName == null && wboId == null) {
               if (request.getHeader(HeaderConfirmDelete) == null) {
                 WeaveErrors.errorHttpPreConditionFailed(response)
                 return
               }
-              storageDAO.deleteAllCollections(user)
-              JSONHelper.writeJSON(request, response, timestamp)
+              storageDAO.deleteAllCollections(user, timestamp)
             } else if (collectionName == null && wboId != null) {
               WeaveErrors.errorBadProtocol(response)
+              return
             } else if (collectionName != null && wboId == null) {
-              val ids = {
-                val param = request.getParameter("ids")
-                if (param == null)
-                  null
-                else
-                  param.split(",").map((s: String) => s.trim).filter((s: String) => s.length > 0)
-              }
-              val parentId = request.getParameter("parentid")
-              val modifiedBefore = {
-                val param = request.getParameter("older")
-                if (param != null) {
-                  BigDecimal(param)
-                } else {
-                  null
-                }
-              }
-              val modifiedSince = {
-                val param = request.getParameter("newer")
-                if (param != null) {
-                  BigDecimal(param)
-                } else {
-                  null
-                }
-              }
-
-              def getIntParameter(paramName: String): java.lang.Integer = {
-                val param = request.getParameter(paramName)
-                if (param != null)
-                  param.toInt
-                else
-                  null
-              }
-
-              val limit = getIntParameter("limit")
-              val offset = getIntParameter("offset")
-
-              val sortOrder: SortOrder = {
-                val param = request.getParameter("sort")
-                param match {
-                  case "oldest" => SortOrder.OLDEST
-                  case "newest" => SortOrder.NEWEST
-                  case "index" => SortOrder.INDEX
-                  case _ => null
-                }
+              val query = WBOQuery.parse(request)
+              // The WBOs to delete cannot be selected with a cursor.
+              if (query == null || query.getAfter != null) {
+                WeaveErrors.errorBadProtocol(response)
+                return
               }
 
-              if (collectionModifiedSince(user, collectionName, ifUnmodifiedSince, timestampInt)) {
+              if (collectionModifiedSince(user, collectionName, ifUnmodifiedSince)) {
                 WeaveErrors.errorHttpPreConditionFailed(response)
                 return
               }
 
-              val idsList = {
-                if (ids == null) {
-                  null
-                } else {
-                  java.util.Arrays.asList(ids: _*)
-                }
-              }
-              val modifiedSinceBigDecimal = {
-                if (modifiedSince == null) {
-                  null
-                } else {
-                  modifiedSince.bigDecimal
-                }
-              }
-              val modifiedBeforeBigDecimal = {
-                if (modifiedBefore == null) {
-                  null
-                } else {
-                  modifiedBefore.bigDecimal
-                }
-              }
-
-              val wbos = storageDAO.getWBOsFromCollection(user, collectionName, idsList, null, parentId, modifiedBeforeBigDecimal, modifiedSinceBigDecimal, null, null, limit, offset, sortOrder, timestampInt)
-              for (wbo <- wbos) {
-                storageDAO.deleteWBO(wbo)
-              }
-              if (ids == null && parentId == null && modifiedBefore == null && modifiedSince == null && limit == null && offset == null) {
+              if (!query.isRestricted) {
                 // If all WBOs are deleted, delete collection as well
-                storageDAO.deleteCollection(user, collectionName)
+                storageDAO.deleteCollection(user, collectionName, timestamp)
+              } else {
+                storageDAO.deleteWBOsFromCollection(user, collectionName, query.getIds, query.getParentId, query.getModifiedBefore, query.getModifiedSince, query.getLimit, query.getOffset, query.getSortOrder, timestampSeconds, timestamp)
               }
-
-              JSONHelper.writeJSON(request, response, timestamp)
             } else if (collectionName != null && wboId != null) {
-              if (collectionModifiedSince(user, collectionName, ifUnmodifiedSince, timestampInt)) {
+              if (collectionModifiedSince(user, collectionName, ifUnmodifiedSince)) {
                 WeaveErrors.errorHttpPreConditionFailed(response)
                 return
               }
 
-              val wbo = storageDAO.getWBO(user, collectionName, wboId, timestampInt)
-              storageDAO.deleteWBO(wbo)
-
-              JSONHelper.writeJSON(request, response, timestamp)
+              val wbo = storageDAO.getWBO(user, collectionName, wboId, timestampSeconds)
+              if (wbo != null) {
+                storageDAO.deleteWBO(wbo, timestamp)
+              }
             }
           }
+          JSONHelper.writeTimestamp(request, response, timestamp)
         }
 
         case "POST" => {
-          transactionManager.withReadWriteTransaction {
-            val user = tryLoginUser(request, response, username)
-
-            // Clean-up expired WBOs
-            storageDAO.cleanUpExpiredWBOs(timestampInt)
+          if (collectionName == null || wboId != null) {
+            WeaveErrors.errorBadProtocol(response)
+            return
+          }
 
-            if (collectionName == null || wboId != null) {
-              WeaveErrors.errorBadProtocol(response)
+          // The WBOs are read before the transaction, so that the lock of
+          // the user is not held while the request body is received. Their
+          // number is limited by maxPostObjects.
+          if (maxPostBytes > 0 && request.getContentLength() > maxPostBytes) {
+            WeaveErrors.errorSizeLimitExceeded(response)
+            return
+          }
+          val updates = new java.util.ArrayList[WBOUpdate]
+          var failedIDs = Map.empty[String, String]
+          var parser: JsonParser = null
+          try {
+            parser = JSONHelper.createParser(request, maxPostBytes)
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+              WeaveErrors.errorInvalidWBO(response)
               return
             }
-
-            val jsonIn = {
-              try {
-                JSONHelper.readJSON(request)
-              } catch {
-                case e: JsonParseException => {
-                  WeaveErrors.errorJSONParseFailure(response)
-                  throw new AbortRequestHandlingException
+            var objectCount = 0
+            var token = parser.nextToken()
+            while (token != JsonToken.END_ARRAY) {
+              if (token == null) {
+                throw new JsonParseException("Unexpected end of input", parser.getCurrentLocation())
+              }
+              objectCount += 1
+              if (maxPostObjects > 0 && objectCount > maxPostObjects) {
+                WeaveErrors.errorSizeLimitExceeded(response)
+                return
+              }
+              if (token == JsonToken.START_OBJECT) {
+                val update = WBOUpdate.read(parser, version == ProtocolVersion_1_1)
+                if (update.getId != null) {
+                  if (update.isValid) {
+                    updates.add(update)
+                  } else {
+                    failedIDs += (update.getId -> "Invalid WBO")
+                  }
                 }
+              } else {
+                parser.skipChildren()
               }
+              token = parser.nextToken()
             }
-            if (!jsonIn.isArray()) {
-              WeaveErrors.errorInvalidWBO(response)
+          } catch {
+            case e: JsonParseException => {
+              WeaveErrors.errorJSONParseFailure(response)
               return
             }
+            case e: SizeLimitExceededException => {
+              WeaveErrors.errorSizeLimitExceeded(response)
+              return
+            }
+          } finally {
+            if (parser != null) {
+              parser.close()
+            }
+          }
 
-            var successIDs: List[String] = List()
-            var failedIDs = Map.empty[String, String]
+          val successIDs = try {
+            transactionManager.withUserReadWriteTransaction(user.getUsername) {
+              var successIDs: List[String] = List()
 
-            for (node: JsonNode <- jsonIn.getElements()) {
-              if (isJSONValidWeaveBasicObject(node, version)) {
-                try {
-                  val requestWbo = new WeaveBasicObject()
-                  updateWeaveBasicObjectWithDataFromJSON(requestWbo, node, version, timestamp)
-                  val wboId = requestWbo.getId()
-                  if (wboId == null) {
-                    throw new JsonMappingException("Invalid WBO: Id is missing")
-                  }
-                  val dbWbo = storageDAO.getWBO(user, collectionName, wboId, timestampInt)
-                  if (dbWbo == null && requestWbo.getPayload() != null) {
-                    storageDAO.insertWBO(user, collectionName, requestWbo)
-                  } else if (dbWbo != null) {
-                    updateWeaveBasicObjectWithDataFromJSON(dbWbo, node, version, timestamp)
-                  }
-                  successIDs = wboId :: successIDs
-                } catch {
-                  case e: JsonProcessingException => {
-                    if (wboId != null) {
-                      failedIDs += (wboId -> e.getMessage())
-                    }
-                  }
-                  case e: HibernateException => {
-                    if (wboId != null) {
-                      failedIDs += (wboId -> ("Database Problem: " + e.getMessage()))
-                    }
-                  }
+              // Stores a chunk of WBOs. All existing WBOs of the chunk are
+              // retrieved with a single query. Afterwards, the WBOs are
+              // detached from the session, so that the session does not grow
+              // with the number of WBOs in the request.
+              def storeWBOs(updates: java.util.List[WBOUpdate]) {
+                if (updates.isEmpty) {
+                  return
                 }
-              } else {
-                // Try to extract WBO ID from JSON
-                if (node.isObject()) {
-                  val idField = node.get("id")
-                  if (idField != null && idField.isTextual() && !idField.isNull()) {
-                    failedIDs += (idField.getTextValue() -> "Invalid WBO")
+                val dbWbos = storageDAO.getWBOs(user, collectionName, updates.map(_.getId).distinct)
+                val newWbos = new java.util.LinkedHashMap[String, WeaveBasicObject]
+                for (update <- updates) {
+                  val wboId = update.getId
+                  val newWbo = newWbos.get(wboId)
+                  val dbWbo = dbWbos.get(wboId)
+                  if (newWbo != null) {
+                    // The same WBO has been sent more than once within this chunk
+                    update.applyTo(newWbo, timestamp, timestampSeconds)
+                  } else if (dbWbo == null || isExpired(dbWbo, timestampSeconds)) {
+                    val requestWbo = new WeaveBasicObject()
+                    requestWbo.setId(wboId)
+                    update.applyTo(requestWbo, timestamp, timestampSeconds)
+                    if (requestWbo.getPayload() != null) {
+                      if (dbWbo == null) {
+                        newWbos.put(wboId, requestWbo)
+                      } else {
+                        val previousPayloadLength = dbWbo.getPayloadLength()
+                        replaceWeaveBasicObject(dbWbo, requestWbo)
+                        storageDAO.updateWBO(dbWbo, previousPayloadLength)
+                      }
+                    }
+                  } else {
+                    val previousPayloadLength = dbWbo.getPayloadLength()
+                    update.applyTo(dbWbo, timestamp, timestampSeconds)
+                    storageDAO.updateWBO(dbWbo, previousPayloadLength)
                   }
+                  successIDs = wboId :: successIDs
                 }
+
+                // A failed write leaves the session in an undefined state, so
+                // it is not caught here: the whole request fails instead.
+                storageDAO.insertWBOs(user, collectionName, newWbos.values)
+                storageDAO.flushAndDetach()
               }
-            }
 
-            val root = JSONHelper.createJSONObjectNode()
-            root.put("modified", timestamp.bigDecimal)
-            val jsonSuccess = JSONHelper.createJSONArrayNode
-            for (id: String <- successIDs) {
-              jsonSuccess.add(id)
+              for (chunk <- updates.grouped(postChunkSize)) {
+                storeWBOs(chunk)
+              }
+              successIDs
             }
-            root.put("success", jsonSuccess)
-            val jsonFailed = JSONHelper.createJSONObjectNode
-            for (id <- failedIDs.keys) {
-              jsonFailed.put(id, failedIDs(id))
+          } catch {
+            // The transaction has been rolled back, so none of the WBOs of
+            // the request has been stored.
+            case e @ (_: HibernateException | _: DataAccessException) => {
+              logger.error("Storing WBOs failed.", e)
+              response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR)
+              return
             }
-            root.put("failed", jsonFailed)
+          }
 
-            JSONHelper.writeJSON(request, response, root)
+          val root = JSONHelper.createJSONObjectNode()
+          root.put("modified", WeaveTimestamps.toSeconds(timestamp))
+          val jsonSuccess = JSONHelper.createJSONArrayNode
+          for (id: String <- successIDs) {
+            jsonSuccess.add(id)
           }
+          root.put("success", jsonSuccess)
+          val jsonFailed = JSONHelper.createJSONObjectNode
+          for (id <- failedIDs.keys) {
+            jsonFailed.put(id, failedIDs(id))
+          }
+          root.put("failed", jsonFailed)
+
+          JSONHelper.writeJSON(request, response, root)
         }
 
         case "PUT" => {
-          transactionManager.withReadWriteTransaction {
-            val user = tryLoginUser(request, response, username)
-
-            // Clean-up expired WBOs
-            storageDAO.cleanUpExpiredWBOs(timestampInt)
+          // Only storing the WBO needs a read/write transaction. It may be
+          // shared with the writes of concurrent requests (group commit),
+          // so the request body is parsed before.
+          if (collectionName == null || wboId == null) {
+            WeaveErrors.errorBadProtocol(response)
+            return
+          }
 
-            if (collectionName == null || wboId == null) {
-              WeaveErrors.errorBadProtocol(response)
+          if (maxPostBytes > 0 && request.getContentLength() > maxPostBytes) {
+            WeaveErrors.errorSizeLimitExceeded(response)
+            return
+          }
+          var parser: JsonParser = null
+          val wboUpdate = try {
+            parser = JSONHelper.createParser(request, maxPostBytes)
+            val token = parser.nextToken()
+            if (token == null) {
+              WeaveErrors.errorJSONParseFailure(response)
               return
             }
-
-            val dbWbo = storageDAO.getWBO(user, collectionName, wboId, timestampInt)
-            val update = (dbWbo != null)
-            val wbo = {
-              if (update) {
-                dbWbo
-              } else {
-                val temp = new WeaveBasicObject()
-                temp.setId(wboId)
-                temp
-              }
+            if (token != JsonToken.START_OBJECT) {
+              WeaveErrors.errorInvalidWBO(response)
+              return
             }
-            try {
-              updateWeaveBasicObjectWithDataFromJSON(wbo, JSONHelper.readJSON(request), version, timestamp)
-            } catch {
-              case e: JsonMappingException => {
-                WeaveErrors.errorInvalidWBO(response)
-                return
-              }
-              case e: JsonParseException => {
-                WeaveErrors.errorJSONParseFailure(response)
-                return
-              }
+            WBOUpdate.read(parser, version == ProtocolVersion_1_1)
+          } catch {
+            case e: JsonParseException => {
+              WeaveErrors.errorJSONParseFailure(response)
+              return
             }
-            if (!update && wbo.getPayload() != null) {
-              storageDAO.insertWBO(user, collectionName, wbo)
+            case e: SizeLimitExceededException => {
+              WeaveErrors.errorSizeLimitExceeded(response)
+              return
+            }
+          } finally {
+            if (parser != null) {
+              parser.close()
             }
+          }
+          if (!wboUpdate.isValid) {
+            WeaveErrors.errorInvalidWBO(response)
+            return
+          }
 
-            JSONHelper.writeJSON(request, response, timestamp)
+          // The lock is held by this thread until the write has been
+          // committed, even if the write is executed by the group committer.
+          transactionManager.withUserWriteLock(user.getUsername) {
+            if (groupCommitter != null) {
+              groupCommitter.execute {
+                storeWBO(user, collectionName, wboId, wboUpdate, timestamp, timestampSeconds)
+              }
+            } else {
+              transactionManager.withReadWriteTransaction {
+                storeWBO(user, collectionName, wboId, wboUpdate, timestamp, timestampSeconds)
+              }
+            }
           }
+
+          JSONHelper.writeTimestamp(request, response, timestamp)
         }
 
         case _ => {
@@ -710,111 +1131,104 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
       }
     }
 
-    private def collectionModifiedSince(user: WeaveUser, collectionName: String, ifModifiedSince: BigDecimal, timestamp: java.math.BigInteger): Boolean = {
-      val lastModified = storageDAO.getLastModified(user, collectionName, timestamp)
-      if (lastModified != null && ifModifiedSince != null && ifModifiedSince < new BigDecimal(lastModified)) {
-        true
+    /**
+     * Evaluates the preconditions of a GET request against the timestamp the
+     * requested data has been last modified. If the client's copy is still
+     * up to date, a response with status 304 (not modified) is sent, before
+     * any WBO is read. Otherwise, the timestamp is sent as entity tag, so
+     * that the client can use it in the next request.
+     *
+     * @param lastModified timestamp the requested data has been last
+     *    modified (see {@link WeaveStorageDAO#getStorageLastModified})
+     * @return <code>true</code> if a response has been sent
+     */
+    private def handleConditionalRequest(request: HttpServletRequest, response: HttpServletResponse, lastModified: Long): Boolean = {
+      val ifNoneMatch = request.getHeader(HeaderIfNoneMatch)
+      val ifModifiedSince = request.getHeader(HeaderIfModifiedSince)
+      val entityTag = "\"" + WeaveTimestamps.format(lastModified) + "\""
+      val notModified = if (ifNoneMatch != null) {
+        // If-None-Match takes precedence over a modification timestamp.
+        ifNoneMatch.split(",").map((s: String) => s.trim).exists((tag: String) =>
+          tag == entityTag || tag == "W/" + entityTag || (tag == "*" && lastModified > 0))
+      } else if (ifModifiedSince != null) {
+        try {
+          lastModified <= WeaveTimestamps.parse(ifModifiedSince, false)
+        } catch {
+          case e: NumberFormatException => {
+            WeaveErrors.errorBadProtocol(response)
+            return true
+          }
+        }
       } else {
         false
       }
-
-    }
-
-    private def isJSONValidWeaveBasicObject(root: JsonNode, version: ProtocolVersion): Boolean = {
-      if (!root.isObject()) {
-        return false
-      }
-      val parentId = root.get("parentid")
-      if (parentId != null && !parentId.isTextual() && !parentId.isNull()) {
-        return false
-      }
-      val predecessorId = root.get("predecessorid")
-      if (predecessorId != null && !predecessorId.isTextual() && !predecessorId.isNull()) {
-        return false
+      response.setHeader(HeaderETag, entityTag)
+      response.setHeader(HeaderLastModified, WeaveTimestamps.format(lastModified))
+      if (notModified) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED)
       }
-      val sortIndex = root.get("sortindex");
-      if (sortIndex != null && !sortIndex.isIntegralNumber && !sortIndex.isNull()) {
-        return false
-      }
-      val payload = root.get("payload")
-      if (payload != null && !payload.isTextual() && !payload.isNull()) {
-        return false
-      }
-      if (version == ProtocolVersion_1_1) {
-        val ttl = root.get("ttl")
-        if (ttl != null && (!ttl.isNumber || ttl.getBigIntegerValue.compareTo(java.math.BigInteger.ZERO) == -1))
-          return false
-      }
-      return true
+      notModified
     }
 
-    private def updateWeaveBasicObjectWithDataFromJSON(wbo: WeaveBasicObject, root: JsonNode, version: ProtocolVersion, timestamp: BigDecimal) {
-      def invalidWBO(): Nothing = {
-        throw new JsonMappingException("Invalid WBO")
+    private def collectionModifiedSince(user: WeaveUser, collectionName: String, ifModifiedSince: java.lang.Long): Boolean = {
+      val lastModified = storageDAO.getLastModified(user, collectionName)
+      if (ifModifiedSince != null && ifModifiedSince.longValue < lastModified) {
+        true
+      } else {
+        false
       }
 
-      if (!root.isObject()) {
-        invalidWBO
-      }
-      val id = root.get("id")
-      if (id != null) {
-        if (!id.isTextual() || id.isNull()) {
-          invalidWBO
-        }
-        wbo.setId(id.getTextValue())
-      }
-      val parentId = root.get("parentid")
-      if (parentId != null) {
-        if (!parentId.isTextual() && !parentId.isNull()) {
-          invalidWBO
-        }
-        if (parentId.isNull()) {
-          wbo.setParentId(null)
+    }
+
+    /**
+     * Stores a WBO sent in a PUT request. A WBO that does not exist yet is
+     * only created if the request contains a payload. This method has to be
+     * called within a read/write transaction and must not access the request
+     * or the response, because it may be called by the group committer.
+     */
+    private def storeWBO(user: WeaveUser, collectionName: String, wboId: String, wboUpdate: WBOUpdate, timestamp: Long, timestampSeconds: Long) {
+      val dbWbo = storageDAO.getWBOs(user, collectionName, java.util.Collections.singleton(wboId)).get(wboId)
+      val update = (dbWbo != null && !isExpired(dbWbo, timestampSeconds))
+      val wbo = {
+        if (update) {
+          dbWbo
         } else {
-          wbo.setParentId(parentId.getTextValue())
+          val temp = new WeaveBasicObject()
+          temp.setId(wboId)
+          temp
         }
       }
-      val predecessorId = root.get("predecessorid")
-      if (predecessorId != null) {
-        if (!predecessorId.isTextual() && !predecessorId.isNull()) {
-          invalidWBO
-        }
-        if (predecessorId.isNull()) {
-          wbo.setPredecessorId(null)
-        } else {
-          wbo.setPredecessorId(predecessorId.getTextValue())
-        }
+      val previousPayloadLength = wbo.getPayloadLength()
+      if (wboUpdate.getId != null) {
+        wbo.setId(wboUpdate.getId)
       }
-      val sortIndex = root.get("sortindex");
-      if (sortIndex != null) {
-        if (!sortIndex.isIntegralNumber && !sortIndex.isNull()) {
-          invalidWBO
-        }
-        if (sortIndex.isNull()) {
-          wbo.setSortIndex(null)
+      wboUpdate.applyTo(wbo, timestamp, timestampSeconds)
+      if (update) {
+        storageDAO.updateWBO(wbo, previousPayloadLength)
+      } else if (wbo.getPayload() != null) {
+        if (dbWbo == null) {
+          storageDAO.insertWBO(user, collectionName, wbo)
         } else {
-          wbo.setSortIndex(sortIndex.getNumberValue().intValue())
+          // An expired WBO that has not been removed yet is replaced
+          val expiredPayloadLength = dbWbo.getPayloadLength()
+          replaceWeaveBasicObject(dbWbo, wbo)
+          storageDAO.updateWBO(dbWbo, expiredPayloadLength)
         }
       }
-      val payload = root.get("payload")
-      if (payload != null) {
-        if (!payload.isTextual() && !payload.isNull()) {
-          invalidWBO
-        }
-        if (!payload.isNull()) {
-          wbo.setPayload(payload.getTextValue())
-        }
-      }
-      val ttl = root.get("ttl")
-      if (ttl != null && version == ProtocolVersion_1_1) {
-        if (!ttl.isNumber)
-          invalidWBO
-        val ttlValue = ttl.getBigIntegerValue
-        if (ttlValue.compareTo(java.math.BigInteger.ZERO) == -1)
-          invalidWBO
-        wbo.setTtl(ttlValue.add(timestamp.toBigInt.bigInteger))
-      }
-      wbo.setModified(timestamp.bigDecimal)
+    }
+
+    private def isExpired(wbo: WeaveBasicObject, timestamp: Long): Boolean = {
+      val ttl = wbo.getTtl()
+      ttl != null && ttl.longValue < timestamp
+    }
+
+    private def replaceWeaveBasicObject(wbo: WeaveBasicObject, source: WeaveBasicObject) {
+      wbo.setParentId(source.getParentId())
+      wbo.setPredecessorId(source.getPredecessorId())
+      wbo.setSortIndex(source.getSortIndex())
+      wbo.setPayload(source.getPayload())
+      wbo.setTtl(source.getTtl())
+      wbo.setModified(source.getModified())
     }
 
   }
@@ -824,145 +1238,161 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
    */
   private object UserRequestHandler {
 
-    def handleRequest(request: HttpServletRequest, response: HttpServletResponse, path: String, timestamp: BigDecimal, version: ProtocolVersion) {
+    /**
+     * Pattern for the path of a user request, matching the username and the
+     * command.
+     */
+    private val PathMatcher = "^/([^/]+)(?:/(.*))?$".r
+
+    def handleRequest(request: HttpServletRequest, response: HttpServletResponse, path: String, timestamp: Long, version: ProtocolVersion) {
       if (version != ProtocolVersion_1_0) {
         logger.debug("Version mismatch: Got version " + version)
         WeaveErrors.errorUnsupportedVersion(response)
         return
       }
 
-      val PathMatcher = "^/([^/]+)(?:/(.*))?$".r
       val PathMatcher(username, command) = path;
 
+      // Request bodies are read and the user is authenticated before the
+      // lock of the user is acquired, and responses are written after the
+      // transaction has finished.
       request.getMethod() match {
         case "DELETE" => {
-          transactionManager.withReadWriteTransaction {
-            val user = tryLoginUser(request, response, username)
-
-            if (command != null) {
-              WeaveErrors.errorBadProtocol(response)
-              return
-            }
-            storageDAO.deleteAllCollections(user)
+          val user = tryLoginUser(request, response, username)
+          if (command != null) {
+            WeaveErrors.errorBadProtocol(response)
+            return
+          }
+          transactionManager.withUserReadWriteTransaction(user.getUsername) {
+            storageDAO.deleteAllCollections(user, timestamp)
             userDAO.deleteUser(user.getUsername)
           }
+          credentialCache.invalidate(user.getUsername)
         }
 
         case "GET" => {
-          transactionManager.withReadOnlyTransaction {
-            command match {
-              case null => {
-                if (userDAO.findUser(username) != null) {
-                  JSONHelper.writeJSON(request, response, 1)
-                } else {
-                  JSONHelper.writeJSON(request, response, 0)
-                }
+          // Only the user itself is read, so the lock of the user is not
+          // needed.
+          command match {
+            case null => {
+              if (userExists(username)) {
+                JSONHelper.writeJSON(request, response, 1)
+              } else {
+                JSONHelper.writeJSON(request, response, 0)
               }
+            }
 
-              case "node/weave" => {
-                if (userDAO.findUser(username) != null) {
-                  response.getWriter().write(extractServiceURL(request))
-                } else {
-                  response.setStatus(HttpServletResponse.SC_NOT_FOUND)
-                }
+            case "node/weave" => {
+              if (userExists(username)) {
+                response.getWriter().write(extractServiceURL(request))
+              } else {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND)
               }
+            }
 
-              case "password_reset" => {
-                WeaveErrors.errorUnsupportedFunction(response)
-              }
+            case "password_reset" => {
+              WeaveErrors.errorUnsupportedFunction(response)
+            }
 
-              case _ => {
-                WeaveErrors.errorBadProtocol(response)
-              }
+            case _ => {
+              WeaveErrors.errorBadProtocol(response)
             }
           }
         }
 
         case "POST" => {
-          transactionManager.withReadWriteTransaction {
-            val user = tryLoginUser(request, response, username)
+          val user = tryLoginUser(request, response, username)
 
-            command match {
-              case "email" => {
-                val eMail = readRequestBody(request).trim
+          command match {
+            case "email" => {
+              val eMail = readRequestBody(request).trim
+              transactionManager.withUserReadWriteTransaction(user.getUsername) {
                 userDAO.updateEMail(user.getUsername(), eMail)
-                JSONHelper.writeJSON(request, response, eMail)
               }
+              JSONHelper.writeJSON(request, response, eMail)
+            }
 
-              case "password" => {
-                val password = readRequestBody(request).trim
-                try {
+            case "password" => {
+              val password = readRequestBody(request).trim
+              try {
+                transactionManager.withUserReadWriteTransaction(user.getUsername) {
                   userDAO.updatePassword(user.getUsername(), password)
-                  JSONHelper.writeJSON(request, response, "success")
-                } catch {
-                  case e: InvalidPasswordException => {
-                    WeaveErrors.errorRequestedPasswordNotStrongEnough(response)
-                  }
+                }
+                credentialCache.invalidate(user.getUsername())
+                JSONHelper.writeJSON(request, response, "success")
+              } catch {
+                case e: InvalidPasswordException => {
+                  WeaveErrors.errorRequestedPasswordNotStrongEnough(response)
                 }
               }
+            }
 
-              case _ => {
-                WeaveErrors.errorBadProtocol(response)
-              }
+            case _ => {
+              WeaveErrors.errorBadProtocol(response)
             }
           }
         }
 
         case "PUT" => {
-          transactionManager.withReadWriteTransaction {
-            if (command != null) {
-              WeaveErrors.errorBadProtocol(response)
-              return
-            }
+          if (command != null) {
+            WeaveErrors.errorBadProtocol(response)
+            return
+          }
 
-            if (!allowUserRegistration) {
-              WeaveErrors.errorUnsupportedFunction(response)
-              return
-            }
+          if (!allowUserRegistration) {
+            WeaveErrors.errorUnsupportedFunction(response)
+            return
+          }
 
-            try {
-              val root = JSONHelper.readJSON(request)
-              if (!root.isObject()) {
-                throw new JsonMappingException("Invalid user object");
-              }
-              val password = root.get("password")
-              if (password == null || !password.isTextual()) {
-                throw new JsonMappingException("Invalid user object");
-              }
-              val eMail = root.get("email")
-              if (eMail == null || !eMail.isTextual()) {
-                throw new JsonMappingException("Invalid user object");
-              }
-              if (userDAO.findUser(username) != null) {
-                WeaveErrors.errorOverwriteNotAllowed(response)
+          try {
+            val root = JSONHelper.readJSON(request)
+            if (!root.isObject()) {
+              throw new JsonMappingException("Invalid user object");
+            }
+            val password = root.get("password")
+            if (password == null || !password.isTextual()) {
+              throw new JsonMappingException("Invalid user object");
+            }
+            val eMail = root.get("email")
+            if (eMail == null || !eMail.isTextual()) {
+              throw new JsonMappingException("Invalid user object");
+            }
+            if (captchaSettings.isEnableCaptchas) {
+              val captchaChallenge = root.get("captcha-challenge")
+              val captchaResponse = root.get("captcha-response")
+              if (captchaChallenge == null || captchaResponse == null ||
+                  !captchaChallenge.isTextual || !captchaResponse.isTextual ||
+                  !RecaptchaHelper.validateCaptcha(captchaSettings.getRecaptchaPrivateKey, request.getRemoteAddr, captchaChallenge.getTextValue, captchaResponse.getTextValue)) {
+                WeaveErrors.errorIncorrectOrMissingCaptcha(response)
                 return
               }
-              if (captchaSettings.isEnableCaptchas) {
-                val captchaChallenge = root.get("captcha-challenge")
-                val captchaResponse = root.get("captcha-response")
-                if (captchaChallenge == null || captchaResponse == null ||
-                    !captchaChallenge.isTextual || !captchaResponse.isTextual ||
-                    !RecaptchaHelper.validateCaptcha(captchaSettings.getRecaptchaPrivateKey, request.getRemoteAddr, captchaChallenge.getTextValue, captchaResponse.getTextValue)) {
-                  WeaveErrors.errorIncorrectOrMissingCaptcha(response)
-                  return
-                }
-                
+              
+            }
+            val created = transactionManager.withUserReadWriteTransaction(username) {
+              if (userDAO.findUser(username) != null) {
+                false
+              } else {
+                userDAO.createUser(username, PasswordHelper.cryptPasswordSSHA(password.getTextValue()), eMail.getTextValue())
+                true
               }
-              userDAO.createUser(username, PasswordHelper.cryptPasswordSSHA(password.getTextValue()), eMail.getTextValue())
+            }
+            if (created) {
               JSONHelper.writeJSON(request, response, username.toLowerCase)
-            } catch {
-              case e: JsonProcessingException => {
-                WeaveErrors.errorJSONParseFailure(response)
-                return
-              }
-              case e: InvalidUsernameException => {
-                WeaveErrors.errorInvalidOrMissingUsername(response)
-                return
-              }
-              case e: InvalidPasswordException => {
-                WeaveErrors.errorRequestedPasswordNotStrongEnough(response)
-                return
-              }
+            } else {
+              WeaveErrors.errorOverwriteNotAllowed(response)
+            }
+          } catch {
+            case e: JsonProcessingException => {
+              WeaveErrors.errorJSONParseFailure(response)
+              return
+            }
+            case e: InvalidUsernameException => {
+              WeaveErrors.errorInvalidOrMissingUsername(response)
+              return
+            }
+            case e: InvalidPasswordException => {
+              WeaveErrors.errorRequestedPasswordNotStrongEnough(response)
+              return
             }
           }
         }
@@ -973,6 +1403,12 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
       }
     }
 
+    private def userExists(username: String): Boolean = {
+      transactionManager.withReadOnlyTransaction {
+        userDAO.findUser(username) != null
+      }
+    }
+
   }
 
   /**
@@ -980,7 +1416,7 @@ class WeaveHttpRequestHandler extends HttpRequestHandler {
    */
   private object MiscRequestHandler {
 
-    def handleRequest(request: HttpServletRequest, response: HttpServletResponse, path: String, timestamp: BigDecimal, version: ProtocolVersion) {
+    def handleRequest(request: HttpServletRequest, response: HttpServletResponse, path: String, timestamp: Long, version: ProtocolVersion) {
       if (version != ProtocolVersion_1_0) {
         logger.debug("Version mismatch: Got version " + version)
         WeaveErrors.errorUnsupportedVersion(response)
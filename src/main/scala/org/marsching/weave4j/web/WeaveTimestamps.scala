@@ -25,13 +25,112 @@ package org.marsching.weave4j.web
 object WeaveTimestamps {
 
   /**
-   * Returns the current time in seconds since 01/01/1970.
+   * Returns the current time in centiseconds since 01/01/1970. Weave
+   * timestamps have a resolution of 1/100 second, so they are handled as
+   * whole centiseconds and only converted to seconds when they are sent to
+   * a client.
    *
    * @return current timestamp
    */
-  def currentTime: BigDecimal = {
-    val systemTimeInCentiSeconds = System.currentTimeMillis / 10
-    return BigDecimal(systemTimeInCentiSeconds) / BigDecimal(100)
+  def currentTime: Long = System.currentTimeMillis / 10
+
+  /**
+   * Formats a timestamp as seconds with exactly two decimal places, the
+   * format used by the Weave protocol (e.g. <code>1300000000.50</code>).
+   *
+   * @param timestamp timestamp in centiseconds
+   * @return timestamp in seconds
+   */
+  def format(timestamp: Long): String = {
+    if (timestamp < 0) {
+      return toSeconds(timestamp).toPlainString
+    }
+    val fraction = (timestamp % 100).toInt
+    val builder = new java.lang.StringBuilder(24)
+    builder.append(timestamp / 100).append('.')
+    if (fraction < 10) {
+      builder.append('0')
+    }
+    builder.append(fraction)
+    return builder.toString
   }
-  
-}
\ No newline at end of file
+
+  /**
+   * Converts a timestamp to seconds with two decimal places, so that it can
+   * be added to a JSON tree.
+   *
+   * @param timestamp timestamp in centiseconds
+   * @return timestamp in seconds
+   */
+  def toSeconds(timestamp: Long): java.math.BigDecimal = java.math.BigDecimal.valueOf(timestamp, 2)
+
+  /**
+   * Parses a timestamp sent by a client in seconds. A client may send more
+   * than two decimal places, so the value has to be rounded to whole
+   * centiseconds. The direction depends on the comparison the timestamp is
+   * used in: For "modified &gt;= x" and "modified &lt; x", rounding up keeps
+   * the result of the comparison, for "modified &lt;= x" and
+   * "modified &gt; x", rounding down does.
+   *
+   * @param value timestamp in seconds
+   * @param roundUp round up to the next centisecond instead of down
+   * @return timestamp in centiseconds
+   * @throws NumberFormatException if the value is not a number or out of
+   *    range
+   */
+  def parse(value: String, roundUp: Boolean): Long = {
+    // Fast path for the form sent by clients (e.g. "1300000000.5"), which
+    // does not create any objects. Everything else is parsed as a
+    // BigDecimal.
+    val length = value.length
+    var seconds = 0L
+    var i = 0
+    while (i < length && i < 16 && isDigit(value.charAt(i))) {
+      seconds = seconds * 10 + (value.charAt(i) - '0')
+      i += 1
+    }
+    if (i > 0 && i == length) {
+      return seconds * 100
+    }
+    if (i > 0 && value.charAt(i) == '.') {
+      var centiseconds = seconds * 100
+      var remainder = false
+      var j = i + 1
+      while (j < length && isDigit(value.charAt(j))) {
+        val digit = value.charAt(j) - '0'
+        if (j == i + 1) {
+          centiseconds += digit * 10
+        } else if (j == i + 2) {
+          centiseconds += digit
+        } else if (digit != 0) {
+          remainder = true
+        }
+        j += 1
+      }
+      if (j == length) {
+        return if (roundUp && remainder) centiseconds + 1 else centiseconds
+      }
+    }
+    parseDecimal(value, roundUp)
+  }
+
+  private def isDigit(c: Char): Boolean = c >= '0' && c <= '9'
+
+  private def parseDecimal(value: String, roundUp: Boolean): Long = {
+    val seconds = new java.math.BigDecimal(value.trim)
+    // Number of digits before the decimal point. The exponent is checked
+    // before the value is rounded, because rounding a number like 1e-999999
+    // would be expensive.
+    val digits = seconds.precision - seconds.scale
+    if (digits > 16) {
+      throw new NumberFormatException("Timestamp out of range: " + value)
+    }
+    if (digits < -2) {
+      // Less than a tenth of a centisecond away from zero
+      return if (roundUp && seconds.signum > 0) 1L else if (!roundUp && seconds.signum < 0) -1L else 0L
+    }
+    val rounding = if (roundUp) java.math.RoundingMode.CEILING else java.math.RoundingMode.FLOOR
+    return seconds.movePointRight(2).setScale(0, rounding).longValue
+  }
+
+}
@@ -22,7 +22,14 @@ import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.servlet.ModelAndView
 import org.springframework.web.bind.annotation.RequestMethod
 import org.marsching.weave4j.web.TransactionManager
+import org.marsching.weave4j.web.CredentialCache
+import org.marsching.weave4j.web.ExpiredWBOReaper
+import org.marsching.weave4j.web.GroupCommitter
+import org.marsching.weave4j.web.Metrics
+import org.marsching.weave4j.web.RequestRateLimiter
+import org.marsching.weave4j.web.StorageRequestQueue
 import org.marsching.weave4j.web.UsernameHelper
+import org.marsching.weave4j.web.WeaveTimestamps
 import org.marsching.weave4j.dbo.WeaveUserDAO
 import org.springframework.web.bind.annotation.RequestParam
 import org.marsching.weave4j.dbo.exception.InvalidUsernameException
@@ -55,6 +62,37 @@ class AdminController {
    */
   protected var storageDAO: WeaveStorageDAO = null
 
+  /**
+   * Cache for verified credentials, which has to be invalidated when a
+   * password is changed or a user is deleted.
+   */
+  protected var credentialCache: CredentialCache = null
+
+  /**
+   * Metrics shown on the metrics page.
+   */
+  protected var metrics: Metrics = null
+
+  /**
+   * Reaper whose statistics are shown on the metrics page.
+   */
+  protected var expiredWBOReaper: ExpiredWBOReaper = null
+
+  /**
+   * Request queue whose statistics are shown on the metrics page.
+   */
+  protected var requestQueue: StorageRequestQueue = null
+
+  /**
+   * Rate limiter whose statistics are shown on the metrics page.
+   */
+  protected var rateLimiter: RequestRateLimiter = null
+
+  /**
+   * Group committer whose statistics are shown on the metrics page.
+   */
+  protected var groupCommitter: GroupCommitter = null
+
   @RequestMapping(value = Array("/"), method = Array(RequestMethod.GET))
   def index(): ModelAndView = {
     transactionManager.withReadOnlyTransaction {
@@ -70,6 +108,17 @@ class AdminController {
     new RedirectView("/adminui/", true, true)
   }
 
+  @RequestMapping(value = Array("/metrics"), method = Array(RequestMethod.GET))
+  def showMetrics(): ModelAndView = {
+    val mav = new ModelAndView("metrics")
+    mav.addObject("metrics", metrics)
+    mav.addObject("credentialCache", credentialCache)
+    mav.addObject("expiredWBOReaper", expiredWBOReaper)
+    mav.addObject("requestQueue", requestQueue)
+    mav.addObject("rateLimiter", rateLimiter)
+    mav.addObject("groupCommitter", groupCommitter)
+  }
+
   @RequestMapping(value = Array("/create/user"), method = Array(RequestMethod.POST))
   def createUser(@RequestParam("username") username: String, @RequestParam("email") email: String, @RequestParam("password") password: String): ModelAndView = {
     val useUsername =
@@ -78,7 +127,7 @@ class AdminController {
       else
         UsernameHelper.encodeUsername(email)
     try {
-      transactionManager.withReadWriteTransaction {
+      transactionManager.withUserReadWriteTransaction(useUsername) {
         if (userDAO.findUser(useUsername) != null) {
           val mav = new ModelAndView("createUserFailure")
           mav.addObject("reason", "username_already_in_use")
@@ -126,19 +175,22 @@ class AdminController {
 
   @RequestMapping(value = Array("/user/{username}/delete"), method = Array(RequestMethod.POST))
   def deleteUser(@PathVariable("username") username: String): ModelAndView = {
-    transactionManager.withReadWriteTransaction {
-      try {
+    // Errors are caught outside of the transaction, so that it is rolled
+    // back.
+    try {
+      transactionManager.withUserReadWriteTransaction(username) {
         val user = userDAO.findUser(username)
         if (user != null) {
-          storageDAO.deleteAllCollections(user)
+          storageDAO.deleteAllCollections(user, WeaveTimestamps.currentTime)
         }
         userDAO.deleteUser(username)
-        new ModelAndView("deleteUserSuccess")
-      } catch {
-        case e: Throwable => {
-          val mav = new ModelAndView("deleteUserFailure")
-          mav.addObject("throwable", e)
-        }
+      }
+      credentialCache.invalidate(username)
+      new ModelAndView("deleteUserSuccess")
+    } catch {
+      case e: Throwable => {
+        val mav = new ModelAndView("deleteUserFailure")
+        mav.addObject("throwable", e)
       }
     }
   }
@@ -151,20 +203,21 @@ class AdminController {
 
   @RequestMapping(value = Array("/user/{username}/changePassword"), method = Array(RequestMethod.POST))
   def changeUserPassword(@PathVariable("username") username: String, @RequestParam("password") password: String): ModelAndView = {
-    transactionManager.withReadWriteTransaction {
-      try {
+    try {
+      transactionManager.withUserReadWriteTransaction(username) {
         userDAO.updatePassword(username, password)
-        new ModelAndView("changeUserPasswordSuccess")
-      } catch {
-        case e: InvalidPasswordException => {
-          val mav = new ModelAndView("changeUserPasswordFailure")
-          mav.addObject("reason", "password")
-        }
-        case e: Throwable => {
-          val mav = new ModelAndView("changeUserPasswordFailure")
-          mav.addObject("reason", "generic")
-          mav.addObject("throwable", e)
-        }
+      }
+      credentialCache.invalidate(username)
+      new ModelAndView("changeUserPasswordSuccess")
+    } catch {
+      case e: InvalidPasswordException => {
+        val mav = new ModelAndView("changeUserPasswordFailure")
+        mav.addObject("reason", "password")
+      }
+      case e: Throwable => {
+        val mav = new ModelAndView("changeUserPasswordFailure")
+        mav.addObject("reason", "generic")
+        mav.addObject("throwable", e)
       }
     }
   }
@@ -195,4 +248,59 @@ class AdminController {
   def setStorageDAO(storageDAO: WeaveStorageDAO) = {
     this.storageDAO = storageDAO;
   }
+
+  /**
+   * Sets the cache for verified credentials.
+   *
+   * @param credentialCache cache for verified credentials
+   */
+  def setCredentialCache(credentialCache: CredentialCache) = {
+    this.credentialCache = credentialCache
+  }
+
+  /**
+   * Sets the metrics shown on the metrics page.
+   *
+   * @param metrics metrics
+   */
+  def setMetrics(metrics: Metrics) = {
+    this.metrics = metrics
+  }
+
+  /**
+   * Sets the reaper whose statistics are shown on the metrics page.
+   *
+   * @param expiredWBOReaper reaper for expired WBOs
+   */
+  def setExpiredWBOReaper(expiredWBOReaper: ExpiredWBOReaper) = {
+    this.expiredWBOReaper = expiredWBOReaper
+  }
+
+  /**
+   * Sets the request queue whose statistics are shown on the metrics page.
+   *
+   * @param requestQueue queue for storage requests
+   */
+  def setRequestQueue(requestQueue: StorageRequestQueue) = {
+    this.requestQueue = requestQueue
+  }
+
+  /**
+   * Sets the rate limiter whose statistics are shown on the metrics page.
+   *
+   * @param rateLimiter limiter for storage requests
+   */
+  def setRateLimiter(rateLimiter: RequestRateLimiter) = {
+    this.rateLimiter = rateLimiter
+  }
+
+  /**
+   * Sets the group committer whose statistics are shown on the metrics
+   * page.
+   *
+   * @param groupCommitter group committer for PUT requests
+   */
+  def setGroupCommitter(groupCommitter: GroupCommitter) = {
+    this.groupCommitter = groupCommitter
+  }
 }
@@ -22,12 +22,14 @@ import org.marsching.weave4j.dbo.WeaveStorageDAO
 import org.marsching.weave4j.web.PasswordHelper
 import org.marsching.weave4j.web.TransactionManager
 import org.marsching.weave4j.web.UsernameHelper
+import org.marsching.weave4j.web.WeaveTimestamps
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RequestMethod
 import org.springframework.web.servlet.ModelAndView
 import org.springframework.web.servlet.view.RedirectView
 import org.springframework.web.bind.annotation.RequestParam
 import org.marsching.weave4j.web.CaptchaSettings
+import org.marsching.weave4j.web.CredentialCache
 import javax.servlet.http.HttpServletRequest
 import org.marsching.weave4j.web.RecaptchaHelper
 import scala.collection.JavaConversions._
@@ -84,6 +86,12 @@ class UserController {
    * DAO for accessing collections and WBOs.
    */
   protected var storageDAO: WeaveStorageDAO = null
+
+  /**
+   * Cache for verified credentials, which has to be invalidated when a
+   * password is changed or a user is deleted.
+   */
+  protected var credentialCache: CredentialCache = null
   
   /**
    * Key used for signing password reset requests.
@@ -164,33 +172,36 @@ class UserController {
 
   @RequestMapping(value = Array("/resetPasswordStep3"), method = Array(RequestMethod.POST))
   def resetPasswordStep3(@RequestParam("username") username: String, @RequestParam("timestamp") timestamp: Long, @RequestParam("challenge") challenge: String, @RequestParam("password_reset_code") passwordResetCode: String, @RequestParam("password") password: String, @RequestParam("password_repeat") passwordRepeat: String): ModelAndView = {
-    transactionManager.withReadWriteTransaction {
-      val user = userDAO.findUser(username)
-      if (user == null) {
-        val mav = new ModelAndView("resetPasswordFailure")
-        mav.addObject("reason", "username")
-      } else if (!verifyPasswordResetCode(passwordResetCode, user, timestamp, challenge)) {
-        val mav = new ModelAndView("resetPasswordFailure")
-        mav.addObject("reason", "passwordResetCode")
-      } else if (password.trim != passwordRepeat.trim) {
-        val mav = new ModelAndView("resetPasswordFailure")
-        mav.addObject("reason", "passwordMismatch")
-      } else {
-        try {
+    // Errors are caught outside of the transaction, so that it is rolled
+    // back.
+    try {
+      transactionManager.withUserReadWriteTransaction(username) {
+        val user = userDAO.findUser(username)
+        if (user == null) {
+          val mav = new ModelAndView("resetPasswordFailure")
+          mav.addObject("reason", "username")
+        } else if (!verifyPasswordResetCode(passwordResetCode, user, timestamp, challenge)) {
+          val mav = new ModelAndView("resetPasswordFailure")
+          mav.addObject("reason", "passwordResetCode")
+        } else if (password.trim != passwordRepeat.trim) {
+          val mav = new ModelAndView("resetPasswordFailure")
+          mav.addObject("reason", "passwordMismatch")
+        } else {
           userDAO.updatePassword(user.getUsername, password.trim)
+          credentialCache.invalidate(user.getUsername)
           new ModelAndView("resetPasswordSuccess")
-        } catch {
-          case e: InvalidPasswordException => {
-            val mav = new ModelAndView("resetPasswordFailure")
-            mav.addObject("reason", "password")
-          }
-          case e: Throwable => {
-            val mav = new ModelAndView("resetPasswordFailure")
-            mav.addObject("reason", "generic")
-            mav.addObject("throwable", e)
-          }
         }
       }
+    } catch {
+      case e: InvalidPasswordException => {
+        val mav = new ModelAndView("resetPasswordFailure")
+        mav.addObject("reason", "password")
+      }
+      case e: Throwable => {
+        val mav = new ModelAndView("resetPasswordFailure")
+        mav.addObject("reason", "generic")
+        mav.addObject("throwable", e)
+      }
     }
   }
 
@@ -201,8 +212,12 @@ class UserController {
 
   @RequestMapping(value = Array("/deleteUserConfirm"), method = Array(RequestMethod.POST))
   def deleteUserConfirm(@RequestParam("username") username: String, @RequestParam("password") password: String): ModelAndView = {
-    transactionManager.withReadWriteTransaction {
-      val user = {
+    // The name of the user is not known before the user has been looked up,
+    // because it may have been entered as e-mail address, so the password is
+    // verified before the lock of the user is acquired. Errors are caught
+    // outside of the transactions, so that they are rolled back.
+    try {
+      val user = transactionManager.withReadOnlyTransaction {
         val userFirstAttempt = userDAO.findUser(username)
         if (userFirstAttempt != null) {
           userFirstAttempt
@@ -214,17 +229,31 @@ class UserController {
         val mav = new ModelAndView("deleteUserFailure")
         mav.addObject("reason", "usernameOrPassword")
       } else {
-        try {
-          storageDAO.deleteAllCollections(user)
-          userDAO.deleteUser(user.getUsername)
-          new ModelAndView("deleteUserSuccess")
-        } catch {
-          case e: Throwable => {
-            val mav = new ModelAndView("deleteUserFailure")
-            mav.addObject("reason", "generic")
-            mav.addObject("throwable", e)
+        val deleted = transactionManager.withUserReadWriteTransaction(user.getUsername) {
+          // The password might have been changed (or the user deleted) in
+          // the meantime.
+          val currentUser = userDAO.findUser(user.getUsername)
+          if (currentUser == null || currentUser.getPassword != user.getPassword) {
+            false
+          } else {
+            storageDAO.deleteAllCollections(currentUser, WeaveTimestamps.currentTime)
+            userDAO.deleteUser(currentUser.getUsername)
+            true
           }
         }
+        if (deleted) {
+          credentialCache.invalidate(user.getUsername)
+          new ModelAndView("deleteUserSuccess")
+        } else {
+          val mav = new ModelAndView("deleteUserFailure")
+          mav.addObject("reason", "usernameOrPassword")
+        }
+      }
+    } catch {
+      case e: Throwable => {
+        val mav = new ModelAndView("deleteUserFailure")
+        mav.addObject("reason", "generic")
+        mav.addObject("throwable", e)
       }
     }
   }
@@ -344,4 +373,12 @@ class UserController {
     this.storageDAO = storageDAO;
   }
 
-}
\ No newline at end of file
+  /**
+   * Sets the cache for verified credentials.
+   *
+   * @param credentialCache cache for verified credentials
+   */
+  def setCredentialCache(credentialCache: CredentialCache) = {
+    this.credentialCache = credentialCache
+  }
+}
@@ -1,5 +1,9 @@
 <%@ include file="header.jsp" %>
 
+<p>
+  <a href="<spring:url value="${urlPrefix}/metrics" htmlEscape="true" />">Show Metrics</a>
+</p>
+
 <h2>Existing Users</h2>
 <table>
   <tr>
@@ -0,0 +1,259 @@
+<%@ include file="header.jsp" %>
+
+<p>
+  <a href="<spring:url value="${urlPrefix}/" htmlEscape="true" />">Back to User List</a>
+</p>
+
+<p>
+  Durations are in milliseconds. Percentiles are estimates. The bytes of
+  the requests are counted before compression. All numbers have been
+  collected since the application was started.
+</p>
+
+<h2>Requests</h2>
+<table>
+  <tr>
+    <th>Endpoint</th>
+    <th>Count</th>
+    <th>Errors</th>
+    <th>Bytes</th>
+    <th>Mean</th>
+    <th>50%</th>
+    <th>99%</th>
+    <th>Max</th>
+  </tr>
+  <c:forEach items="${metrics.requestStatistics}" var="statistics">
+  <tr>
+    <td>${fn:escapeXml(statistics.name)}</td>
+    <td>${statistics.count}</td>
+    <td>${statistics.errorCount}</td>
+    <td>${statistics.bytes}</td>
+    <td><fmt:formatNumber value="${statistics.meanMillis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.p50Millis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.p99Millis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.maxMillis}" maxFractionDigits="2" /></td>
+  </tr>
+  </c:forEach>
+</table>
+
+<h2>Responses</h2>
+<table>
+  <tr>
+    <th>HTTP Status</th>
+    <th>Count</th>
+  </tr>
+  <c:forEach items="${metrics.httpStatusCountMap}" var="entry">
+  <tr>
+    <td>${entry.key}</td>
+    <td>${entry.value}</td>
+  </tr>
+  </c:forEach>
+</table>
+<table>
+  <tr>
+    <th>Weave Error Code</th>
+    <th>Count</th>
+  </tr>
+  <c:forEach items="${metrics.weaveErrorCountMap}" var="entry">
+  <tr>
+    <td>${entry.key}</td>
+    <td>${entry.value}</td>
+  </tr>
+  </c:forEach>
+</table>
+
+<h2>Compression</h2>
+<table>
+  <tr>
+    <th>Direction</th>
+    <th>Count</th>
+    <th>Uncompressed Bytes</th>
+    <th>Compressed Bytes</th>
+  </tr>
+  <tr>
+    <td>Requests</td>
+    <td>${metrics.compressedRequestCount}</td>
+    <td>${metrics.uncompressedRequestBytes}</td>
+    <td>${metrics.compressedRequestBytes}</td>
+  </tr>
+  <tr>
+    <td>Responses</td>
+    <td>${metrics.compressedResponseCount}</td>
+    <td>${metrics.uncompressedResponseBytes}</td>
+    <td>${metrics.compressedResponseBytes}</td>
+  </tr>
+</table>
+
+<h2>Transactions</h2>
+<table>
+  <tr>
+    <th>Phase</th>
+    <th>Count</th>
+    <th>Errors</th>
+    <th>Mean</th>
+    <th>50%</th>
+    <th>99%</th>
+    <th>Max</th>
+  </tr>
+  <c:forEach items="${metrics.transactionStatistics}" var="statistics">
+  <tr>
+    <td>${fn:escapeXml(statistics.name)}</td>
+    <td>${statistics.count}</td>
+    <td>${statistics.errorCount}</td>
+    <td><fmt:formatNumber value="${statistics.meanMillis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.p50Millis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.p99Millis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.maxMillis}" maxFractionDigits="2" /></td>
+  </tr>
+  </c:forEach>
+</table>
+
+<h2>DAO Calls</h2>
+<table>
+  <tr>
+    <th>Method</th>
+    <th>Count</th>
+    <th>Errors</th>
+    <th>Mean</th>
+    <th>50%</th>
+    <th>99%</th>
+    <th>Max</th>
+  </tr>
+  <c:forEach items="${metrics.daoStatistics}" var="statistics">
+  <tr>
+    <td>${fn:escapeXml(statistics.name)}</td>
+    <td>${statistics.count}</td>
+    <td>${statistics.errorCount}</td>
+    <td><fmt:formatNumber value="${statistics.meanMillis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.p50Millis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.p99Millis}" maxFractionDigits="2" /></td>
+    <td><fmt:formatNumber value="${statistics.maxMillis}" maxFractionDigits="2" /></td>
+  </tr>
+  </c:forEach>
+</table>
+
+<h2>Credential Cache</h2>
+<table>
+  <tr>
+    <th style="text-align: left;">Hits</th>
+    <td>${credentialCache.hitCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Misses</th>
+    <td>${credentialCache.missCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Cached Users</th>
+    <td>${credentialCache.size}</td>
+  </tr>
+</table>
+
+<h2>Storage Request Queue</h2>
+<table>
+  <tr>
+    <th style="text-align: left;">Active Requests</th>
+    <td>${requestQueue.activeRequests}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Waiting Requests</th>
+    <td>${requestQueue.queueLength}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Admitted Requests</th>
+    <td>${requestQueue.admittedCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Rejected Requests (Queue Full)</th>
+    <td>${requestQueue.rejectedCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Rejected Requests (Timed Out)</th>
+    <td>${requestQueue.timedOutCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Mean Wait Time (ms)</th>
+    <td><fmt:formatNumber value="${requestQueue.meanWaitMillis}" maxFractionDigits="2" /></td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">99th Percentile Wait Time (ms)</th>
+    <td><fmt:formatNumber value="${requestQueue.p99WaitMillis}" maxFractionDigits="2" /></td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Maximum Wait Time (ms)</th>
+    <td><fmt:formatNumber value="${requestQueue.maxWaitMillis}" maxFractionDigits="2" /></td>
+  </tr>
+</table>
+
+<h2>Rate Limits</h2>
+<table>
+  <tr>
+    <th style="text-align: left;">Degraded Mode</th>
+    <td>${rateLimiter.degraded}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Mean Transaction Duration (ms)</th>
+    <td><fmt:formatNumber value="${rateLimiter.transactionLatencyMillis}" maxFractionDigits="2" /></td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Rejected Reading Requests</th>
+    <td>${rateLimiter.rejectedReadCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Rejected Writing Requests</th>
+    <td>${rateLimiter.rejectedWriteCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Buckets</th>
+    <td>${rateLimiter.bucketCount}</td>
+  </tr>
+</table>
+
+<h2>Group Commit</h2>
+<table>
+  <tr>
+    <th style="text-align: left;">Enabled</th>
+    <td>${groupCommitter.enabled}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Transactions</th>
+    <td>${groupCommitter.batchCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Writes</th>
+    <td>${groupCommitter.writeCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Mean Writes per Transaction</th>
+    <td><fmt:formatNumber value="${groupCommitter.meanBatchSize}" maxFractionDigits="2" /></td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Failed Transactions (Writes Repeated Separately)</th>
+    <td>${groupCommitter.fallbackCount}</td>
+  </tr>
+</table>
+
+<h2>Clean-up of Expired Objects</h2>
+<table>
+  <tr>
+    <th style="text-align: left;">Runs</th>
+    <td>${expiredWBOReaper.runCount}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Deleted Objects</th>
+    <td>${expiredWBOReaper.totalRowsReaped}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Total Duration (ms)</th>
+    <td>${expiredWBOReaper.totalDuration}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Objects Deleted by Last Run</th>
+    <td>${expiredWBOReaper.lastRunRowsReaped}</td>
+  </tr>
+  <tr>
+    <th style="text-align: left;">Duration of Last Run (ms)</th>
+    <td>${expiredWBOReaper.lastRunDuration}</td>
+  </tr>
+</table>
+
+<%@ include file="footer.jsp" %>
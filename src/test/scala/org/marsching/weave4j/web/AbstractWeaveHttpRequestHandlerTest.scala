@@ -0,0 +1,377 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import scala.collection.JavaConversions._
+
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.zip.GZIPOutputStream
+import javax.servlet.http.HttpServletResponse
+
+import org.junit.Assert._
+import org.junit.{Before, Test}
+import org.springframework.mock.web.MockHttpServletResponse
+
+/**
+ * Tests of the storage API, sending requests to the request handler. The
+ * tests are run for each database backend by the subclasses.
+ *
+ * @param backend name of the database backend
+ */
+abstract class AbstractWeaveHttpRequestHandlerTest(backend: String) {
+
+  protected var client: WeaveTestClient = null
+
+  @Before
+  def createUser() {
+    val handler = TestApplicationContexts.handler(backend)
+    client = new WeaveTestClient(handler, TestApplicationContexts.createUsername("handler"), "secret123")
+    assertEquals(HttpServletResponse.SC_OK, client.createUser().getStatus)
+  }
+
+  private def ids(response: MockHttpServletResponse): List[String] = {
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus)
+    client.json(response).getElements.map(_.getTextValue).toList
+  }
+
+  private def putSortIndexWBOs() {
+    val response = client.post("storage/bookmarks", "[" +
+      "{\"id\":\"a\",\"payload\":\"a\",\"sortindex\":3}," +
+      "{\"id\":\"b\",\"payload\":\"b\",\"sortindex\":1}," +
+      "{\"id\":\"c\",\"payload\":\"c\",\"sortindex\":2}," +
+      "{\"id\":\"d\",\"payload\":\"d\"}," +
+      "{\"id\":\"e\",\"payload\":\"e\"}]")
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus)
+  }
+
+  @Test
+  def userExists() {
+    val response = client.request("GET", "/user/1.0/" + client.username, authenticate = false)
+    assertEquals("1", response.getContentAsString)
+  }
+
+  @Test
+  def wrongPasswordIsRejected() {
+    val other = new WeaveTestClient(TestApplicationContexts.handler(backend), client.username, "wrong")
+    assertEquals(HttpServletResponse.SC_UNAUTHORIZED, other.get("info/collections").getStatus)
+  }
+
+  @Test
+  def rateLimitIsOnlyChargedAfterAuthentication() {
+    val rateLimiter = TestApplicationContexts.get(backend).getBean("requestRateLimiter").asInstanceOf[RequestRateLimiter]
+    rateLimiter.setReadRate(0.001)
+    rateLimiter.setReadBurst(1)
+    try {
+      val other = new WeaveTestClient(TestApplicationContexts.handler(backend), client.username, "wrong")
+      for (i <- 1 to 3) {
+        assertEquals(HttpServletResponse.SC_UNAUTHORIZED, other.get("info/collections").getStatus)
+      }
+      assertEquals(HttpServletResponse.SC_OK, client.get("info/collections").getStatus)
+      assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, client.get("info/collections").getStatus)
+    } finally {
+      rateLimiter.setReadRate(0)
+      rateLimiter.setReadBurst(100)
+    }
+  }
+
+  @Test
+  def putAndGetWBO() {
+    val put = client.put("storage/tabs/one", "{\"payload\":\"hello\",\"sortindex\":5}")
+    assertEquals(HttpServletResponse.SC_OK, put.getStatus)
+    val modified = put.getContentAsString
+
+    val wbo = client.json(client.get("storage/tabs/one"))
+    assertEquals("one", wbo.get("id").getTextValue)
+    assertEquals("hello", wbo.get("payload").getTextValue)
+    assertEquals(5, wbo.get("sortindex").getIntValue)
+    assertEquals(modified.toDouble, wbo.get("modified").getDoubleValue, 0.001)
+
+    assertEquals(HttpServletResponse.SC_NOT_FOUND, client.get("storage/tabs/two").getStatus)
+  }
+
+  @Test
+  def postUpdatesMetadata() {
+    // The usage is reported in KB.
+    val post = client.json(client.post("storage/tabs", "[{\"id\":\"one\",\"payload\":\"" + ("x" * 2048) + "\"},{\"id\":\"two\",\"payload\":\"" + ("x" * 1024) + "\"},{\"id\":\"three\",\"payload\":3}]"))
+    assertEquals(List("one", "two"), post.get("success").getElements.map(_.getTextValue).toList.sorted)
+    assertTrue(post.get("failed").has("three"))
+
+    assertEquals(List("one", "two"), ids(client.get("storage/tabs")).sorted)
+    assertEquals(2, client.json(client.get("info/collection_counts")).get("tabs").getIntValue)
+    assertEquals(3, client.json(client.get("info/collection_usage")).get("tabs").getLongValue)
+    assertTrue(client.json(client.get("info/collections")).has("tabs"))
+
+    // Replacing a WBO must not count it twice.
+    client.put("storage/tabs/one", "{\"payload\":\"1\"}")
+    assertEquals(2, client.json(client.get("info/collection_counts")).get("tabs").getIntValue)
+    assertEquals(1, client.json(client.get("info/collection_usage")).get("tabs").getLongValue)
+  }
+
+  @Test
+  def postWithTooManyObjectsIsRejected() {
+    val handler = TestApplicationContexts.handler(backend)
+    handler.setMaxPostObjects(2)
+    try {
+      val response = client.post("storage/tabs", "[{\"id\":\"one\",\"payload\":\"1\"},{\"id\":\"two\",\"payload\":\"2\"},{\"id\":\"three\",\"payload\":\"3\"}]")
+      assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus)
+      assertEquals("17", response.getContentAsString.trim)
+      assertEquals(HttpServletResponse.SC_NOT_FOUND, client.get("storage/tabs/one").getStatus)
+    } finally {
+      handler.setMaxPostObjects(0)
+    }
+  }
+
+  @Test
+  def rejectedPostStoresNoChunk() {
+    val handler = TestApplicationContexts.handler(backend)
+    handler.setMaxPostObjects(2)
+    handler.setPostChunkSize(1)
+    try {
+      val response = client.post("storage/tabs", "[{\"id\":\"one\",\"payload\":\"1\"},{\"id\":\"two\",\"payload\":\"2\"},{\"id\":\"three\",\"payload\":\"3\"}]")
+      assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus)
+      assertEquals(HttpServletResponse.SC_NOT_FOUND, client.get("storage/tabs/one").getStatus)
+      assertEquals(HttpServletResponse.SC_NOT_FOUND, client.get("storage/tabs/two").getStatus)
+    } finally {
+      handler.setMaxPostObjects(0)
+      handler.setPostChunkSize(100)
+    }
+  }
+
+  @Test
+  def deleteWBO() {
+    client.put("storage/tabs/one", "{\"payload\":\"hello\"}")
+    client.put("storage/tabs/two", "{\"payload\":\"hello\"}")
+    assertEquals(HttpServletResponse.SC_OK, client.delete("storage/tabs/one").getStatus)
+    assertEquals(List("two"), ids(client.get("storage/tabs")))
+    assertEquals(1, client.json(client.get("info/collection_counts")).get("tabs").getIntValue)
+  }
+
+  @Test
+  def reaperDeletesExpiredWBOs() {
+    client.put("storage/tabs/one", "{\"payload\":\"hello\"}")
+    client.put("storage/tabs/two", "{\"payload\":\"hello\",\"ttl\":0}")
+    // The TTL is stored in seconds and expires after the current second.
+    val putSeconds = WeaveTimestamps.currentTime / 100
+    while (WeaveTimestamps.currentTime / 100 <= putSeconds) {
+      Thread.sleep(10)
+    }
+    val reaper = TestApplicationContexts.get(backend).getBean("expiredWBOReaper").asInstanceOf[ExpiredWBOReaper]
+    assertTrue(reaper.reap() >= 1)
+    assertEquals(List("one"), ids(client.get("storage/tabs")))
+    assertEquals(1, client.json(client.get("info/collection_counts")).get("tabs").getIntValue)
+  }
+
+  @Test
+  def writeWaitingTooLongForUserLockIsRejected() {
+    client.put("storage/tabs/one", "{\"payload\":\"hello\"}")
+    val userLocks = TestApplicationContexts.get(backend).getBean("userLocks").asInstanceOf[UserLockManager]
+    userLocks.setMaxWaitTime(100)
+    val locked = new CountDownLatch(1)
+    val release = new CountDownLatch(1)
+    val holder = new Thread {
+      override def run() {
+        userLocks.withWriteLock(client.username) {
+          locked.countDown()
+          release.await()
+        }
+      }
+    }
+    holder.start()
+    try {
+      locked.await()
+      val response = client.put("storage/tabs/two", "{\"payload\":\"hello\"}")
+      assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus)
+      assertEquals("30", response.getHeader("Retry-After"))
+      // Reading requests do not wait for the lock.
+      assertEquals(List("one"), ids(client.get("storage/tabs")))
+    } finally {
+      release.countDown()
+      holder.join()
+      userLocks.setMaxWaitTime(10000)
+    }
+  }
+
+  @Test
+  def sortByIndexPutsWBOsWithoutIndexLast() {
+    putSortIndexWBOs()
+    assertEquals(List("a", "c", "b", "e", "d"), ids(client.get("storage/bookmarks?sort=index")))
+    assertEquals(List("a", "c", "b", "e", "d"), client.json(client.get("storage/bookmarks?sort=index&full=1")).getElements.map(_.get("id").getTextValue).toList)
+    assertEquals(List("a", "c"), ids(client.get("storage/bookmarks?sort=index&index_above=1")))
+    assertEquals(List("b"), ids(client.get("storage/bookmarks?sort=index&index_below=2")))
+  }
+
+  @Test
+  def sortByIndexWithOffset() {
+    putSortIndexWBOs()
+    assertEquals(List("c", "b"), ids(client.get("storage/bookmarks?sort=index&limit=2&offset=1")))
+    assertEquals(List("b", "e"), ids(client.get("storage/bookmarks?sort=index&limit=2&offset=2")))
+    assertEquals(List("e", "d"), ids(client.get("storage/bookmarks?sort=index&limit=2&offset=3")))
+    assertEquals(List("d"), ids(client.get("storage/bookmarks?sort=index&offset=4")))
+    assertEquals(HttpServletResponse.SC_NOT_FOUND, client.get("storage/bookmarks?sort=index&offset=5").getStatus)
+  }
+
+  @Test
+  def sortByIndexWithCursor() {
+    putSortIndexWBOs()
+    for (full <- List("", "&full=1")) {
+      var pages = List.empty[List[String]]
+      var offset: String = null
+      do {
+        val response = client.get("storage/bookmarks?sort=index&limit=2" + full + (if (offset != null) "&offset=" + offset else ""))
+        val page = if (full.isEmpty) ids(response) else client.json(response).getElements.map(_.get("id").getTextValue).toList
+        pages :+= page
+        offset = response.getHeader("X-Weave-Next-Offset").asInstanceOf[String]
+      } while (offset != null)
+      assertEquals(List(List("a", "c"), List("b", "e"), List("d")), pages)
+    }
+  }
+
+  @Test
+  def deleteSortedByIndex() {
+    putSortIndexWBOs()
+    assertEquals(HttpServletResponse.SC_OK, client.delete("storage/bookmarks?sort=index&limit=4").getStatus)
+    assertEquals(List("d"), ids(client.get("storage/bookmarks")))
+    assertEquals(1, client.json(client.get("info/collection_counts")).get("bookmarks").getIntValue)
+  }
+
+  @Test
+  def conditionalGet() {
+    client.put("storage/tabs/one", "{\"payload\":\"hello\"}")
+    for (path <- List("info/collections", "storage/tabs")) {
+      val first = client.get(path)
+      val entityTag = first.getHeader("ETag").asInstanceOf[String]
+      assertNotNull(entityTag)
+      assertEquals(HttpServletResponse.SC_NOT_MODIFIED, client.get(path, Map("If-None-Match" -> entityTag)).getStatus)
+      assertEquals(HttpServletResponse.SC_NOT_MODIFIED, client.get(path, Map("X-If-Modified-Since" -> first.getHeader("X-Last-Modified").asInstanceOf[String])).getStatus)
+    }
+    val entityTag = client.get("info/collections").getHeader("ETag").asInstanceOf[String]
+    Thread.sleep(20)
+    client.put("storage/tabs/two", "{\"payload\":\"hello\"}")
+    assertEquals(HttpServletResponse.SC_OK, client.get("info/collections", Map("If-None-Match" -> entityTag)).getStatus)
+  }
+
+  @Test
+  def deletingCollectionChangesEntityTag() {
+    client.put("storage/tabs/one", "{\"payload\":\"hello\"}")
+    client.put("storage/forms/one", "{\"payload\":\"hello\"}")
+    val entityTag = client.get("info/collections").getHeader("ETag").asInstanceOf[String]
+    Thread.sleep(20)
+    assertEquals(HttpServletResponse.SC_OK, client.delete("storage/tabs").getStatus)
+    val response = client.get("info/collection_counts", Map("If-None-Match" -> entityTag))
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus)
+    assertFalse(client.json(response).has("tabs"))
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, client.get("storage/forms", Map("If-None-Match" -> response.getHeader("ETag").asInstanceOf[String])).getStatus)
+  }
+
+  @Test
+  def deleteWithOutdatedPreconditionFails() {
+    client.put("storage/tabs/one", "{\"payload\":\"hello\"}")
+    val response = client.delete("storage/tabs/one", Map("X-If-Unmodified-Since" -> "1.00"))
+    assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, response.getStatus)
+    assertEquals("hello", client.json(client.get("storage/tabs/one")).get("payload").getTextValue)
+  }
+
+  private def gzip(body: String): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream
+    val out = new GZIPOutputStream(bytes)
+    out.write(body.getBytes("UTF-8"))
+    out.close()
+    bytes.toByteArray
+  }
+
+  @Test
+  def compressedBody() {
+    val path = "/1.1/" + client.username + "/storage/tabs/one"
+    val response = client.request("PUT", path, headers = Map("Content-Encoding" -> "gzip"), content = gzip("{\"payload\":\"hello\"}"))
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus)
+    assertEquals("hello", client.json(client.get("storage/tabs/one")).get("payload").getTextValue)
+  }
+
+  @Test
+  def compressedResponse() {
+    val handler = TestApplicationContexts.handler(backend)
+    handler.setCompressionThreshold(100)
+    try {
+      val payload = "x" * 200
+      client.put("storage/tabs/small", "{\"payload\":\"hello\"}")
+      client.put("storage/tabs/large", "{\"payload\":\"" + payload + "\"}")
+      val headers = Map("Accept-Encoding" -> "gzip")
+
+      // Bodies below the threshold are sent uncompressed with their length.
+      val small = client.get("storage/tabs/small", headers)
+      assertEquals(HttpServletResponse.SC_OK, small.getStatus)
+      assertNull(small.getHeader("Content-Encoding"))
+      assertEquals("Accept-Encoding", small.getHeader("Vary"))
+      assertEquals(small.getContentAsByteArray.length, small.getContentLength)
+
+      val large = client.get("storage/tabs/large", headers)
+      assertEquals(HttpServletResponse.SC_OK, large.getStatus)
+      assertEquals("gzip", large.getHeader("Content-Encoding"))
+      assertEquals("Accept-Encoding", large.getHeader("Vary"))
+      val in = new java.util.zip.GZIPInputStream(new java.io.ByteArrayInputStream(large.getContentAsByteArray))
+      val body = scala.io.Source.fromInputStream(in, "UTF-8").mkString
+      assertTrue(body.contains("\"payload\":\"" + payload + "\""))
+    } finally {
+      handler.setCompressionThreshold(1024)
+    }
+  }
+
+  @Test
+  def decompressedSizeIsLimited() {
+    val handler = TestApplicationContexts.handler(backend)
+    handler.setMaxDecompressedBytes(1024)
+    try {
+      val body = "{\"payload\":\"" + ("x" * 2048) + "\"}"
+      val path = "/1.1/" + client.username + "/storage/tabs/one"
+      val response = client.request("PUT", path, headers = Map("Content-Encoding" -> "gzip"), content = gzip(body))
+      assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus)
+      assertEquals("17", response.getContentAsString.trim)
+      assertEquals(HttpServletResponse.SC_NOT_FOUND, client.get("storage/tabs/one").getStatus)
+    } finally {
+      handler.setMaxDecompressedBytes(16L * 1024L * 1024L)
+    }
+  }
+
+  @Test
+  def legacyModifiedColumnIsKeptInSync() {
+    val context = TestApplicationContexts.get(backend)
+    val dataSource = context.getBean("dataSource").asInstanceOf[javax.sql.DataSource]
+    val id = "legacy-" + client.username
+    client.put("storage/tabs/" + id, "{\"payload\":\"hello\"}")
+
+    val connection = dataSource.getConnection
+    try {
+      val statement = connection.createStatement
+      try {
+        val resultSet = statement.executeQuery("SELECT modified, modified_cs FROM weave_wbo WHERE wbo_id = '" + id + "'")
+        assertTrue(resultSet.next())
+        assertEquals(WeaveTimestamps.toSeconds(resultSet.getLong(2)), resultSet.getBigDecimal(1).setScale(2))
+        resultSet.close()
+        // An earlier version only writes the old column.
+        statement.executeUpdate("UPDATE weave_wbo SET modified = 1234.56 WHERE wbo_id = '" + id + "'")
+      } finally {
+        statement.close()
+      }
+    } finally {
+      connection.close()
+    }
+    context.getBean("databaseMaintenance").asInstanceOf[DatabaseMaintenance].init()
+    assertEquals(1234.56, client.json(client.get("storage/tabs/" + id)).get("modified").getDoubleValue, 0.001)
+  }
+}
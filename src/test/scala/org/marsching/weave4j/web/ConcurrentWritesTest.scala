@@ -0,0 +1,125 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+import javax.servlet.http.HttpServletResponse
+import javax.sql.DataSource
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Sends concurrent writing requests for a single user and checks that the
+ * metadata stored with the collection matches the stored WBOs afterwards.
+ * The test uses the h2 backend, which does not lock whole tables, so that
+ * the requests are only serialized by the user locks.
+ */
+class ConcurrentWritesTest {
+
+  private val Backend = "h2"
+  private val Threads = 16
+  private val RequestsPerThread = 20
+
+  /**
+   * Sends PUT, POST and DELETE requests from several threads. The
+   * identifiers overlap, so that WBOs are created, replaced and deleted
+   * concurrently.
+   */
+  private def sendConcurrentWrites(client: WeaveTestClient) {
+    val executor = Executors.newFixedThreadPool(Threads)
+    try {
+      val futures = (0 until Threads).map { thread =>
+        executor.submit(new Callable[List[Int]] {
+          def call(): List[Int] = {
+            (0 until RequestsPerThread).toList.map { i =>
+              val id = "wbo" + ((thread + i) % 10)
+              val payload = "x" * (100 * (1 + (thread * i) % 7))
+              val response = i % 4 match {
+                case 0 | 1 => client.put("storage/tabs/" + id, "{\"payload\":\"" + payload + "\"}")
+                case 2 => client.post("storage/tabs", "[{\"id\":\"" + id + "\",\"payload\":\"" + payload + "\"},{\"id\":\"p" + thread + "\",\"payload\":\"" + payload + "\"}]")
+                case 3 => client.delete("storage/tabs/" + id)
+              }
+              response.getStatus
+            }
+          }
+        })
+      }
+      for (future <- futures; status <- future.get(60, TimeUnit.SECONDS)) {
+        assertEquals(HttpServletResponse.SC_OK, status)
+      }
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  private def assertMetadataMatchesWBOs(username: String) {
+    val dataSource = TestApplicationContexts.get(Backend).getBean("dataSource").asInstanceOf[DataSource]
+    val connection = dataSource.getConnection
+    try {
+      val statement = connection.prepareStatement("SELECT c.wbo_count, c.payload_size, " +
+        "(SELECT COUNT(*) FROM weave_wbo w WHERE w.collection_id = c.collection_id), " +
+        "(SELECT COALESCE(SUM(w.payload_size), 0) FROM weave_wbo w WHERE w.collection_id = c.collection_id) " +
+        "FROM weave_collection c JOIN weave_user u ON u.user_id = c.user_id WHERE u.username = ?")
+      try {
+        statement.setString(1, username)
+        val resultSet = statement.executeQuery()
+        assertTrue(resultSet.next())
+        assertTrue(resultSet.getLong(3) > 0)
+        assertEquals("wbo_count", resultSet.getLong(3), resultSet.getLong(1))
+        assertEquals("payload_size", resultSet.getLong(4), resultSet.getLong(2))
+        assertFalse(resultSet.next())
+        resultSet.close()
+      } finally {
+        statement.close()
+      }
+    } finally {
+      connection.close()
+    }
+  }
+
+  private def createClient(): WeaveTestClient = {
+    val client = new WeaveTestClient(TestApplicationContexts.handler(Backend), TestApplicationContexts.createUsername("concurrent"), "secret123")
+    assertEquals(HttpServletResponse.SC_OK, client.createUser().getStatus)
+    client
+  }
+
+  @Test
+  def concurrentWrites() {
+    val client = createClient()
+    sendConcurrentWrites(client)
+    assertMetadataMatchesWBOs(client.username)
+  }
+
+  @Test
+  def concurrentWritesWithGroupCommit() {
+    val groupCommitter = TestApplicationContexts.get(Backend).getBean("groupCommitter").asInstanceOf[GroupCommitter]
+    groupCommitter.setEnabled(true)
+    groupCommitter.start()
+    try {
+      val client = createClient()
+      sendConcurrentWrites(client)
+      assertMetadataMatchesWBOs(client.username)
+      assertTrue(groupCommitter.getWriteCount > 0)
+    } finally {
+      groupCommitter.stop()
+      groupCommitter.setEnabled(false)
+    }
+  }
+}
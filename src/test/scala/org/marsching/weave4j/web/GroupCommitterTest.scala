@@ -0,0 +1,125 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+import org.junit.Assert._
+import org.junit.{After, Test}
+
+/**
+ * Tests of {@link GroupCommitter}.
+ */
+class GroupCommitterTest {
+
+  private val platformTransactionManager = new StubPlatformTransactionManager
+  private val groupCommitter = new GroupCommitter
+
+  private def start(enabled: Boolean, lingerTime: Long, maxBatchSize: Int) {
+    val transactionManager = new TransactionManager
+    transactionManager.setPlatformTransactionManager(platformTransactionManager)
+    groupCommitter.setTransactionManager(transactionManager)
+    groupCommitter.setEnabled(enabled)
+    groupCommitter.setLingerTime(lingerTime)
+    groupCommitter.setMaxBatchSize(maxBatchSize)
+    groupCommitter.start()
+  }
+
+  @After
+  def stop() {
+    groupCommitter.stop()
+  }
+
+  /**
+   * Executes writes concurrently, so that they end up in the same batch.
+   * A value starting with "fail" makes the write throw an exception after
+   * it has written the value.
+   *
+   * @return the exception thrown for each value or <code>null</code>
+   */
+  private def executeConcurrently(values: String*): Map[String, Throwable] = {
+    val executor = Executors.newFixedThreadPool(values.size)
+    try {
+      val futures = values.map { value =>
+        value -> executor.submit(new Callable[Throwable] {
+          def call(): Throwable = {
+            try {
+              groupCommitter.execute {
+                platformTransactionManager.write(value)
+                if (value.startsWith("fail")) {
+                  throw new IllegalArgumentException(value)
+                }
+              }
+              null
+            } catch {
+              case e: Throwable => e
+            }
+          }
+        })
+      }
+      futures.map { case (value, future) => value -> future.get(10, TimeUnit.SECONDS) }.toMap
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  @Test
+  def writesAreCommittedTogether() {
+    start(true, 10000, 3)
+    val errors = executeConcurrently("a", "b", "c")
+    assertTrue(errors.values.forall(_ == null))
+    assertEquals(Set("a", "b", "c"), platformTransactionManager.getCommitted.toSet)
+    assertEquals(1, groupCommitter.getBatchCount)
+    assertEquals(3, groupCommitter.getWriteCount)
+    assertEquals(0, groupCommitter.getFallbackCount)
+  }
+
+  @Test
+  def failedBatchFallsBackToSeparateTransactions() {
+    start(true, 10000, 3)
+    val errors = executeConcurrently("a", "fail", "c")
+    assertNull(errors("a"))
+    assertNull(errors("c"))
+    assertTrue(errors("fail").isInstanceOf[IllegalArgumentException])
+    // The writes of the rolled back batch must not be committed, the
+    // successful writes must be committed exactly once.
+    assertEquals(List("a", "c"), platformTransactionManager.getCommitted.sorted)
+    assertEquals(1, groupCommitter.getFallbackCount)
+    assertEquals(1, groupCommitter.getBatchCount)
+  }
+
+  @Test
+  def disabledCommitterUsesSeparateTransactions() {
+    start(false, 10000, 3)
+    val errors = executeConcurrently("a", "fail")
+    assertNull(errors("a"))
+    assertTrue(errors("fail").isInstanceOf[IllegalArgumentException])
+    assertEquals(List("a"), platformTransactionManager.getCommitted)
+    assertEquals(0, groupCommitter.getBatchCount)
+  }
+
+  @Test
+  def stoppedCommitterExecutesWritesDirectly() {
+    start(true, 10000, 3)
+    groupCommitter.stop()
+    assertFalse(groupCommitter.isEnabled)
+    // Without the background thread, writes are executed directly.
+    assertNull(executeConcurrently("a")("a"))
+    assertEquals(List("a"), platformTransactionManager.getCommitted)
+  }
+}
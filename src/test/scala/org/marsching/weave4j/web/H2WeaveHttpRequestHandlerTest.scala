@@ -0,0 +1,43 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import javax.servlet.http.HttpServletResponse
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Tests of the storage API with the h2 backend.
+ */
+class H2WeaveHttpRequestHandlerTest extends AbstractWeaveHttpRequestHandlerTest("h2") {
+
+  /**
+   * Unlike HSQLDB, H2 rejects identifiers longer than the column, which
+   * makes the flush of a POST request fail.
+   */
+  @Test
+  def failedPostIsRolledBack() {
+    client.put("storage/tabs/old", "{\"payload\":\"old\"}")
+    val response = client.post("storage/tabs", "[{\"id\":\"old\",\"payload\":\"new\"},{\"id\":\"new\",\"payload\":\"new\"},{\"id\":\"" + ("x" * 100) + "\",\"payload\":\"new\"}]")
+    assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.getStatus)
+    assertEquals("old", client.json(client.get("storage/tabs/old")).get("payload").getTextValue)
+    assertEquals(HttpServletResponse.SC_NOT_FOUND, client.get("storage/tabs/new").getStatus)
+    assertEquals(1, client.json(client.get("info/collection_counts")).get("tabs").getIntValue)
+  }
+}
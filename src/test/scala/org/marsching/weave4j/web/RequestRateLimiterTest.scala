@@ -0,0 +1,103 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.marsching.weave4j.web
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Tests of {@link RequestRateLimiter}.
+ */
+class RequestRateLimiterTest {
+
+  private def createLimiter(rate: Double, burst: Int): RequestRateLimiter = {
+    val limiter = new RequestRateLimiter
+    limiter.setReadRate(rate)
+    limiter.setReadBurst(burst)
+    limiter.setWriteRate(rate)
+    limiter.setWriteBurst(burst)
+    limiter
+  }
+
+  @Test
+  def burstIsAdmitted() {
+    val limiter = createLimiter(1, 3)
+    for (i <- 1 to 3) {
+      assertEquals(0, limiter.acquire("alice", true))
+    }
+    val retryAfter = limiter.acquire("alice", true)
+    assertTrue(retryAfter >= 1 && retryAfter <= 2)
+    assertEquals(1, limiter.getRejectedWriteCount)
+    assertEquals(0, limiter.getRejectedReadCount)
+  }
+
+  @Test
+  def bucketsAreSeparate() {
+    val limiter = createLimiter(1, 1)
+    assertEquals(0, limiter.acquire("alice", true))
+    assertEquals(0, limiter.acquire("alice", false))
+    assertEquals(0, limiter.acquire("bob", true))
+    assertTrue(limiter.acquire("ALICE", true) > 0)
+    assertTrue(limiter.acquire("alice", false) > 0)
+    assertEquals(3, limiter.getBucketCount)
+  }
+
+  @Test
+  def bucketIsRefilled() {
+    val limiter = createLimiter(100, 1)
+    assertEquals(0, limiter.acquire("alice", false))
+    assertTrue(limiter.acquire("alice", false) > 0)
+    Thread.sleep(50)
+    assertEquals(0, limiter.acquire("alice", false))
+  }
+
+  @Test
+  def rateZeroDisablesLimit() {
+    val limiter = createLimiter(0, 1)
+    for (i <- 1 to 100) {
+      assertEquals(0, limiter.acquire("alice", true))
+    }
+    assertEquals(0, limiter.getBucketCount)
+  }
+
+  @Test
+  def slowTransactionsDegradeServer() {
+    val limiter = new RequestRateLimiter
+    limiter.setLatencyThreshold(100)
+    assertFalse(limiter.isDegraded)
+    for (i <- 1 to 100) {
+      limiter.recordTransaction(500L * 1000000L)
+    }
+    assertTrue(limiter.isDegraded)
+    for (i <- 1 to 100) {
+      limiter.recordTransaction(1000000L)
+    }
+    assertFalse(limiter.isDegraded)
+  }
+
+  @Test
+  def thresholdZeroDisablesDegradedMode() {
+    val limiter = new RequestRateLimiter
+    limiter.setLatencyThreshold(0)
+    for (i <- 1 to 100) {
+      limiter.recordTransaction(10000L * 1000000L)
+    }
+    assertFalse(limiter.isDegraded)
+  }
+}
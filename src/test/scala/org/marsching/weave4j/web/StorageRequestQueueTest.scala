@@ -0,0 +1,142 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.marsching.weave4j.web
+
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Tests of {@link StorageRequestQueue}.
+ */
+class StorageRequestQueueTest {
+
+  private def createQueue(maxConcurrentRequests: Int, maxQueueLength: Int, maxWaitTime: Long): StorageRequestQueue = {
+    val queue = new StorageRequestQueue
+    queue.setMaxConcurrentRequests(maxConcurrentRequests)
+    queue.setMaxQueueLength(maxQueueLength)
+    queue.setMaxWaitTime(maxWaitTime)
+    queue.init()
+    queue
+  }
+
+  /**
+   * Calls {@link StorageRequestQueue#enter} in another thread, so that
+   * it can wait while the calling thread holds a permit.
+   */
+  private def enterInBackground(queue: StorageRequestQueue): java.util.concurrent.Future[Boolean] = {
+    val executor = Executors.newSingleThreadExecutor
+    try {
+      executor.submit(new Callable[Boolean] {
+        def call(): Boolean = queue.enter()
+      })
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  private def waitForQueueLength(queue: StorageRequestQueue, length: Int) {
+    val deadline = System.currentTimeMillis + 5000
+    while (queue.getQueueLength != length && System.currentTimeMillis < deadline) {
+      Thread.sleep(5)
+    }
+    assertEquals(length, queue.getQueueLength)
+  }
+
+  @Test
+  def enterAndLeave() {
+    val queue = createQueue(2, 0, 0)
+    assertTrue(queue.enter())
+    assertTrue(queue.enter())
+    assertEquals(2, queue.getActiveRequests)
+    queue.leave()
+    queue.leave()
+    assertEquals(0, queue.getActiveRequests)
+    assertEquals(2, queue.getAdmittedCount)
+  }
+
+  @Test
+  def waitingRequestIsAdmittedAfterLeave() {
+    val queue = createQueue(1, 1, 10000)
+    assertTrue(queue.enter())
+    val waiting = enterInBackground(queue)
+    waitForQueueLength(queue, 1)
+    queue.leave()
+    assertTrue(waiting.get(5, TimeUnit.SECONDS))
+    assertEquals(0, queue.getQueueLength)
+    assertEquals(1, queue.getActiveRequests)
+    assertEquals(0, queue.getTimedOutCount)
+  }
+
+  @Test
+  def newRequestDoesNotOvertakeWaitingRequest() {
+    // Whether a new request would overtake depends on the timing of the
+    // threads, so the test is repeated.
+    for (i <- 1 to 5) {
+      val queue = createQueue(1, 2, 100)
+      assertTrue(queue.enter())
+      val waiting = enterInBackground(queue)
+      waitForQueueLength(queue, 1)
+      // The queue length is increased before the request starts waiting
+      // for the semaphore.
+      Thread.sleep(20)
+      queue.leave()
+      assertFalse(queue.enter())
+      assertTrue(waiting.get(5, TimeUnit.SECONDS))
+      assertEquals(1, queue.getTimedOutCount)
+      assertEquals(1, queue.getActiveRequests)
+    }
+  }
+
+  @Test
+  def waitingRequestTimesOut() {
+    val queue = createQueue(1, 1, 50)
+    assertTrue(queue.enter())
+    assertFalse(enterInBackground(queue).get(5, TimeUnit.SECONDS))
+    assertEquals(1, queue.getTimedOutCount)
+    assertEquals(0, queue.getRejectedCount)
+    assertEquals(0, queue.getQueueLength)
+    assertEquals(1, queue.getActiveRequests)
+  }
+
+  @Test
+  def requestIsRejectedIfQueueIsFull() {
+    val queue = createQueue(1, 1, 10000)
+    assertTrue(queue.enter())
+    val waiting = enterInBackground(queue)
+    waitForQueueLength(queue, 1)
+    assertFalse(queue.enter())
+    assertEquals(1, queue.getRejectedCount)
+    queue.leave()
+    assertTrue(waiting.get(5, TimeUnit.SECONDS))
+    queue.leave()
+    assertEquals(0, queue.getActiveRequests)
+    assertEquals(2, queue.getAdmittedCount)
+  }
+
+  @Test
+  def unlimitedQueue() {
+    val queue = createQueue(0, 0, 0)
+    for (i <- 1 to 100) {
+      assertTrue(queue.enter())
+    }
+    assertEquals(100, queue.getActiveRequests)
+    assertEquals(0, queue.getRejectedCount)
+  }
+}
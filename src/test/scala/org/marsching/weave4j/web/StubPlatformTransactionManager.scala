@@ -0,0 +1,85 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.marsching.weave4j.web
+
+import org.springframework.transaction.{PlatformTransactionManager, TransactionDefinition, TransactionStatus}
+import org.springframework.transaction.support.SimpleTransactionStatus
+
+/**
+ * Platform transaction manager that does not access a database. Nested
+ * calls join the outer transaction of the same thread, like a real
+ * transaction manager does for propagation REQUIRED. Values written with
+ * {@link #write} become visible in {@link #getCommitted} when the
+ * transaction is committed and are discarded when it is rolled back.
+ */
+class StubPlatformTransactionManager extends PlatformTransactionManager {
+
+  private val depth = new ThreadLocal[Int] {
+    override def initialValue = 0
+  }
+  private val written = new ThreadLocal[List[String]] {
+    override def initialValue = Nil
+  }
+  private var committed = List[String]()
+
+  def getTransaction(definition: TransactionDefinition): TransactionStatus = {
+    depth.set(depth.get + 1)
+    new SimpleTransactionStatus(depth.get == 1)
+  }
+
+  def commit(status: TransactionStatus) {
+    if (status.isNewTransaction) {
+      synchronized {
+        committed = committed ::: written.get.reverse
+      }
+    }
+    complete(status)
+  }
+
+  def rollback(status: TransactionStatus) {
+    complete(status)
+  }
+
+  private def complete(status: TransactionStatus) {
+    status.asInstanceOf[SimpleTransactionStatus].setCompleted()
+    depth.set(depth.get - 1)
+    if (status.isNewTransaction) {
+      written.remove()
+    }
+  }
+
+  /**
+   * Writes a value within the current transaction.
+   *
+   * @param value value to write
+   */
+  def write(value: String) {
+    if (depth.get == 0) {
+      throw new IllegalStateException("No transaction")
+    }
+    written.set(value :: written.get)
+  }
+
+  /**
+   * Returns the values written by committed transactions.
+   *
+   * @return values in the order they have been committed
+   */
+  def getCommitted: List[String] = synchronized(committed)
+}
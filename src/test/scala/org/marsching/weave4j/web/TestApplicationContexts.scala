@@ -0,0 +1,127 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.io.File
+import java.util.Properties
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.springframework.beans.factory.config.PropertyOverrideConfigurer
+import org.springframework.context.ApplicationContext
+import org.springframework.context.support.FileSystemXmlApplicationContext
+import org.springframework.core.io.{FileSystemResource, Resource}
+
+/**
+ * Application contexts for tests. The contexts are created from the
+ * configuration files of the web application, with an in-memory database of
+ * the requested backend. The rate limiter is disabled, so that tests can send
+ * requests as fast as they like.
+ *
+ * <p>Creating a context takes a while, so there is one context per backend,
+ * which is shared by all tests. Tests using a context create their own
+ * users, so that they do not see the data of other tests.</p>
+ */
+object TestApplicationContexts {
+
+  /**
+   * Directory containing the web application.
+   */
+  private val WebappDirectory = new File("src/main/webapp")
+
+  private val databaseCounter = new AtomicInteger
+  private val userCounter = new AtomicInteger
+  private var contexts = Map.empty[String, ApplicationContext]
+
+  /**
+   * Context of the storage API servlet (root-servlet.xml), whose parent is
+   * the application context (applicationContext.xml).
+   */
+  private class WebappContext(configLocation: String, parent: ApplicationContext)
+      extends FileSystemXmlApplicationContext(Array(configLocation), false, parent) {
+
+    override protected def getResourceByPath(path: String): Resource = {
+      new FileSystemResource(new File(WebappDirectory, path))
+    }
+  }
+
+  /**
+   * Returns the context of the storage API servlet for a backend. The context
+   * is created on the first call and closed when the JVM exits.
+   *
+   * @param backend name of the database backend (<code>hsqldb</code> or
+   *    <code>h2</code>)
+   * @return context of the storage API servlet
+   */
+  def get(backend: String): ApplicationContext = synchronized {
+    contexts.get(backend) match {
+      case Some(context) => context
+      case None => {
+        val context = create(backend)
+        contexts += backend -> context
+        context
+      }
+    }
+  }
+
+  /**
+   * Returns the request handler of the storage API for a backend.
+   *
+   * @param backend name of the database backend
+   * @return request handler
+   */
+  def handler(backend: String): WeaveHttpRequestHandler = {
+    get(backend).getBean("weaveHttpRequestHandler").asInstanceOf[WeaveHttpRequestHandler]
+  }
+
+  /**
+   * Returns a username that has not been used by another test yet.
+   *
+   * @param prefix prefix of the username
+   * @return username
+   */
+  def createUsername(prefix: String): String = prefix + userCounter.incrementAndGet
+
+  private def create(backend: String): ApplicationContext = {
+    val database = "weave4j-test-" + databaseCounter.incrementAndGet
+    val url = backend match {
+      case "hsqldb" => "jdbc:hsqldb:mem:" + database
+      case "h2" => "jdbc:h2:mem:" + database + ";MVCC=TRUE;DB_CLOSE_DELAY=-1"
+      case _ => throw new IllegalArgumentException("Unsupported database backend \"" + backend + "\"")
+    }
+    val overrides = new Properties
+    overrides.setProperty("databaseBackend.backend", backend)
+    overrides.setProperty("databaseBackend.url", url)
+    overrides.setProperty("requestRateLimiter.readRate", "0")
+    overrides.setProperty("requestRateLimiter.writeRate", "0")
+    val configurer = new PropertyOverrideConfigurer
+    configurer.setProperties(overrides)
+
+    val root = new WebappContext("WEB-INF/applicationContext.xml", null)
+    root.addBeanFactoryPostProcessor(configurer)
+    root.refresh()
+    val servlet = new WebappContext("WEB-INF/root-servlet.xml", root)
+    servlet.refresh()
+    Runtime.getRuntime.addShutdownHook(new Thread {
+      override def run() {
+        servlet.close()
+        root.close()
+      }
+    })
+    servlet
+  }
+}
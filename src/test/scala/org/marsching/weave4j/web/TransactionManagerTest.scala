@@ -0,0 +1,62 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.marsching.weave4j.web
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Tests of {@link TransactionManager}.
+ */
+class TransactionManagerTest {
+
+  private class CountingRateLimiter extends RequestRateLimiter {
+    var durations = List[Long]()
+    override def recordTransaction(durationNanos: Long) {
+      durations = durationNanos :: durations
+    }
+  }
+
+  @Test
+  def onlyOutermostTransactionIsRecorded() {
+    val rateLimiter = new CountingRateLimiter
+    val transactionManager = new TransactionManager
+    transactionManager.setPlatformTransactionManager(new StubPlatformTransactionManager)
+    transactionManager.setRateLimiter(rateLimiter)
+    transactionManager.withReadWriteTransaction {
+      transactionManager.withReadOnlyTransaction {
+        ()
+      }
+    }
+    assertEquals(1, rateLimiter.durations.size)
+  }
+
+  @Test
+  def timeWithinTransactionIsNotRecorded() {
+    val rateLimiter = new CountingRateLimiter
+    val transactionManager = new TransactionManager
+    transactionManager.setPlatformTransactionManager(new StubPlatformTransactionManager)
+    transactionManager.setRateLimiter(rateLimiter)
+    transactionManager.withReadWriteTransaction {
+      Thread.sleep(100)
+    }
+    assertEquals(1, rateLimiter.durations.size)
+    assertTrue(rateLimiter.durations.head < 50L * 1000000L)
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.marsching.weave4j.web
+
+import org.junit.Assert._
+import org.junit.Test
+import org.marsching.weave4j.dbo.WBOCursor
+import org.marsching.weave4j.dbo.WeaveStorageDAO.SortOrder
+import org.springframework.mock.web.MockHttpServletRequest
+
+/**
+ * Tests of {@link WBOQuery#parse}.
+ */
+class WBOQueryTest {
+
+  private def parse(parameters: (String, String)*): WBOQuery = {
+    val request = new MockHttpServletRequest("GET", "/1.1/user/storage/tabs")
+    for ((name, value) <- parameters) {
+      request.addParameter(name, value)
+    }
+    WBOQuery.parse(request)
+  }
+
+  @Test
+  def emptyQuery() {
+    val query = parse()
+    assertNotNull(query)
+    assertNull(query.getIds)
+    assertNull(query.getSortOrder)
+    assertNull(query.getLimit)
+    assertNull(query.getOffset)
+    assertNull(query.getAfter)
+    assertFalse(query.isFull)
+    assertFalse(query.isRestricted)
+  }
+
+  @Test
+  def idsAreTrimmedAndEmptyIdsSkipped() {
+    val query = parse("ids" -> " a, b,,c ,")
+    assertEquals(java.util.Arrays.asList("a", "b", "c"), query.getIds)
+    assertTrue(query.isRestricted)
+  }
+
+  @Test
+  def simpleParameters() {
+    val query = parse("parentid" -> "p", "predecessorid" -> "q", "index_above" -> "5", "index_below" -> "10",
+      "limit" -> "20", "full" -> "1")
+    assertEquals("p", query.getParentId)
+    assertEquals("q", query.getPredecessorId)
+    assertEquals(5, query.getIndexAbove.intValue)
+    assertEquals(10, query.getIndexBelow.intValue)
+    assertEquals(20, query.getLimit.intValue)
+    assertTrue(query.isFull)
+    assertTrue(query.isRestricted)
+  }
+
+  @Test
+  def timestampsAreRoundedUp() {
+    val query = parse("newer" -> "1300000000.123", "older" -> "1300000001")
+    assertEquals(130000000013L, query.getModifiedSince.longValue)
+    assertEquals(130000000100L, query.getModifiedBefore.longValue)
+  }
+
+  @Test
+  def sortOrders() {
+    assertEquals(SortOrder.OLDEST, parse("sort" -> "oldest").getSortOrder)
+    assertEquals(SortOrder.NEWEST, parse("sort" -> "newest").getSortOrder)
+    assertEquals(SortOrder.INDEX, parse("sort" -> "index").getSortOrder)
+    assertNull(parse("sort" -> "unknown").getSortOrder)
+  }
+
+  @Test
+  def numericOffset() {
+    val query = parse("offset" -> "30")
+    assertEquals(30, query.getOffset.intValue)
+    assertNull(query.getAfter)
+  }
+
+  @Test
+  def cursorOffset() {
+    val token = new WBOCursor(SortOrder.INDEX, null, 42, "abc").encode()
+    val query = parse("sort" -> "index", "offset" -> token)
+    assertNull(query.getOffset)
+    assertEquals(SortOrder.INDEX, query.getAfter.getSortOrder)
+    assertEquals(42, query.getAfter.getSortIndex.intValue)
+    assertEquals("abc", query.getAfter.getId)
+    assertTrue(query.isRestricted)
+  }
+
+  @Test
+  def cursorOfOtherSortOrderIsRejected() {
+    val token = new WBOCursor(SortOrder.NEWEST, 130000000000L, null, "abc").encode()
+    assertNull(parse("sort" -> "oldest", "offset" -> token))
+    assertNull(parse("offset" -> token))
+  }
+
+  @Test
+  def invalidParametersAreRejected() {
+    assertNull(parse("limit" -> "ten"))
+    assertNull(parse("offset" -> "-x"))
+    assertNull(parse("newer" -> "yesterday"))
+    // Starts like a cursor, but cannot be decoded
+    assertNull(parse("sort" -> "index", "offset" -> "kxyz"))
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import org.codehaus.jackson.{JsonFactory, JsonParser, JsonToken}
+import org.junit.Assert._
+import org.junit.Test
+import org.marsching.weave4j.dbo.WeaveBasicObject
+
+/**
+ * Tests of {@link WBOUpdate}.
+ */
+class WBOUpdateTest {
+
+  private val jsonFactory = new JsonFactory
+
+  /**
+   * Creates a parser positioned at the start of the first object.
+   */
+  private def createParser(json: String): JsonParser = {
+    val parser = jsonFactory.createJsonParser(json)
+    var token = parser.nextToken()
+    while (token != JsonToken.START_OBJECT) {
+      token = parser.nextToken()
+    }
+    parser
+  }
+
+  private def read(json: String, includeTtl: Boolean = true): WBOUpdate = WBOUpdate.read(createParser(json), includeTtl)
+
+  @Test
+  def readAllFields() {
+    val update = read("{\"id\":\"abc\",\"parentid\":\"p\",\"predecessorid\":\"q\",\"sortindex\":7,\"payload\":\"data\",\"ttl\":60}")
+    assertEquals("abc", update.getId)
+    assertTrue(update.isValid)
+
+    val wbo = new WeaveBasicObject
+    update.applyTo(wbo, 123456L, 1234L)
+    assertEquals("p", wbo.getParentId)
+    assertEquals("q", wbo.getPredecessorId)
+    assertEquals(7, wbo.getSortIndex.intValue)
+    assertEquals("data", wbo.getPayload)
+    assertEquals(1294L, wbo.getTtl.longValue)
+    assertEquals(123456L, wbo.getModified)
+  }
+
+  @Test
+  def missingFieldsAreNotChanged() {
+    val wbo = new WeaveBasicObject
+    wbo.setParentId("p")
+    wbo.setSortIndex(3)
+    wbo.setPayload("old")
+    read("{\"sortindex\":null,\"payload\":null}").applyTo(wbo, 100L, 1L)
+    assertEquals("p", wbo.getParentId)
+    assertNull(wbo.getSortIndex)
+    assertEquals("old", wbo.getPayload)
+    assertEquals(100L, wbo.getModified)
+  }
+
+  @Test
+  def invalidFieldMarksUpdateInvalid() {
+    for (json <- List("{\"id\":\"abc\",\"payload\":1}", "{\"id\":\"abc\",\"sortindex\":\"1\"}", "{\"id\":\"abc\",\"parentid\":{\"a\":1}}", "{\"id\":\"abc\",\"ttl\":-1}")) {
+      val update = read(json)
+      assertFalse(json, update.isValid)
+      assertEquals(json, "abc", update.getId)
+    }
+    val update = read("{\"id\":5}")
+    assertFalse(update.isValid)
+    assertNull(update.getId)
+  }
+
+  @Test
+  def parserIsPositionedAtEndOfObject() {
+    val parser = createParser("[{\"id\":\"a\",\"unknown\":{\"nested\":[1,2]},\"sortindex\":[3],\"payload\":\"x\"},{\"id\":\"b\"}]")
+    val first = WBOUpdate.read(parser, true)
+    assertEquals("a", first.getId)
+    assertEquals(JsonToken.END_OBJECT, parser.getCurrentToken)
+    assertEquals(JsonToken.START_OBJECT, parser.nextToken())
+    assertEquals("b", WBOUpdate.read(parser, true).getId)
+  }
+
+  @Test
+  def ttlIsOnlyReadIfIncluded() {
+    val wbo = new WeaveBasicObject
+    read("{\"ttl\":60}", false).applyTo(wbo, 100L, 1L)
+    assertNull(wbo.getTtl)
+  }
+
+  @Test
+  def largeTtlNeverExpires() {
+    for (ttl <- List("9223372036854775807", "100000000000000000000000", "1e30")) {
+      val wbo = new WeaveBasicObject
+      val update = read("{\"ttl\":" + ttl + "}")
+      assertTrue(ttl, update.isValid)
+      update.applyTo(wbo, 100L, 1000L)
+      assertEquals(ttl, Long.MaxValue, wbo.getTtl.longValue)
+    }
+  }
+}
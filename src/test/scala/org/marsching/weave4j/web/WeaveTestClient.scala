@@ -0,0 +1,145 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import java.net.URLDecoder
+
+import org.apache.commons.codec.binary.Base64
+import org.codehaus.jackson.JsonNode
+import org.codehaus.jackson.map.ObjectMapper
+import org.springframework.mock.web.{MockHttpServletRequest, MockHttpServletResponse}
+
+/**
+ * Client sending requests of a user directly to the request handler of the
+ * storage API, without a servlet container.
+ *
+ * @param handler request handler
+ * @param username name of the user the requests are sent for
+ * @param password password of the user
+ */
+class WeaveTestClient(handler: WeaveHttpRequestHandler, val username: String, val password: String) {
+
+  private val objectMapper = new ObjectMapper
+
+  /**
+   * Sends a request.
+   *
+   * @param method HTTP method
+   * @param path path of the request, optionally followed by a query string
+   * @param body request body or <code>null</code>
+   * @param headers additional request headers
+   * @param content request body as bytes, used instead of <code>body</code>
+   * @param authenticate <code>false</code> to send the request without
+   *    credentials
+   * @return response
+   */
+  def request(method: String, path: String, body: String = null, headers: Map[String, String] = Map.empty, authenticate: Boolean = true, content: Array[Byte] = null): MockHttpServletResponse = {
+    val queryStart = path.indexOf('?')
+    val pathInfo = if (queryStart < 0) path else path.substring(0, queryStart)
+    val request = new MockHttpServletRequest(method, pathInfo)
+    request.setServletPath("")
+    request.setPathInfo(pathInfo)
+    if (queryStart >= 0) {
+      request.setQueryString(path.substring(queryStart + 1))
+      for (parameter <- path.substring(queryStart + 1).split("&") if parameter.length > 0) {
+        val separator = parameter.indexOf('=')
+        if (separator < 0) {
+          request.addParameter(URLDecoder.decode(parameter, "UTF-8"), "")
+        } else {
+          request.addParameter(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"), URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"))
+        }
+      }
+    }
+    if (authenticate) {
+      val credentials = new String(Base64.encodeBase64((username + ":" + password).getBytes("UTF-8")), "US-ASCII")
+      request.addHeader("Authorization", "Basic " + credentials)
+    }
+    for ((name, value) <- headers) {
+      request.addHeader(name, value)
+    }
+    if (body != null || content != null) {
+      request.setContentType("application/json")
+      request.setCharacterEncoding("UTF-8")
+      request.setContent(if (content != null) content else body.getBytes("UTF-8"))
+    }
+    val response = new MockHttpServletResponse
+    handler.handleRequest(request, response)
+    response
+  }
+
+  /**
+   * Creates the user through the user API.
+   *
+   * @return response
+   */
+  def createUser(): MockHttpServletResponse = {
+    request("PUT", "/user/1.0/" + username, "{\"password\":\"" + password + "\",\"email\":\"" + username + "@example.com\"}", authenticate = false)
+  }
+
+  /**
+   * Sends a GET request to the storage API.
+   *
+   * @param path path after the username, e.g. <code>storage/tabs</code>
+   * @return response
+   */
+  def get(path: String, headers: Map[String, String] = Map.empty): MockHttpServletResponse = {
+    request("GET", storagePath(path), headers = headers)
+  }
+
+  /**
+   * Sends a PUT request to the storage API.
+   *
+   * @param path path after the username
+   * @param body request body
+   * @return response
+   */
+  def put(path: String, body: String, headers: Map[String, String] = Map.empty): MockHttpServletResponse = {
+    request("PUT", storagePath(path), body, headers)
+  }
+
+  /**
+   * Sends a POST request to the storage API.
+   *
+   * @param path path after the username
+   * @param body request body
+   * @return response
+   */
+  def post(path: String, body: String, headers: Map[String, String] = Map.empty): MockHttpServletResponse = {
+    request("POST", storagePath(path), body, headers)
+  }
+
+  /**
+   * Sends a DELETE request to the storage API.
+   *
+   * @param path path after the username
+   * @return response
+   */
+  def delete(path: String, headers: Map[String, String] = Map.empty): MockHttpServletResponse = {
+    request("DELETE", storagePath(path), headers = headers)
+  }
+
+  /**
+   * Parses the body of a response.
+   *
+   * @param response response with a JSON body
+   * @return JSON document
+   */
+  def json(response: MockHttpServletResponse): JsonNode = objectMapper.readTree(response.getContentAsString)
+
+  private def storagePath(path: String): String = "/1.1/" + username + "/" + path
+}
@@ -0,0 +1,92 @@
+/*
+ * weave4j - Weave Server for Java
+ * Copyright (C) 2011  Sebastian Marsching
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.marsching.weave4j.web
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+ * Tests of {@link WeaveTimestamps}.
+ */
+class WeaveTimestampsTest {
+
+  private def assertInvalid(value: String) {
+    try {
+      WeaveTimestamps.parse(value, false)
+      fail("Parsed invalid timestamp " + value)
+    } catch {
+      case e: NumberFormatException =>
+    }
+  }
+
+  @Test
+  def format() {
+    assertEquals("0.00", WeaveTimestamps.format(0L))
+    assertEquals("0.05", WeaveTimestamps.format(5L))
+    assertEquals("1300000000.50", WeaveTimestamps.format(130000000050L))
+    assertEquals("1300000000.07", WeaveTimestamps.format(130000000007L))
+    assertEquals("-0.05", WeaveTimestamps.format(-5L))
+    assertEquals("-12.34", WeaveTimestamps.format(-1234L))
+  }
+
+  @Test
+  def parseWholeCentiseconds() {
+    for (roundUp <- List(true, false)) {
+      assertEquals(100L, WeaveTimestamps.parse("1", roundUp))
+      assertEquals(150L, WeaveTimestamps.parse("1.5", roundUp))
+      assertEquals(123L, WeaveTimestamps.parse("1.23", roundUp))
+      assertEquals(123L, WeaveTimestamps.parse("1.230000", roundUp))
+      assertEquals(100L, WeaveTimestamps.parse("1.", roundUp))
+      assertEquals(130000000050L, WeaveTimestamps.parse("1300000000.50", roundUp))
+      assertEquals(10000L, WeaveTimestamps.parse("1e2", roundUp))
+      assertEquals(150L, WeaveTimestamps.parse(" 1.5 ", roundUp))
+      assertEquals(-150L, WeaveTimestamps.parse("-1.5", roundUp))
+    }
+  }
+
+  @Test
+  def parseRoundsToCentiseconds() {
+    assertEquals(124L, WeaveTimestamps.parse("1.231", true))
+    assertEquals(123L, WeaveTimestamps.parse("1.231", false))
+    assertEquals(124L, WeaveTimestamps.parse("1.2300001", true))
+    assertEquals(-123L, WeaveTimestamps.parse("-1.231", true))
+    assertEquals(-124L, WeaveTimestamps.parse("-1.231", false))
+    assertEquals(1L, WeaveTimestamps.parse("0.0001", true))
+    assertEquals(0L, WeaveTimestamps.parse("0.0001", false))
+    assertEquals(1L, WeaveTimestamps.parse("1e-999999", true))
+    assertEquals(0L, WeaveTimestamps.parse("1e-999999", false))
+    assertEquals(-1L, WeaveTimestamps.parse("-1e-999999", false))
+  }
+
+  @Test
+  def parseRejectsInvalidValues() {
+    assertInvalid("")
+    assertInvalid("abc")
+    assertInvalid("1.2.3")
+    assertInvalid("1e999999")
+    assertInvalid("12345678901234567.5")
+  }
+
+  @Test
+  def formattedTimestampsAreParsedExactly() {
+    for (timestamp <- List(0L, 1L, 99L, 100L, 130000000050L, Long.MaxValue / 1000)) {
+      assertEquals(timestamp, WeaveTimestamps.parse(WeaveTimestamps.format(timestamp), true))
+      assertEquals(timestamp, WeaveTimestamps.parse(WeaveTimestamps.format(timestamp), false))
+    }
+  }
+}